@@ -0,0 +1,102 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.benchmark;
+
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Read properties through {@code ObjectModelAdaptor} from many threads. The
+ *  names are computed, so every read goes to the adaptor rather than a
+ *  {@code PropertySite}. Run {@link #main} to see renders per millisecond as
+ *  threads are added; it should grow with the number of cores.
+ */
+public class ConcurrentProperties {
+    public static class Row {
+        public final int id;
+        final String name;
+        public Row(int id) { this.id = id; this.name = "row"+id; }
+        public String getName() { return name; }
+        public boolean isEven() { return id % 2 == 0; }
+    }
+
+    static final STGroup group = new STGroup();
+    static {
+        group.defineTemplate("rows", "rows",
+            "<rows:{r | <r.(\"id\")> <r.(\"name\")> <r.(\"even\")>}>");
+    }
+
+    final Row[] rows = new Row[200];
+
+    public ConcurrentProperties() {
+        for (int i = 0; i < rows.length; i++) rows[i] = new Row(i);
+    }
+
+    public void timeIndirectProperties(int reps) {
+        for (int i = 0; i < reps; i++) {
+            render();
+        }
+    }
+
+    String render() {
+        ST st = group.getInstanceOf("rows");
+        st.add("rows", rows);
+        return st.render();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final ConcurrentProperties bench = new ConcurrentProperties();
+        final int reps = 2000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= Math.max(8, cores); threads *= 2) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (int t = 0; t < threads; t++) {
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        bench.timeIndirectProperties(reps);
+                        return null;
+                    }
+                });
+            }
+            pool.invokeAll(tasks); // warm up
+            long start = System.nanoTime();
+            pool.invokeAll(tasks);
+            long elapsed = System.nanoTime() - start;
+            pool.shutdown();
+            System.err.printf("%2d threads: %8.2f renders/ms%n",
+                              threads, threads * reps / (elapsed / 1e6));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.benchmark;
+
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupString;
+
+/** Time attribute references that dynamic scoping resolves several
+ *  templates up the enclosing scope chain.
+ */
+public class DeepScopes {
+    static ST nested(int depth) {
+        StringBuilder templates = new StringBuilder();
+        templates.append("t0(root,items) ::= \"<t1()>\"\n");
+        for (int i = 1; i < depth; i++) {
+            templates.append("t").append(i).append("() ::= \"<t").append(i+1).append("()>\"\n");
+        }
+        templates.append("t").append(depth).append("() ::= \"<items:{it | <root><it>}>\"\n");
+        STGroup group = new STGroupString(templates.toString());
+        ST st = group.getInstanceOf("t0");
+        st.add("root", "x");
+        for (int i = 0; i < 20; i++) st.add("items", i);
+        return st;
+    }
+
+    static void render(ST st, int reps) {
+        for (int i = 0; i < reps; i++) {
+            st.render();
+        }
+    }
+
+    public void timeDepth2(int reps) { render(nested(2), reps); }
+    public void timeDepth8(int reps) { render(nested(8), reps); }
+    public void timeDepth16(int reps) { render(nested(16), reps); }
+}
@@ -0,0 +1,60 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.benchmark;
+
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupString;
+
+/** Time dictionary lookups through a chain of imported groups. */
+public class Dictionaries {
+    final STGroup group;
+    final Integer[] rows = new Integer[1000];
+
+    public Dictionaries() {
+        STGroup g = new STGroupString("colors ::= [\"red\":\"#f00\", default:\"#000\"]\n");
+        for (int i = 0; i < 4; i++) {
+            STGroup sub = new STGroupString("names" + i + " ::= [\"x\":\"y\"]\n");
+            sub.importTemplates(g);
+            g = sub;
+        }
+        group = new STGroupString(
+            "main(rows) ::= \"<rows:{r | <cell(...)>}>\"\n" +
+            "cell(r, note={<colors.red>}) ::= \"<r><note>\"\n");
+        group.importTemplates(g);
+        for (int i = 0; i < rows.length; i++) rows[i] = i;
+    }
+
+    public void timeImportedDictionary(int reps) {
+        ST st = group.getInstanceOf("main");
+        st.add("rows", rows);
+        for (int i = 0; i < reps; i++) {
+            st.render();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.benchmark;
+
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupString;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Time the collection functions on inputs they used to copy. */
+public class Functions {
+    static final STGroup group = new STGroupString(
+        "list(x) ::= \"<if(x)><first(x)>,<list(rest(x))><endif>\"\n" +
+        "reversed(x) ::= \"<reverse(x)><strip(x)><trunc(x)>\"\n"
+    );
+
+    final Set<Integer> set = new LinkedHashSet<Integer>();
+    final List<Integer> list = new ArrayList<Integer>();
+
+    public Functions() {
+        for (int i = 0; i < 100; i++) set.add(i);
+        for (int i = 0; i < 1000; i++) list.add(i);
+    }
+
+    public void timeFirstRestOfSet(int reps) {
+        for (int i = 0; i < reps; i++) {
+            ST st = group.getInstanceOf("list");
+            st.add("x", set);
+            st.render();
+        }
+    }
+
+    public void timeReverseStripTruncOfList(int reps) {
+        for (int i = 0; i < reps; i++) {
+            ST st = group.getInstanceOf("reversed");
+            st.add("x", list);
+            st.render();
+        }
+    }
+}
@@ -55,6 +55,17 @@ public class OliverTest {
         }
     }
 
+    public void timeEmailMemoizedProperties(int reps) {
+        STGroup test = new STGroupFile("email.stg");
+        test.memoizeProperties = true;
+        ST st = test.getInstanceOf("email");
+        st.add("order", Helper.order);
+        st.add("separator", "----------------");
+        for (int i = 0; i < reps; i++) {
+            st.render();
+        }
+    }
+
     public void timeEmailWriteToStringBuffer(int reps) {
         ST st = test.getInstanceOf("email");
         st.add("order", Helper.order);
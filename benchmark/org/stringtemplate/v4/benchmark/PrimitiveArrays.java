@@ -0,0 +1,65 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.benchmark;
+
+import org.stringtemplate.v4.ST;
+
+/** Time writing large numeric arrays. */
+public class PrimitiveArrays {
+    final int[] ints = new int[1000];
+    final double[] doubles = new double[1000];
+
+    public PrimitiveArrays() {
+        for (int i = 0; i < ints.length; i++) ints[i] = i * 31;
+        for (int i = 0; i < doubles.length; i++) doubles[i] = i / 8.0;
+    }
+
+    public void timeIntArray(int reps) {
+        ST st = new ST("<values; separator=\",\">");
+        st.add("values", ints);
+        for (int i = 0; i < reps; i++) {
+            st.render();
+        }
+    }
+
+    public void timeDoubleArray(int reps) {
+        ST st = new ST("<values; separator=\",\">");
+        st.add("values", doubles);
+        for (int i = 0; i < reps; i++) {
+            st.render();
+        }
+    }
+
+    public void timeAddIntArrays(int reps) {
+        for (int i = 0; i < reps; i++) {
+            ST st = new ST("<values>");
+            st.add("values", ints);
+            st.add("values", ints);
+        }
+    }
+}
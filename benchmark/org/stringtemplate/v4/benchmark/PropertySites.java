@@ -0,0 +1,91 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.benchmark;
+
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupString;
+import org.stringtemplate.v4.compiler.PropertySite;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Time property references whose receivers have one class, a few classes,
+ *  and more classes than a {@link PropertySite} caches.
+ */
+public class PropertySites {
+    static final String templates =
+        "names(users) ::= \"<users:{u | <u.name><u.id>}>\"\n";
+
+    public static class User1 extends Attributes.User { public User1(int id, String name) { super(id, name); } }
+    public static class User2 extends Attributes.User { public User2(int id, String name) { super(id, name); } }
+    public static class User3 extends Attributes.User { public User3(int id, String name) { super(id, name); } }
+    public static class User4 extends Attributes.User { public User4(int id, String name) { super(id, name); } }
+    public static class User5 extends Attributes.User { public User5(int id, String name) { super(id, name); } }
+    public static class User6 extends Attributes.User { public User6(int id, String name) { super(id, name); } }
+
+    static ST names(int ntypes) {
+        STGroup group = new STGroupString(templates);
+        ST st = group.getInstanceOf("names");
+        List<Object> users = new ArrayList<Object>();
+        for (int i = 0; i < 60; i++) {
+            users.add(user(i % ntypes, i));
+        }
+        st.add("users", users);
+        return st;
+    }
+
+    static Object user(int type, int id) {
+        switch ( type ) {
+            case 0 : return new User1(id, "parrt");
+            case 1 : return new User2(id, "tombu");
+            case 2 : return new User3(id, "sharwell");
+            case 3 : {
+                Map<String, Object> m = new HashMap<String, Object>();
+                m.put("id", id);
+                m.put("name", "map");
+                return m;
+            }
+            case 4 : return new User4(id, "a");
+            case 5 : return new User5(id, "b");
+            default : return new User6(id, "c");
+        }
+    }
+
+    static void render(ST st, int reps) {
+        for (int i = 0; i < reps; i++) {
+            st.render();
+        }
+    }
+
+    public void timeMonomorphic(int reps) { render(names(1), reps); }
+    public void timePolymorphic(int reps) { render(names(PropertySite.MAX_ENTRIES), reps); }
+    public void timeMegamorphic(int reps) { render(names(7), reps); }
+}
@@ -0,0 +1,118 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.benchmark;
+
+import org.stringtemplate.v4.NumberRenderer;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.StringRenderer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Look up model adaptors and renderers of one group from many threads. Run
+ *  {@link #main} to see lookups and renders per millisecond from 1 to 64
+ *  threads.
+ */
+public class RegistryContention {
+    public static class Row {
+        public final int id;
+        public Row(int id) { this.id = id; }
+    }
+
+    static final STGroup group = new STGroup();
+    static {
+        group.registerRenderer(Number.class, new NumberRenderer());
+        group.registerRenderer(String.class, new StringRenderer());
+        group.defineTemplate("rows", "rows", "<rows:{r | <r.(\"id\")>}>");
+    }
+
+    final Row[] rows = new Row[200];
+
+    public RegistryContention() {
+        for (int i = 0; i < rows.length; i++) rows[i] = new Row(i);
+    }
+
+    public void timeLookups(int reps) {
+        for (int i = 0; i < reps; i++) {
+            group.getModelAdaptor(Row.class);
+            group.getAttributeRenderer(Integer.class);
+            group.getAttributeRenderer(Row.class);
+        }
+    }
+
+    public void timeRender(int reps) {
+        for (int i = 0; i < reps; i++) {
+            ST st = group.getInstanceOf("rows");
+            st.add("rows", rows);
+            st.render();
+        }
+    }
+
+    interface Task {
+        void run(RegistryContention bench, int reps);
+    }
+
+    static void measure(String name, final int reps, final Task task) throws Exception {
+        final RegistryContention bench = new RegistryContention();
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (int t = 0; t < threads; t++) {
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        task.run(bench, reps);
+                        return null;
+                    }
+                });
+            }
+            pool.invokeAll(tasks); // warm up
+            long start = System.nanoTime();
+            pool.invokeAll(tasks);
+            long elapsed = System.nanoTime() - start;
+            pool.shutdown();
+            System.err.printf("%s, %2d threads: %10.2f per ms%n",
+                              name, threads, threads * (double)reps / (elapsed / 1e6));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        measure("lookups", 200000, new Task() {
+            @Override
+            public void run(RegistryContention bench, int reps) { bench.timeLookups(reps); }
+        });
+        measure("renders", 200, new Task() {
+            @Override
+            public void run(RegistryContention bench, int reps) { bench.timeRender(reps); }
+        });
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.benchmark;
+
+import org.stringtemplate.v4.NoIndentWriter;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupString;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+
+/** Map and zip templates across iterators that are too big to hold. Run
+ *  {@link #main} to see how much heap rendering needs as the row count grows;
+ *  when the rows are written right away it should stay flat.
+ */
+public class StreamingMaps {
+    static final String templates =
+        "rows(ids) ::= \"<ids:row(); separator={<\\n>}>\"\n" +
+        "row(id) ::= \"<id>,<id>\"\n" +
+        "report(ids,names) ::= \"<ids,names:{id,name | <i>: <id> <name>}; separator={<\\n>}>\"\n";
+
+    static final STGroup group = new STGroupString(templates);
+
+    /** Hands out {@code n} integers without holding on to any of them. */
+    static class Count implements Iterator<Integer> {
+        final int n;
+        int i = 0;
+        Count(int n) { this.n = n; }
+        @Override public boolean hasNext() { return i < n; }
+        @Override public Integer next() { return i++; }
+        @Override public void remove() { throw new UnsupportedOperationException(); }
+    }
+
+    /** Throws the output away but remembers the highest heap use it saw. */
+    static class HeapWatcher extends Writer {
+        long maxUsed = 0;
+        int writes = 0;
+        @Override public void write(char[] cbuf, int off, int len) { sample(); }
+        @Override public void write(int c) { sample(); }
+        @Override public void write(String str) { sample(); }
+        @Override public void flush() { }
+        @Override public void close() { }
+        void sample() {
+            if ( (++writes & 0xFFF)!=0 ) return;
+            Runtime rt = Runtime.getRuntime();
+            maxUsed = Math.max(maxUsed, rt.totalMemory() - rt.freeMemory());
+        }
+    }
+
+    static ST rows(int n) {
+        ST st = group.getInstanceOf("rows");
+        st.add("ids", new Count(n));
+        return st;
+    }
+
+    static ST report(int n) {
+        ST st = group.getInstanceOf("report");
+        st.add("ids", new Count(n));
+        st.add("names", new Count(n));
+        return st;
+    }
+
+    public void timeMap1000(int reps) {
+        for (int i = 0; i < reps; i++) rows(1000).render();
+    }
+
+    public void timeZipMap1000(int reps) {
+        for (int i = 0; i < reps; i++) report(1000).render();
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (int n = 10000; n <= 1000000; n *= 10) {
+            System.gc();
+            Runtime rt = Runtime.getRuntime();
+            long before = rt.totalMemory() - rt.freeMemory();
+            HeapWatcher out = new HeapWatcher();
+            rows(n).write(new NoIndentWriter(out));
+            long mapped = out.maxUsed - before;
+            System.gc();
+            before = rt.totalMemory() - rt.freeMemory();
+            out = new HeapWatcher();
+            report(n).write(new NoIndentWriter(out));
+            long zipped = out.maxUsed - before;
+            System.err.printf("%8d rows: map %6d KB, zip_map %6d KB max heap growth%n",
+                              n, mapped/1024, zipped/1024);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.benchmark;
+
+import org.stringtemplate.v4.Interpreter;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupString;
+import org.stringtemplate.v4.compiler.Compiler;
+
+/** Compare templates compiled with and without the combined instructions
+ *  of BytecodeOptimizer. JIT compilation is off so we time the interpreter.
+ */
+public class Superinstructions {
+    static final String templates =
+        "args(x,y) ::= \"<x>,<y>,<x>,<y>,<x>,<y>,<x>,<y>\"\n" +
+        "props(u) ::= \"<u.id><u.name><u.id><u.name><u.id><u.name>\"\n" +
+        "ifs(x,y) ::= \"<if(x)>a<endif><if(y)>b<endif><if(x)>c<endif><if(y)>d<endif>\"\n" +
+        "seps(xs) ::= \"<xs; separator=\\\", \\\"><xs; null=\\\"-\\\", separator=\\\"|\\\">\"\n";
+
+    static ST getInstanceOf(String name, boolean optimize) {
+        Interpreter.jit = false;
+        boolean saved = Compiler.optimize;
+        Compiler.optimize = optimize;
+        try {
+            if ( name.equals("attrs") ) { // no formal arguments; look up x and y by name
+                return new ST("<x>,<y>,<x>,<y>,<x>,<y>,<x>,<y>");
+            }
+            STGroup group = new STGroupString(templates);
+            return group.getInstanceOf(name);
+        }
+        finally {
+            Compiler.optimize = saved;
+        }
+    }
+
+    static void render(ST st, int reps) {
+        for (int i = 0; i < reps; i++) {
+            st.render();
+        }
+    }
+
+    static ST args(boolean optimize) {
+        ST st = getInstanceOf("args", optimize);
+        st.add("x", 1);
+        st.add("y", "hi");
+        return st;
+    }
+
+    static ST props(boolean optimize) {
+        ST st = getInstanceOf("props", optimize);
+        st.add("u", new Attributes.User(32, "parrt"));
+        return st;
+    }
+
+    static ST ifs(boolean optimize) {
+        ST st = getInstanceOf("ifs", optimize);
+        st.add("x", true);
+        return st;
+    }
+
+    static ST seps(boolean optimize) {
+        ST st = getInstanceOf("seps", optimize);
+        st.add("xs", 1);
+        st.add("xs", null);
+        st.add("xs", "hi");
+        return st;
+    }
+
+    static ST attrs(boolean optimize) {
+        ST st = getInstanceOf("attrs", optimize);
+        st.add("x", 1);
+        st.add("y", "hi");
+        return st;
+    }
+
+    public void timeArgs(int reps) { render(args(true), reps); }
+    public void timeArgsUnoptimized(int reps) { render(args(false), reps); }
+
+    public void timeProps(int reps) { render(props(true), reps); }
+    public void timePropsUnoptimized(int reps) { render(props(false), reps); }
+
+    public void timeIfs(int reps) { render(ifs(true), reps); }
+    public void timeIfsUnoptimized(int reps) { render(ifs(false), reps); }
+
+    public void timeSeps(int reps) { render(seps(true), reps); }
+    public void timeSepsUnoptimized(int reps) { render(seps(false), reps); }
+
+    public void timeAttrs(int reps) { render(attrs(true), reps); }
+    public void timeAttrsUnoptimized(int reps) { render(attrs(false), reps); }
+}
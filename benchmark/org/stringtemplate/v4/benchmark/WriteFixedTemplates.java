@@ -29,14 +29,27 @@
 package org.stringtemplate.v4.benchmark;
 
 import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupString;
 
 public class WriteFixedTemplates {
     String bigTemplate;
+    String multilineTemplate;
+    String paragraph;
 
     public WriteFixedTemplates() {
         StringBuilder buf = new StringBuilder();
         for (int i=1; i<=1000; i++) buf.append("some text");
         bigTemplate = buf.toString();
+        buf = new StringBuilder();
+        for (int i=1; i<=100; i++) {
+            if ( i%2==0 ) buf.append("    ");
+            buf.append("line ").append(i).append('\n');
+        }
+        multilineTemplate = buf.toString();
+        buf = new StringBuilder();
+        for (int i=1; i<=100; i++) buf.append("a line of generated text number ").append(i).append('\n');
+        paragraph = buf.toString();
     }
 
     public void timeSingle(int reps) {
@@ -54,4 +67,30 @@ public class WriteFixedTemplates {
             st.render();
         }
     }
+
+    public void timeMultiline(int reps) {
+        ST st = new ST(multilineTemplate);
+        for (int i = 0; i < reps; i++) {
+            st.render();
+        }
+    }
+
+    public void timeIndentedText(int reps) {
+        STGroup group = new STGroupString(
+            "outer(text) ::= <<\n" +
+            "class C {\n" +
+            "    <inner(text)>\n" +
+            "}\n" +
+            ">>\n" +
+            "inner(text) ::= <<\n" +
+            "void f() {\n" +
+            "    <text>\n" +
+            "}\n" +
+            ">>\n");
+        ST st = group.getInstanceOf("outer");
+        st.add("text", paragraph);
+        for (int i = 0; i < reps; i++) {
+            st.render();
+        }
+    }
 }
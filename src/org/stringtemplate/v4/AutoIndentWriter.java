@@ -54,7 +54,8 @@ import java.util.Stack;
  */
 public class AutoIndentWriter implements STWriter {
     /** Stack of indents. Use {@link List} as it's much faster than {@link Stack}. Grows
-     *  from 0..n-1.
+     *  from 0..n-1. Change it with {@link #pushIndentation} and
+     *  {@link #popIndentation}.
      */
     public List<String> indents = new ArrayList<String>();
 
@@ -83,6 +84,16 @@ public class AutoIndentWriter implements STWriter {
 
     public int lineWidth = NO_WRAP;
 
+    /** The strings in {@link #indents} run together, or {@code null} if they
+     *  changed since we last did that.
+     */
+    private String indentation;
+
+    /** Size of {@link #indents} when we computed {@link #indentation}. */
+    private int indentationDepth;
+
+    private static final String SPACES = "                                ";
+
     public AutoIndentWriter(Writer out, String newline) {
         this.out = out;
         indents.add(null); // s oftart with no indent
@@ -101,10 +112,12 @@ public class AutoIndentWriter implements STWriter {
     @Override
     public void pushIndentation(String indent) {
         indents.add(indent);
+        indentation = null;
     }
 
     @Override
     public String popIndentation() {
+        indentation = null;
         return indents.remove(indents.size()-1);
     }
 
@@ -127,39 +140,51 @@ public class AutoIndentWriter implements STWriter {
     @Override
     public int index() { return charIndex; }
 
-    /** Write out a string literal or attribute expression or expression element. */
+    /** Write out a string literal or attribute expression or expression element.
+     *  Characters between newlines go to {@link #out} in one call.
+     */
     @Override
     public int write(String str) throws IOException {
         int n = 0;
         int nll = newline.length();
         int sl = str.length();
+        int start = 0; // first char not written yet
         for (int i=0; i<sl; i++) {
             char c = str.charAt(i);
-            // found \n or \r\n newline?
-            if ( c=='\r' ) continue;
+            if ( c!='\r' && c!='\n' ) continue; // normal character
+            n += writeRun(str, start, i);
+            start = i+1;
+            // found \n or \r\n newline? drop the \r
             if ( c=='\n' ) {
                 atStartOfLine = true;
-                charPosition = -nll; // set so the write below sets to 0
+                charPosition = 0; // not n: this call may have written text before the newline
                 out.write(newline);
                 n += nll;
                 charIndex += nll;
-                charPosition += n; // wrote n more char
-                continue;
-            }
-            // normal character
-            // check to see if we are at the start of a line; need indent if so
-            if ( atStartOfLine ) {
-                n+=indent();
-                atStartOfLine = false;
             }
-            n++;
-            out.write(c);
-            charPosition++;
-            charIndex++;
         }
+        n += writeRun(str, start, sl);
         return n;
     }
 
+    /** Write the normal characters from {@code start} up to {@code end},
+     *  indenting first if they start a line.
+     */
+    private int writeRun(String str, int start, int end) throws IOException {
+        int len = end-start;
+        if ( len==0 ) return 0;
+        int n = 0;
+        // check to see if we are at the start of a line; need indent if so
+        if ( atStartOfLine ) {
+            n+=indent();
+            atStartOfLine = false;
+        }
+        out.write(str, start, len);
+        charPosition += len;
+        charIndex += len;
+        return n+len;
+    }
+
     @Override
     public int writeSeparator(String str) throws IOException {
         return write(str);
@@ -214,20 +239,25 @@ public class AutoIndentWriter implements STWriter {
     }
 
     public int indent() throws IOException {
-        int n = 0;
-        for (String ind : indents) {
-            if (ind != null) {
-                n += ind.length();
-                out.write(ind);
+        if ( indentation==null || indentationDepth!=indents.size() ) {
+            StringBuilder buf = new StringBuilder();
+            for (String ind : indents) {
+                if (ind != null) buf.append(ind);
             }
+            indentation = buf.toString();
+            indentationDepth = indents.size();
         }
+        int n = indentation.length();
+        if ( n>0 ) out.write(indentation);
 
         // If current anchor is beyond current indent width, indent to anchor
         // *after* doing indents (might tabs in there or whatever)
         int indentWidth = n;
         if ( anchors_sp>=0 && anchors[anchors_sp]>indentWidth ) {
             int remainder = anchors[anchors_sp]-indentWidth;
-            for (int i=1; i<=remainder; i++) out.write(' ');
+            for (int i=0; i<remainder; i+=SPACES.length()) {
+                out.write(SPACES, 0, Math.min(SPACES.length(), remainder-i));
+            }
             n += remainder;
         }
 
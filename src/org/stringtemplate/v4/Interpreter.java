@@ -31,12 +31,18 @@ import org.stringtemplate.v4.compiler.*;
 import org.stringtemplate.v4.compiler.Compiler;
 import org.stringtemplate.v4.debug.*;
 import org.stringtemplate.v4.gui.STViz;
+import org.stringtemplate.v4.jit.JITTemplate;
 import org.stringtemplate.v4.misc.*;
 
 import java.io.*;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * This class knows how to execute template bytecodes relative to a particular
@@ -52,13 +58,21 @@ import java.util.*;
  * tracking instance creation events. These are used by {@link STViz} to pair up
  * output chunks with the template expressions that generate them.</p>
  * <p>
- * We create a new interpreter for each invocation of
- * {@link ST#render}, {@link ST#inspect}, or {@link ST#getEvents}.</p>
+ * We create a new interpreter for each invocation of {@link ST#inspect} or
+ * {@link ST#getEvents}. {@link ST#render} and {@link ST#write} borrow one from
+ * a small shared pool instead; see {@link #obtain}.</p>
  */
 public class Interpreter {
     public enum Option { ANCHOR, FORMAT, NULL, SEPARATOR, WRAP }
+    /** @deprecated The operand stack now starts at
+     *  {@link #INITIAL_OPERAND_STACK_SIZE} and grows to fit each template's
+     *  {@link CompiledST#maxStackDepth}.
+     */
+    @Deprecated
     public static final int DEFAULT_OPERAND_STACK_SIZE = 100;
 
+    public static final int INITIAL_OPERAND_STACK_SIZE = 16;
+
     public static final Set<String> predefinedAnonSubtemplateAttributes;
 
     static {
@@ -68,8 +82,8 @@ public class Interpreter {
         predefinedAnonSubtemplateAttributes = Collections.unmodifiableSet(set);
     }
 
-    /** Operand stack, grows upwards. */
-    Object[] operands = new Object[DEFAULT_OPERAND_STACK_SIZE];
+    /** Operand stack, grows upwards; see {@link #ensureStackCapacity}. */
+    Object[] operands = new Object[INITIAL_OPERAND_STACK_SIZE];
     /** Stack pointer register. */
     int sp = -1;
     /** The number of characters written on this template line so far. */
@@ -93,6 +107,18 @@ public class Interpreter {
      */
     public static boolean trace = false;
 
+    /**
+     * Translate templates that have executed at least {@link #jitThreshold}
+     * times into JVM classes (see {@link JITCompiler}). Off by default: every
+     * generated instruction still calls into the same interpreter code, and
+     * the benchmarks run no faster than the linked interpreter, often slower.
+     * Debugging and tracing interpreters never use the generated code.
+     */
+    public static boolean jit = false;
+
+    /** Number of executions after which a template is handed to the {@link JITCompiler}. */
+    public static int jitThreshold = 1000;
+
     /** If {@link #trace} is {@code true}, track trace here. */
     // TODO: track the pieces not a string and track what it contributes to output
     protected List<String> executeTrace;
@@ -107,6 +133,41 @@ public class Interpreter {
      */
     protected List<InterpEvent> events;
 
+    /** Buffers {@link #toString(STWriter, InstanceScope, Object)} evaluates
+     *  into, one per level of nested evaluation; kept across renders.
+     */
+    private final List<StringBuilderWriter> stringBuffers = new ArrayList<StringBuilderWriter>();
+
+    /** Number of {@link #stringBuffers} in use. */
+    private int stringBufferDepth = 0;
+
+    /** Values of the {@link LazyValue}s read so far in this render, or
+     *  {@code null} if there are none.
+     */
+    private Map<LazyValue<?>, Object> lazyValues;
+
+    /** Wait for {@link Future} values and render their results; only
+     *  {@link ST#renderAsync} turns this on. Otherwise a future is just
+     *  another object and renders through {@code toString()}.
+     */
+    boolean awaitFutures = false;
+
+    /** Property values read so far in this render by object, then by
+     *  property, if {@link STGroup#memoizeProperties} is on for
+     *  {@link #group}; else {@code null}.
+     */
+    private Map<Object, Map<Object, Object>> propertyMemo;
+
+    private long propertyMemoHits = 0;
+    private long propertyMemoMisses = 0;
+
+    /** Don't keep buffers around that grew larger than this. */
+    static final int MAX_KEPT_STRING_BUFFER = 8192;
+
+    /** Public {@code (Writer)} constructors of {@link STWriter} classes. */
+    private static final Map<Class<?>, Constructor<? extends STWriter>> writerConstructors =
+        new ConcurrentHashMap<Class<?>, Constructor<? extends STWriter>>();
+
     public Interpreter(STGroup group, boolean debug) {
         this(group,Locale.getDefault(),group.errMgr, debug);
     }
@@ -130,6 +191,68 @@ public class Interpreter {
         }
     }
 
+    /** Number of idle interpreters kept for reuse; a power of two. */
+    static final int POOL_SIZE;
+
+    static {
+        int n = 8;
+        while ( n < 2*Runtime.getRuntime().availableProcessors() ) n *= 2;
+        POOL_SIZE = n;
+    }
+
+    /**
+     * Idle non-debug interpreters. A slot is claimed and refilled with a
+     * single atomic operation, so borrowing never blocks or pins a thread,
+     * and the pool never holds more than {@link #POOL_SIZE} interpreters no
+     * matter how many threads render.
+     */
+    private static final AtomicReferenceArray<Interpreter> pool =
+        new AtomicReferenceArray<Interpreter>(POOL_SIZE);
+
+    /** Borrow an idle interpreter for {@code group}, or create one.
+     *  Give it back with {@link #release} when done.
+     */
+    static Interpreter obtain(STGroup group, Locale locale, ErrorManager errMgr) {
+        int start = (int)Thread.currentThread().getId();
+        for (int i=0; i<POOL_SIZE; i++) {
+            Interpreter interp = pool.getAndSet((start+i) & (POOL_SIZE-1), null);
+            if ( interp!=null ) {
+                interp.group = group;
+                interp.locale = locale;
+                interp.errMgr = errMgr;
+                return interp;
+            }
+        }
+        return new Interpreter(group, locale, errMgr, false);
+    }
+
+    /** Like {@link #obtain(STGroup, Locale, ErrorManager)} but reports to
+     *  {@code listener}.
+     */
+    static Interpreter obtain(STGroup group, Locale locale, STErrorListener listener) {
+        return obtain(group, locale, new ErrorManager(listener));
+    }
+
+    /** Reset this interpreter and make it available to {@link #obtain}. If
+     *  the pool is full, it's left to the garbage collector.
+     */
+    void release() {
+        if ( debug ) return;
+        Arrays.fill(operands, null); // don't keep attribute values alive
+        sp = -1;
+        nwline = 0;
+        lazyValues = null;
+        propertyMemo = null;
+        awaitFutures = false;
+        group = null;
+        locale = null;
+        errMgr = null; // may hold on to the caller's listener
+        int start = (int)Thread.currentThread().getId();
+        for (int i=0; i<POOL_SIZE; i++) {
+            if ( pool.compareAndSet((start+i) & (POOL_SIZE-1), null, this) ) return;
+        }
+    }
+
 //  public static int[] count = new int[Bytecode.MAX_BYTECODE+1];
 
 //  public static void dumpOpcodeFreq() {
@@ -159,315 +282,291 @@ public class Interpreter {
                                 "internal error: "+sw.toString());
             return 0;
         }
+        finally {
+            if ( scope.parent==null ) { // end of the render
+                lazyValues = null;
+                if ( propertyMemo!=null ) endPropertyMemo();
+            }
+        }
+    }
+
+    /** Forget the properties this render read and report the cache counts. */
+    private void endPropertyMemo() {
+        propertyMemo = null;
+        group.countPropertyCacheUse(propertyMemoHits, propertyMemoMisses);
+        propertyMemoHits = 0;
+        propertyMemoMisses = 0;
+    }
+
+    /** Return the property values of {@code o} read so far in this render. */
+    private Map<Object, Object> memoizedProperties(Object o) {
+        if ( propertyMemo==null ) propertyMemo = new IdentityHashMap<Object, Map<Object, Object>>();
+        Map<Object, Object> properties = propertyMemo.get(o);
+        if ( properties==null ) {
+            properties = new HashMap<Object, Object>();
+            propertyMemo.put(o, properties);
+        }
+        return properties;
     }
 
     protected int _exec(STWriter out, InstanceScope scope) {
         final ST self = scope.st;
+        LinkedCode linked = self.impl.getLinkedCode();
+        ensureStackCapacity(linked.maxStackDepth);
+        if ( jit && !debug && !trace ) {
+            JITTemplate jitCode = JITCompiler.getCode(self.impl);
+            if ( jitCode!=null ) return JITBridge.run(jitCode, this, out, scope);
+        }
         int start = out.index(); // track char we're about to write
         int prevOpcode = 0;
         int n = 0; // how many char we write out
-        int nargs;
-        int nameIndex;
-        int addr;
-        String name;
-        Object o, left, right;
-        ST st;
-        Object[] options;
-        byte[] code = self.impl.instrs;        // which code block are we executing
+        Object o;
+        int[] code = linked.instrs;            // which code block are we executing
+        Object[] resolved = linked.resolved;   // and its pre-resolved operands
         int ip = 0;
-        while ( ip < self.impl.codeSize ) {
+        while ( ip < linked.codeSize ) {
             if ( trace || debug ) trace(scope, ip);
-            short opcode = code[ip];
+            int opcode = code[ip];
             //count[opcode]++;
             scope.ip = ip;
-            ip++; //jump to next instruction or first byte of operand
             switch (opcode) {
                 case Bytecode.INSTR_LOAD_STR :
-                    // just testing...
-                    load_str(self,ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
+                    operands[++sp] = resolved[ip];
+                    ip += 3;
                     break;
                 case Bytecode.INSTR_LOAD_ATTR :
-                    nameIndex = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    name = self.impl.strings[nameIndex];
-                    try {
-                        o = getAttribute(scope, name);
-                        if ( o==ST.EMPTY_ATTR ) o = null;
-                    }
-                    catch (STNoSuchAttributeException nsae) {
-                        errMgr.runTimeError(this, scope, ErrorType.NO_SUCH_ATTRIBUTE, name);
-                        o = null;
-                    }
-                    operands[++sp] = o;
+                    load_attr(scope, (AttributeSite)resolved[ip]);
+                    ip += 3;
                     break;
                 case Bytecode.INSTR_LOAD_LOCAL:
-                    int valueIndex = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    o = self.locals[valueIndex];
-                    if ( o==ST.EMPTY_ATTR ) o = null;
-                    operands[++sp] = o;
+                    load_local(scope, code[ip+1]);
+                    ip += 3;
                     break;
                 case Bytecode.INSTR_LOAD_PROP :
-                    nameIndex = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    o = operands[sp--];
-                    name = self.impl.strings[nameIndex];
-                    operands[++sp] = getObjectProperty(out, scope, o, name);
+                    load_prop(out, scope, (PropertySite)resolved[ip]);
+                    ip += 3;
                     break;
                 case Bytecode.INSTR_LOAD_PROP_IND :
-                    Object propName = operands[sp--];
-                    o = operands[sp];
-                    operands[sp] = getObjectProperty(out, scope, o, propName);
+                    load_prop_ind(out, scope);
+                    ip++;
                     break;
                 case Bytecode.INSTR_NEW :
-                    nameIndex = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    name = self.impl.strings[nameIndex];
-                    nargs = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    // look up in original hierarchy not enclosing template (variable group)
-                    // see TestSubtemplates.testEvalSTFromAnotherGroup()
-                    st = self.groupThatCreatedThisInstance.getEmbeddedInstanceOf(this, scope, name);
-                    // get n args and store into st's attr list
-                    storeArgs(scope, nargs, st);
-                    sp -= nargs;
-                    operands[++sp] = st;
+                    new_template(scope, (TemplateSite)resolved[ip]);
+                    ip += 5;
                     break;
                 case Bytecode.INSTR_NEW_IND:
-                    nargs = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    name = (String)operands[sp-nargs];
-                    st = self.groupThatCreatedThisInstance.getEmbeddedInstanceOf(this, scope, name);
-                    storeArgs(scope, nargs, st);
-                    sp -= nargs;
-                    sp--; // pop template name
-                    operands[++sp] = st;
+                    new_ind(scope, code[ip+1]);
+                    ip += 3;
                     break;
                 case Bytecode.INSTR_NEW_BOX_ARGS :
-                    nameIndex = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    name = self.impl.strings[nameIndex];
-                    Map<String, Object> attrs = (ArgumentsMap)operands[sp--];
-                    // look up in original hierarchy not enclosing template (variable group)
-                    // see TestSubtemplates.testEvalSTFromAnotherGroup()
-                    st = self.groupThatCreatedThisInstance.getEmbeddedInstanceOf(this, scope, name);
-                    // get n args and store into st's attr list
-                    storeArgs(scope, attrs, st);
-                    operands[++sp] = st;
+                    new_box_args(scope, (TemplateSite)resolved[ip]);
+                    ip += 3;
                     break;
                 case Bytecode.INSTR_SUPER_NEW :
-                    nameIndex = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    name = self.impl.strings[nameIndex];
-                    nargs = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    super_new(scope, name, nargs);
+                    super_new(scope, (TemplateSite)resolved[ip]);
+                    ip += 5;
                     break;
                 case Bytecode.INSTR_SUPER_NEW_BOX_ARGS :
-                    nameIndex = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    name = self.impl.strings[nameIndex];
-                    attrs = (ArgumentsMap)operands[sp--];
-                    super_new(scope, name, attrs);
+                    super_new_box_args(scope, (TemplateSite)resolved[ip]);
+                    ip += 3;
                     break;
                 case Bytecode.INSTR_STORE_OPTION:
-                    int optionIndex = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    o = operands[sp--];    // value to store
-                    options = (Object[])operands[sp]; // get options
-                    options[optionIndex] = o; // store value into options on stack
+                    store_option(code[ip+1]);
+                    ip += 3;
                     break;
                 case Bytecode.INSTR_STORE_ARG:
-                    nameIndex = getShort(code, ip);
-                    name = self.impl.strings[nameIndex];
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    o = operands[sp--];
-                    attrs = (ArgumentsMap)operands[sp];
-                    attrs.put(name, o); // leave attrs on stack
+                    store_arg((String)resolved[ip]);
+                    ip += 3;
                     break;
                 case Bytecode.INSTR_WRITE :
-                    o = operands[sp--];
-                    int n1 = writeObjectNoOptions(out, scope, o);
-                    n += n1;
-                    nwline += n1;
+                    n += write(out, scope);
+                    ip++;
                     break;
                 case Bytecode.INSTR_WRITE_OPT :
-                    options = (Object[])operands[sp--]; // get options
-                    o = operands[sp--];                 // get option to write
-                    int n2 = writeObjectWithOptions(out, scope, o, options);
-                    n += n2;
-                    nwline += n2;
+                    n += write_opt(out, scope);
+                    ip++;
                     break;
                 case Bytecode.INSTR_MAP :
-                    st = (ST)operands[sp--]; // get prototype off stack
-                    o = operands[sp--];      // get object to map prototype across
-                    map(scope,o,st);
+                    map(scope, linked.streamed[ip]);
+                    ip++;
                     break;
                 case Bytecode.INSTR_ROT_MAP :
-                    int nmaps = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    List<ST> templates = new ArrayList<ST>();
-                    for (int i=nmaps-1; i>=0; i--) templates.add((ST)operands[sp-i]);
-                    sp -= nmaps;
-                    o = operands[sp--];
-                    if ( o!=null ) rot_map(scope,o,templates);
+                    rot_map(scope, code[ip+1], linked.streamed[ip]);
+                    ip += 3;
                     break;
                 case Bytecode.INSTR_ZIP_MAP:
-                    st = (ST)operands[sp--];
-                    nmaps = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    List<Object> exprs = new ObjectList();
-                    for (int i=nmaps-1; i>=0; i--) exprs.add(operands[sp-i]);
-                    sp -= nmaps;
-                    operands[++sp] = zip_map(scope, exprs, st);
+                    zip_map(scope, code[ip+1], linked.streamed[ip]);
+                    ip += 3;
                     break;
                 case Bytecode.INSTR_BR :
-                    ip = getShort(code, ip);
+                    ip = code[ip+1];
                     break;
                 case Bytecode.INSTR_BRF :
-                    addr = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
                     o = operands[sp--]; // <if(expr)>...<endif>
-                    if ( !testAttributeTrue(o) ) ip = addr; // jump
+                    if ( !testAttributeTrue(o) ) ip = code[ip+1]; // jump
+                    else ip += 3;
                     break;
                 case Bytecode.INSTR_OPTIONS :
                     operands[++sp] = new Object[Compiler.NUM_OPTIONS];
+                    ip++;
                     break;
                 case Bytecode.INSTR_ARGS:
                     operands[++sp] = new ArgumentsMap();
+                    ip++;
                     break;
                 case Bytecode.INSTR_PASSTHRU :
-                    nameIndex = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    name = self.impl.strings[nameIndex];
-                    attrs = (ArgumentsMap)operands[sp];
-                    passthru(scope, name, attrs);
+                    passthru(scope, (String)resolved[ip], (ArgumentsMap)operands[sp]);
+                    ip += 3;
                     break;
                 case Bytecode.INSTR_LIST :
                     operands[++sp] = new ObjectList();
+                    ip++;
                     break;
                 case Bytecode.INSTR_ADD :
-                    o = operands[sp--];             // pop value
-                    List<Object> list = (ObjectList)operands[sp]; // don't pop list
-                    addToList(scope, list, o);
+                    add(scope);
+                    ip++;
                     break;
                 case Bytecode.INSTR_TOSTR :
                     // replace with string value; early eval
-                    operands[sp] = toString(out, scope, operands[sp]);
+                    o = toString(out, scope, operands[sp]);
+                    operands[sp] = o;
+                    ip++;
                     break;
                 case Bytecode.INSTR_FIRST  :
-                    operands[sp] = first(scope, operands[sp]);
+                    o = first(scope, operands[sp]);
+                    operands[sp] = o;
+                    ip++;
                     break;
                 case Bytecode.INSTR_LAST   :
-                    operands[sp] = last(scope, operands[sp]);
+                    o = last(scope, operands[sp]);
+                    operands[sp] = o;
+                    ip++;
                     break;
                 case Bytecode.INSTR_REST   :
-                    operands[sp] = rest(scope, operands[sp]);
+                    o = rest(scope, operands[sp]);
+                    operands[sp] = o;
+                    ip++;
                     break;
                 case Bytecode.INSTR_TRUNC  :
-                    operands[sp] = trunc(scope, operands[sp]);
+                    o = trunc(scope, operands[sp]);
+                    operands[sp] = o;
+                    ip++;
                     break;
                 case Bytecode.INSTR_STRIP  :
-                    operands[sp] = strip(scope, operands[sp]);
+                    o = strip(scope, operands[sp]);
+                    operands[sp] = o;
+                    ip++;
                     break;
                 case Bytecode.INSTR_TRIM   :
-                    o = operands[sp--];
-                    if ( o.getClass() == String.class ) {
-                        operands[++sp] = ((String)o).trim();
-                    }
-                    else {
-                        errMgr.runTimeError(this, scope, ErrorType.EXPECTING_STRING, "trim", o.getClass().getName());
-                        operands[++sp] = o;
-                    }
+                    o = trim(scope, operands[sp]);
+                    operands[sp] = o;
+                    ip++;
                     break;
                 case Bytecode.INSTR_LENGTH :
-                    operands[sp] = length(operands[sp]);
+                    o = length(operands[sp]);
+                    operands[sp] = o;
+                    ip++;
                     break;
                 case Bytecode.INSTR_STRLEN :
-                    o = operands[sp--];
-                    if ( o.getClass() == String.class ) {
-                        operands[++sp] = ((String)o).length();
-                    }
-                    else {
-                        errMgr.runTimeError(this, scope, ErrorType.EXPECTING_STRING, "strlen", o.getClass().getName());
-                        operands[++sp] = 0;
-                    }
+                    o = strlen(scope, operands[sp]);
+                    operands[sp] = o;
+                    ip++;
                     break;
                 case Bytecode.INSTR_REVERSE :
-                    operands[sp] = reverse(scope, operands[sp]);
+                    o = reverse(scope, operands[sp]);
+                    operands[sp] = o;
+                    ip++;
                     break;
                 case Bytecode.INSTR_NOT :
-                    operands[sp] = !testAttributeTrue(operands[sp]);
+                    o = !testAttributeTrue(operands[sp]);
+                    operands[sp] = o;
+                    ip++;
                     break;
                 case Bytecode.INSTR_OR :
-                    right = operands[sp--];
-                    left = operands[sp--];
-                    operands[++sp] = testAttributeTrue(left) || testAttributeTrue(right);
+                    or();
+                    ip++;
                     break;
                 case Bytecode.INSTR_AND :
-                    right = operands[sp--];
-                    left = operands[sp--];
-                    operands[++sp] = testAttributeTrue(left) && testAttributeTrue(right);
+                    and();
+                    ip++;
                     break;
                 case Bytecode.INSTR_INDENT :
-                    int strIndex = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    indent(out, scope, strIndex);
+                    indent(out, scope, code[ip+1]);
+                    ip += 3;
                     break;
                 case Bytecode.INSTR_DEDENT :
                     out.popIndentation();
+                    ip++;
                     break;
                 case Bytecode.INSTR_NEWLINE :
-                    try {
-                        if ( (prevOpcode==0 && !self.isAnonSubtemplate() && !self.impl.isRegion) ||
-                            prevOpcode==Bytecode.INSTR_NEWLINE ||
-                            prevOpcode==Bytecode.INSTR_INDENT ||
-                            nwline>0 )
-                        {
-                            out.write(Misc.newline);
-                        }
-                        nwline = 0;
-                    }
-                    catch (IOException ioe) {
-                        errMgr.IOError(self, ErrorType.WRITE_IO_ERROR, ioe);
-                    }
+                    newline(out, scope, prevOpcode);
+                    ip++;
                     break;
                 case Bytecode.INSTR_NOOP :
+                    ip++;
                     break;
                 case Bytecode.INSTR_POP :
                     sp--; // throw away top of stack
+                    ip++;
                     break;
                 case Bytecode.INSTR_NULL :
                     operands[++sp] = null;
+                    ip++;
                     break;
                 case Bytecode.INSTR_TRUE :
                     operands[++sp] = true;
+                    ip++;
                     break;
                 case Bytecode.INSTR_FALSE :
                     operands[++sp] = false;
+                    ip++;
                     break;
                 case Bytecode.INSTR_WRITE_STR :
-                    strIndex = getShort(code, ip);
-                    ip += Bytecode.OPND_SIZE_IN_BYTES;
-                    o = self.impl.strings[strIndex];
-                    n1 = writeObjectNoOptions(out, scope, o);
-                    n += n1;
-                    nwline += n1;
+                    o = resolved[ip];
+                    if ( o instanceof TextRun ) {
+                        TextRun run = (TextRun)o;
+                        if ( !trace && !debug ) {
+                            n += write_text(out, scope, run);
+                            ip = run.end;
+                            break;
+                        }
+                        o = run.strings[0];
+                    }
+                    n += write_str(out, scope, (String)o);
+                    ip += 3;
+                    break;
+                case Bytecode.INSTR_WRITE_LOCAL :
+                    n += write_local(out, scope, code[ip+1]);
+                    ip += 3;
+                    break;
+                case Bytecode.INSTR_LOAD_LOCAL_PROP :
+                    load_local_prop(out, scope, code[ip+1], (PropertySite)resolved[ip]);
+                    ip += 5;
+                    break;
+                case Bytecode.INSTR_WRITE_LOCAL_PROP :
+                    n += write_local_prop(out, scope, code[ip+1], (PropertySite)resolved[ip]);
+                    ip += 5;
+                    break;
+                case Bytecode.INSTR_WRITE_ATTR :
+                    n += write_attr(out, scope, (AttributeSite)resolved[ip]);
+                    ip += 3;
+                    break;
+                case Bytecode.INSTR_BRF_LOCAL :
+                    if ( !testAttributeTrue(localValue(scope, code[ip+1])) ) ip = code[ip+3];
+                    else ip += 5;
+                    break;
+                case Bytecode.INSTR_BRF_ATTR :
+                    if ( !testAttributeTrue(attributeValue(scope, (AttributeSite)resolved[ip])) ) ip = code[ip+3];
+                    else ip += 5;
+                    break;
+                case Bytecode.INSTR_WRITE_OPT_CONST :
+                    n += write_opt_const(out, scope, (String[])resolved[ip]);
+                    ip += 3;
                     break;
-                // TODO: generate this optimization
-//              case Bytecode.INSTR_WRITE_LOCAL:
-//                  valueIndex = getShort(code, ip);
-//                  ip += Bytecode.OPND_SIZE_IN_BYTES;
-//                  o = self.locals[valueIndex];
-//                  if ( o==ST.EMPTY_ATTR ) o = null;
-//                  n1 = writeObjectNoOptions(out, self, o);
-//                  n += n1;
-//                  nwline += n1;
-//                  break;
                 default :
-                    errMgr.internalError(self, "invalid bytecode @ "+(ip-1)+": "+opcode, null);
+                    errMgr.internalError(self, "invalid bytecode @ "+ip+": "+opcode, null);
                     self.impl.dump();
+                    ip++;
             }
             prevOpcode = opcode;
         }
@@ -479,51 +578,196 @@ public class Interpreter {
         return n;
     }
 
-    void load_str(ST self, int ip) {
-        int strIndex = getShort(self.impl.instrs, ip);
-        ip += Bytecode.OPND_SIZE_IN_BYTES;
-        operands[++sp] = self.impl.strings[strIndex];
+    /** Make sure {@code n} more operands fit on the stack. */
+    void ensureStackCapacity(int n) {
+        int needed = sp + 1 + n;
+        if ( needed > operands.length ) {
+            operands = Arrays.copyOf(operands, Math.max(needed, operands.length*2));
+        }
+    }
+
+    /*
+     * The methods below implement the individual instructions. They are shared
+     * by _exec and the JVM classes generated by JITCompiler, so the two
+     * execution modes can't drift apart.
+     */
+
+    void load_attr(InstanceScope scope, AttributeSite site) {
+        Object o = attributeValue(scope, site);
+        operands[++sp] = o;
     }
 
-    // TODO: refactor to remove dup'd code
-    void super_new(InstanceScope scope, String name, int nargs) {
-        final ST self = scope.st;
-        ST st = null;
-        CompiledST imported = self.impl.nativeGroup.lookupImportedTemplate(name);
-        if ( imported==null ) {
-            errMgr.runTimeError(this, scope, ErrorType.NO_IMPORTED_TEMPLATE,
-                                name);
-            st = self.groupThatCreatedThisInstance.createStringTemplateInternally(new CompiledST());
+    Object attributeValue(InstanceScope scope, AttributeSite site) {
+        Object o = getAttribute(scope, site);
+        if ( o==NO_SUCH_ATTRIBUTE ) {
+            errMgr.runTimeError(this, scope, ErrorType.NO_SUCH_ATTRIBUTE, site.name);
+            return null;
         }
-        else {
-            st = imported.nativeGroup.getEmbeddedInstanceOf(this, scope, name);
-            st.groupThatCreatedThisInstance = group;
+        if ( o==ST.EMPTY_ATTR ) o = null;
+        if ( o instanceof LazyValue || o instanceof Future ) o = deferredValue(scope, o);
+        return o;
+    }
+
+    void load_local(InstanceScope scope, int valueIndex) {
+        Object o = localValue(scope, valueIndex);
+        operands[++sp] = o;
+    }
+
+    Object localValue(InstanceScope scope, int valueIndex) {
+        Object o = scope.st.locals[valueIndex];
+        if ( o==ST.EMPTY_ATTR ) o = null;
+        if ( o instanceof LazyValue || o instanceof Future ) o = deferredValue(scope, o);
+        return o;
+    }
+
+    /** Return the value {@code o} stands for if it's a {@link LazyValue} or,
+     *  when {@link #awaitFutures} is on, a {@link Future}; else {@code o}
+     *  itself.
+     */
+    Object deferredValue(InstanceScope scope, Object o) {
+        if ( o instanceof LazyValue ) o = lazyValue((LazyValue<?>)o);
+        if ( awaitFutures && o instanceof Future ) o = await(scope, (Future<?>)o);
+        return o;
+    }
+
+    /** Wait for {@code f} to finish and return its result. A future that
+     *  failed or was cancelled is reported and renders as {@code null}.
+     */
+    Object await(InstanceScope scope, Future<?> f) {
+        Throwable failure;
+        try {
+            return f.get();
         }
+        catch (ExecutionException ee) {
+            failure = ee.getCause()!=null ? ee.getCause() : ee;
+        }
+        catch (CancellationException ce) {
+            failure = ce;
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt(); // let the caller see it
+            failure = ie;
+        }
+        errMgr.runTimeError(this, scope, ErrorType.FUTURE_FAILED, failure, failure);
+        return null;
+    }
+
+    /** Compute {@code v} the first time this render reads it; after that,
+     *  return the same value.
+     */
+    Object lazyValue(LazyValue<?> v) {
+        if ( lazyValues==null ) lazyValues = new IdentityHashMap<LazyValue<?>, Object>();
+        Object o = lazyValues.get(v);
+        if ( o==null && !lazyValues.containsKey(v) ) {
+            o = v.get();
+            lazyValues.put(v, o);
+        }
+        return o;
+    }
+
+    void load_prop(STWriter out, InstanceScope scope, PropertySite site) {
+        Object value = getObjectProperty(out, scope, operands[sp], site);
+        operands[sp] = value;
+    }
+
+    void load_prop_ind(STWriter out, InstanceScope scope) {
+        Object propName = operands[sp--];
+        Object o = operands[sp];
+        Object value = getObjectProperty(out, scope, o, propName);
+        operands[sp] = value;
+    }
+
+    void new_template(InstanceScope scope, TemplateSite site) {
+        final ST self = scope.st;
+        // look up in original hierarchy not enclosing template (variable group)
+        // see TestSubtemplates.testEvalSTFromAnotherGroup()
+        ST st = self.groupThatCreatedThisInstance.getEmbeddedInstanceOf(this, scope, site);
         // get n args and store into st's attr list
+        storeArgs(scope, site.nargs, st);
+        sp -= site.nargs;
+        operands[++sp] = st;
+    }
+
+    void new_ind(InstanceScope scope, int nargs) {
+        final ST self = scope.st;
+        String name = (String)operands[sp-nargs];
+        ST st = self.groupThatCreatedThisInstance.getEmbeddedInstanceOf(this, scope, name);
         storeArgs(scope, nargs, st);
         sp -= nargs;
+        sp--; // pop template name
         operands[++sp] = st;
     }
 
-    void super_new(InstanceScope scope, String name, Map<String,Object> attrs) {
+    void new_box_args(InstanceScope scope, TemplateSite site) {
         final ST self = scope.st;
-        ST st = null;
-        CompiledST imported = self.impl.nativeGroup.lookupImportedTemplate(name);
-        if ( imported==null ) {
-            errMgr.runTimeError(this, scope, ErrorType.NO_IMPORTED_TEMPLATE,
-                                name);
-            st = self.groupThatCreatedThisInstance.createStringTemplateInternally(new CompiledST());
-        }
-        else {
-            st = imported.nativeGroup.createStringTemplateInternally(imported);
-            st.groupThatCreatedThisInstance = group;
-        }
+        Map<String, Object> attrs = (ArgumentsMap)operands[sp--];
+        // look up in original hierarchy not enclosing template (variable group)
+        // see TestSubtemplates.testEvalSTFromAnotherGroup()
+        ST st = self.groupThatCreatedThisInstance.getEmbeddedInstanceOf(this, scope, site);
+        // get n args and store into st's attr list
+        storeArgs(scope, attrs, st);
+        operands[++sp] = st;
+    }
+
+    void super_new(InstanceScope scope, TemplateSite site) {
+        ST st = super_instance(scope, site, false);
+        // get n args and store into st's attr list
+        storeArgs(scope, site.nargs, st);
+        sp -= site.nargs;
+        operands[++sp] = st;
+    }
 
+    void super_new_box_args(InstanceScope scope, TemplateSite site) {
+        Map<String, Object> attrs = (ArgumentsMap)operands[sp--];
+        ST st = super_instance(scope, site, true);
         // get n args and store into st's attr list
         storeArgs(scope, attrs, st);
         operands[++sp] = st;
     }
 
+    /** Create the instance a {@code super_new} ({@code boxArgs} false) or
+     *  {@code super_new_box_args} instruction refers to. Like
+     *  {@link STGroup#getEmbeddedInstanceOf}, we remember the template we
+     *  found in {@code site}.
+     */
+    ST super_instance(InstanceScope scope, TemplateSite site, boolean boxArgs) {
+        final ST self = scope.st;
+        final STGroup nativeGroup = self.impl.nativeGroup;
+        final String prefix = self.impl.prefix;
+        TemplateSite.Resolution r = site.getResolution(nativeGroup, prefix);
+        if ( r==null ) {
+            int epoch = nativeGroup.getTemplateEpoch();
+            CompiledST imported = nativeGroup.lookupImportedTemplate(site.name);
+            if ( imported==null ) {
+                errMgr.runTimeError(this, scope, ErrorType.NO_IMPORTED_TEMPLATE,
+                                    site.name);
+                return self.groupThatCreatedThisInstance.createStringTemplateInternally(new CompiledST());
+            }
+            CompiledST code = imported;
+            if ( !boxArgs ) {
+                // instantiate name as seen from the imported group
+                String fullyQualifiedName = site.name;
+                if ( fullyQualifiedName.charAt(0)!='/' ) {
+                    fullyQualifiedName = prefix + fullyQualifiedName;
+                }
+                code = imported.nativeGroup.lookupTemplate(fullyQualifiedName);
+                if ( code==null ) {
+                    imported.nativeGroup.errMgr.runTimeError(this, scope,
+                                                             ErrorType.NO_SUCH_TEMPLATE,
+                                                             fullyQualifiedName);
+                    ST st = imported.nativeGroup.createStringTemplateInternally(new CompiledST());
+                    st.groupThatCreatedThisInstance = group;
+                    return st;
+                }
+            }
+            r = new TemplateSite.Resolution(nativeGroup, prefix, epoch, code, imported.nativeGroup);
+            site.resolution = r;
+        }
+        ST st = r.creator.createStringTemplateInternally(r.code);
+        st.groupThatCreatedThisInstance = group;
+        return st;
+    }
+
     void passthru(InstanceScope scope, String templateName, Map<String,Object> attrs) {
         CompiledST c = group.lookupTemplate(templateName);
         if ( c==null ) return; // will get error later
@@ -532,19 +776,8 @@ public class Interpreter {
             // if not already set by user, set to value from outer scope
             if ( !attrs.containsKey(arg.name) ) {
                 //System.out.println("arg "+arg.name+" missing");
-                try {
-                    Object o = getAttribute(scope, arg.name);
-                    // If the attribute exists but there is no value and
-                    // the formal argument has no default value, make it null.
-                    if ( o==ST.EMPTY_ATTR && arg.defaultValueToken==null ) {
-                        attrs.put(arg.name, null);
-                    }
-                    // Else, the attribute has an existing value, set arg.
-                    else if ( o!=ST.EMPTY_ATTR ) {
-                        attrs.put(arg.name, o);
-                    }
-                }
-                catch (STNoSuchAttributeException nsae) {
+                Object o = findAttribute(scope, arg.name);
+                if ( o==NO_SUCH_ATTRIBUTE ) {
                     // if no such attribute exists for arg.name, set parameter
                     // if no default value
                     if ( arg.defaultValueToken==null ) {
@@ -552,27 +785,206 @@ public class Interpreter {
                         attrs.put(arg.name, null);
                     }
                 }
+                // If the attribute exists but there is no value and
+                // the formal argument has no default value, make it null.
+                else if ( o==ST.EMPTY_ATTR && arg.defaultValueToken==null ) {
+                    attrs.put(arg.name, null);
+                }
+                // Else, the attribute has an existing value, set arg.
+                else if ( o!=ST.EMPTY_ATTR ) {
+                    attrs.put(arg.name, o);
+                }
+            }
+        }
+    }
+
+    void store_option(int optionIndex) {
+        Object o = operands[sp--];    // value to store
+        Object[] options = (Object[])operands[sp]; // get options
+        options[optionIndex] = o; // store value into options on stack
+    }
+
+    void store_arg(String name) {
+        Object o = operands[sp--];
+        Map<String, Object> attrs = (ArgumentsMap)operands[sp];
+        attrs.put(name, o); // leave attrs on stack
+    }
+
+    int write(STWriter out, InstanceScope scope) {
+        return writeValue(out, scope, operands[sp--]);
+    }
+
+    int writeValue(STWriter out, InstanceScope scope, Object o) {
+        int n = writeObjectNoOptions(out, scope, o);
+        nwline += n;
+        return n;
+    }
+
+    int write_opt(STWriter out, InstanceScope scope) {
+        Object[] options = (Object[])operands[sp--]; // get options
+        Object o = operands[sp--];                   // get option to write
+        int n = writeObjectWithOptions(out, scope, o, options);
+        nwline += n;
+        return n;
+    }
+
+    int write_str(STWriter out, InstanceScope scope, String s) {
+        return writeValue(out, scope, s);
+    }
+
+    /** Do the instructions of {@code run}. Literal text that no renderer
+     *  wants to see goes straight to {@code out}, one {@link TextRun#texts}
+     *  element at a time.
+     */
+    int write_text(STWriter out, InstanceScope scope, TextRun run) {
+        boolean render = scope.st.impl.nativeGroup.getAttributeRenderer(String.class)!=null;
+        int n = 0;
+        short[] opcodes = run.opcodes;
+        for (int i=0; i<opcodes.length; i++) {
+            switch ( opcodes[i] ) {
+                case Bytecode.INSTR_WRITE_STR :
+                    if ( render ) {
+                        n += write_str(out, scope, run.strings[i]);
+                        break;
+                    }
+                    String text = run.texts[i];
+                    if ( text==null ) break; // written with an earlier write_str
+                    try {
+                        int nw = out.write(text);
+                        nwline += nw;
+                        n += nw;
+                    }
+                    catch (IOException ioe) {
+                        errMgr.IOError(scope.st, ErrorType.WRITE_IO_ERROR, ioe, text);
+                    }
+                    break;
+                case Bytecode.INSTR_NEWLINE :
+                    newline(out, scope, opcodes[i-1]);
+                    break;
+                case Bytecode.INSTR_INDENT :
+                    out.pushIndentation(run.strings[i]);
+                    break;
+                case Bytecode.INSTR_DEDENT :
+                    out.popIndentation();
+                    break;
+            }
+        }
+        return n;
+    }
+
+    /*
+     * Combined instructions; see BytecodeOptimizer. A part that can report
+     * something finds its source interval at the next scope.ip.
+     */
+
+    int write_local(STWriter out, InstanceScope scope, int valueIndex) {
+        Object o = localValue(scope, valueIndex);
+        scope.ip++;
+        return writeValue(out, scope, o);
+    }
+
+    void load_local_prop(STWriter out, InstanceScope scope, int valueIndex, PropertySite site) {
+        Object o = localValue(scope, valueIndex);
+        scope.ip++;
+        Object value = getObjectProperty(out, scope, o, site);
+        operands[++sp] = value;
+    }
+
+    int write_local_prop(STWriter out, InstanceScope scope, int valueIndex, PropertySite site) {
+        Object o = localValue(scope, valueIndex);
+        scope.ip++;
+        o = getObjectProperty(out, scope, o, site);
+        scope.ip++;
+        return writeValue(out, scope, o);
+    }
+
+    int write_opt_const(STWriter out, InstanceScope scope, String[] optionStrings) {
+        Object o = operands[sp--];
+        int n = writeObjectWithOptionStrings(out, scope, o, optionStrings);
+        nwline += n;
+        return n;
+    }
+
+    int write_attr(STWriter out, InstanceScope scope, AttributeSite site) {
+        Object o = attributeValue(scope, site);
+        scope.ip++;
+        return writeValue(out, scope, o);
+    }
+
+    /** If {@code streamed}, the next instruction writes the result right
+     *  away (see {@link LinkedCode#streamed}) and we can map lazily.
+     */
+    void map(InstanceScope scope, boolean streamed) {
+        ST st = (ST)operands[sp--]; // get prototype off stack
+        Object o = operands[sp--];  // get object to map prototype across
+        if ( streamed ) rot_map_streamed(scope, o, Collections.singletonList(st));
+        else map(scope,o,st);
+    }
+
+    void rot_map(InstanceScope scope, int nmaps, boolean streamed) {
+        List<ST> templates = new ArrayList<ST>();
+        for (int i=nmaps-1; i>=0; i--) templates.add((ST)operands[sp-i]);
+        sp -= nmaps;
+        Object o = operands[sp--];
+        if ( o==null ) return;
+        if ( streamed ) rot_map_streamed(scope, o, templates);
+        else rot_map(scope,o,templates);
+    }
+
+    void zip_map(InstanceScope scope, int nmaps, boolean streamed) {
+        ST st = (ST)operands[sp--];
+        List<Object> exprs = new ObjectList();
+        for (int i=nmaps-1; i>=0; i--) exprs.add(operands[sp-i]);
+        sp -= nmaps;
+        Object mapped = streamed ? zip_map_iterator(scope, exprs, st) : zip_map(scope, exprs, st);
+        operands[++sp] = mapped;
+    }
+
+    void add(InstanceScope scope) {
+        Object o = operands[sp--];             // pop value
+        List<Object> list = (ObjectList)operands[sp]; // don't pop list
+        addToList(scope, list, o);
+    }
+
+    void or() {
+        Object right = operands[sp--];
+        Object left = operands[sp--];
+        operands[++sp] = testAttributeTrue(left) || testAttributeTrue(right);
+    }
+
+    void and() {
+        Object right = operands[sp--];
+        Object left = operands[sp--];
+        operands[++sp] = testAttributeTrue(left) && testAttributeTrue(right);
+    }
+
+    void newline(STWriter out, InstanceScope scope, int prevOpcode) {
+        final ST self = scope.st;
+        try {
+            if ( (prevOpcode==0 && !self.isAnonSubtemplate() && !self.impl.isRegion) ||
+                prevOpcode==Bytecode.INSTR_NEWLINE ||
+                prevOpcode==Bytecode.INSTR_INDENT ||
+                nwline>0 )
+            {
+                out.write(Misc.newline);
             }
+            nwline = 0;
+        }
+        catch (IOException ioe) {
+            errMgr.IOError(self, ErrorType.WRITE_IO_ERROR, ioe);
         }
     }
 
     void storeArgs(InstanceScope scope, Map<String,Object> attrs, ST st) {
         boolean noSuchAttributeReported = false;
         if (attrs != null) {
+            // st.impl belongs to the group; if we have to fake formal
+            // arguments, add() makes its own copy first, once
+            if ( !st.impl.hasFormalArgs ) st.implShared = true;
             for (Map.Entry<String, Object> argument : attrs.entrySet()) {
                 if (!st.impl.hasFormalArgs) {
                     if (st.impl.formalArguments == null || !st.impl.formalArguments.containsKey(argument.getKey())) {
-                        try {
-                            // we clone the CompiledST to prevent modifying the original
-                            // formalArguments map during interpretation.
-                            st.impl = st.impl.clone();
-                            st.add(argument.getKey(), argument.getValue());
-                        } catch (CloneNotSupportedException ex) {
-                            noSuchAttributeReported = true;
-                            errMgr.runTimeError(this, scope,
-                                                ErrorType.NO_SUCH_ATTRIBUTE,
-                                                argument.getKey());
-                        }
+                        st.add(argument.getKey(), argument.getValue());
                     }
                     else {
                         st.rawSetAttribute(argument.getKey(), argument.getValue());
@@ -701,7 +1113,6 @@ public class Interpreter {
     protected int writeObjectWithOptions(STWriter out, InstanceScope scope, Object o,
                                          Object[] options)
     {
-        int start = out.index(); // track char we're about to write
         // precompute all option values (render all the way to strings)
         String[] optionStrings = null;
         if ( options!=null ) {
@@ -710,13 +1121,23 @@ public class Interpreter {
                 optionStrings[i] = toString(out, scope, options[i]);
             }
         }
-        if ( options!=null && options[Option.ANCHOR.ordinal()]!=null ) {
+        return writeObjectWithOptionStrings(out, scope, o, optionStrings);
+    }
+
+    /** Like {@link #writeObjectWithOptions} once the option values are
+     *  strings; {@code write_opt_const} instructions come straight here.
+     */
+    protected int writeObjectWithOptionStrings(STWriter out, InstanceScope scope, Object o,
+                                               String[] optionStrings)
+    {
+        int start = out.index(); // track char we're about to write
+        if ( optionStrings!=null && optionStrings[Option.ANCHOR.ordinal()]!=null ) {
             out.pushAnchorPoint();
         }
 
         int n = writeObject(out, scope, o, optionStrings);
 
-        if ( options!=null && options[Option.ANCHOR.ordinal()]!=null ) {
+        if ( optionStrings!=null && optionStrings[Option.ANCHOR.ordinal()]!=null ) {
             out.popAnchorPoint();
         }
         if ( debug ) {
@@ -734,6 +1155,7 @@ public class Interpreter {
      */
     protected int writeObject(STWriter out, InstanceScope scope, Object o, String[] options) {
         int n = 0;
+        if ( awaitFutures && o instanceof Future ) o = await(scope, (Future<?>)o); // e.g., element of a list
         if ( o == null ) {
             if ( options!=null && options[Option.NULL.ordinal()]!=null ) {
                 o = options[Option.NULL.ordinal()];
@@ -755,10 +1177,17 @@ public class Interpreter {
             n = exec(out, scope);
         }
         else {
-            o = convertAnythingIteratableToIterator(scope, o); // normalize
             try {
-                if ( o instanceof Iterator) n = writeIterator(out, scope, o, options);
-                else n = writePOJO(out, scope, o, options);
+                if ( o.getClass().isArray() && !(o instanceof Object[]) &&
+                     scope.st.impl.nativeGroup.getAttributeRenderer(ArrayIterator.boxedElementType(o))==null )
+                {
+                    n = writePrimitiveArray(out, scope, o, options);
+                }
+                else {
+                    o = convertAnythingIteratableToIterator(scope, o); // normalize
+                    if ( o instanceof Iterator) n = writeIterator(out, scope, o, options);
+                    else n = writePOJO(out, scope, o, options);
+                }
             }
             catch (IOException ioe) {
                 errMgr.IOError(scope.st, ErrorType.WRITE_IO_ERROR, ioe, o);
@@ -767,6 +1196,31 @@ public class Interpreter {
         return n;
     }
 
+    /** Like {@link #writeIterator} followed by {@link #writePOJO} for each
+     *  element, for an array of {@code int}, {@code double}, and so on whose
+     *  element type has no renderer: the elements are converted to text
+     *  without boxing them.
+     */
+    protected int writePrimitiveArray(STWriter out, InstanceScope scope, Object array, String[] options) throws IOException {
+        String separator = null;
+        String wrap = null;
+        if ( options!=null ) {
+            separator = options[Option.SEPARATOR.ordinal()];
+            wrap = options[Option.WRAP.ordinal()];
+        }
+        int n = 0;
+        boolean seenAValue = false;
+        int length = Array.getLength(array);
+        for (int i = 0; i < length; i++) {
+            if ( seenAValue && separator!=null ) n += out.writeSeparator(separator);
+            String v = ArrayIterator.elementToString(array, i);
+            int nw = wrap!=null ? out.write(v, wrap) : out.write(v);
+            if ( nw > 0 ) seenAValue = true;
+            n += nw;
+        }
+        return n;
+    }
+
     protected int writeIterator(STWriter out, InstanceScope scope, Object o, String[] options) throws IOException {
         if ( o==null ) return 0;
         int n = 0;
@@ -860,29 +1314,78 @@ public class Interpreter {
         }
     }
 
+    /** Like {@link #rot_map}, but for a result that is written right away:
+     *  instead of a list of instances, push a {@link MappedIterator} that
+     *  creates each instance as the writer gets to it. Mapping a large or
+     *  unbounded iterator then doesn't keep an instance per element alive.
+     */
+    protected void rot_map_streamed(InstanceScope scope, Object attr, List<ST> prototypes) {
+        Object o = attr!=null ? convertAnythingIteratableToIterator(scope, attr) : null;
+        if ( o instanceof Iterator ) {
+            operands[++sp] = new MappedIterator(scope, (Iterator<?>)o, prototypes);
+        }
+        else {
+            rot_map(scope, attr, prototypes);
+        }
+    }
+
     protected List<ST> rot_map_iterator(InstanceScope scope, Iterator<?> attr, List<ST> prototypes) {
         List<ST> mapped = new ArrayList<ST>();
-        Iterator<?> iter = attr;
+        MappedIterator iter = new MappedIterator(scope, attr, prototypes);
+        while ( iter.hasNext() ) mapped.add(iter.next());
+        return mapped;
+    }
+
+    /** Applies templates, rotating through them, to the values of an
+     *  iterator one at a time. A {@code null} value maps to {@code null}.
+     */
+    protected class MappedIterator implements Iterator<ST> {
+        final InstanceScope scope;
+        final Iterator<?> attr;
+        final List<ST> prototypes;
+
+        /** Address of the {@code map} instruction, for error messages. */
+        final int ip;
+
         int i0 = 0;
-        int i = 1;
         int ti = 0;
-        while ( iter.hasNext() ) {
-            Object iterValue = iter.next();
-            if ( iterValue == null ) { mapped.add(null); continue; }
+
+        public MappedIterator(InstanceScope scope, Iterator<?> attr, List<ST> prototypes) {
+            this.scope = scope;
+            this.attr = attr;
+            this.prototypes = prototypes;
+            this.ip = scope.ip;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return attr.hasNext();
+        }
+
+        @Override
+        public ST next() {
+            Object iterValue = attr.next();
+            if ( iterValue == null ) return null;
             int templateIndex = ti % prototypes.size(); // rotate through
             ti++;
             ST proto = prototypes.get(templateIndex);
             ST st = group.createStringTemplateInternally(proto);
+            int saveIp = scope.ip;
+            scope.ip = ip;
             setFirstArgument(scope, st, iterValue);
+            scope.ip = saveIp;
             if ( st.impl.isAnonSubtemplate ) {
                 st.rawSetAttribute("i0", i0);
-                st.rawSetAttribute("i", i);
+                st.rawSetAttribute("i", i0+1);
             }
-            mapped.add(st);
             i0++;
-            i++;
+            return st;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
-        return mapped;
     }
 
     /**
@@ -891,6 +1394,18 @@ public class Interpreter {
      */
     // todo: i, i0 not set unless mentioned? map:{k,v | ..}?
     protected ST.AttributeList zip_map(InstanceScope scope, List<Object> exprs, ST prototype) {
+        ZippedIterator rows = zip_map_iterator(scope, exprs, prototype);
+        if ( rows==null ) return null;
+        ST.AttributeList results = new ST.AttributeList();
+        while ( rows.hasNext() ) results.add(rows.next());
+        return results;
+    }
+
+    /** Like {@link #zip_map}, but return the embedded instances one at a
+     *  time, as they are asked for. {@code zip_map} instructions whose result
+     *  is written right away push this instead of the list.
+     */
+    protected ZippedIterator zip_map_iterator(InstanceScope scope, List<Object> exprs, ST prototype) {
         if ( exprs==null || prototype==null || exprs.size()==0 ) {
             return null; // do not apply if missing templates or empty values
         }
@@ -929,32 +1444,56 @@ public class Interpreter {
             formalArgumentNames = newFormalArgumentNames;
         }
 
-        // keep walking while at least one attribute has values
+        Iterator<?>[] iterators = new Iterator<?>[numExprs];
+        for (int a = 0; a < numExprs; a++) iterators[a] = (Iterator<?>)exprs.get(a);
+        return new ZippedIterator(prototype, iterators, formalArgumentNames);
+    }
 
-        ST.AttributeList results = new ST.AttributeList();
+    /** Walks the iterators of a {@code zip_map} in lock step, putting the
+     *  next value of each into a new instance of the prototype. Keeps going
+     *  while at least one iterator has values.
+     */
+    protected class ZippedIterator implements Iterator<ST> {
+        final ST prototype;
+        final Iterator<?>[] iterators;
+        final String[] formalArgumentNames;
         int i = 0; // iteration number from 0
-        while ( true ) {
+
+        public ZippedIterator(ST prototype, Iterator<?>[] iterators, String[] formalArgumentNames) {
+            this.prototype = prototype;
+            this.iterators = iterators;
+            this.formalArgumentNames = formalArgumentNames;
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (Iterator<?> it : iterators) {
+                if ( it!=null && it.hasNext() ) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public ST next() {
+            if ( !hasNext() ) throw new NoSuchElementException();
             // get a value for each attribute in list; put into ST instance
-            int numEmpty = 0;
             ST embedded = group.createStringTemplateInternally(prototype);
             embedded.rawSetAttribute("i0", i);
             embedded.rawSetAttribute("i", i+1);
-            for (int a = 0; a < numExprs; a++) {
-                Iterator<?> it = (Iterator<?>) exprs.get(a);
+            for (int a = 0; a < iterators.length; a++) {
+                Iterator<?> it = iterators[a];
                 if ( it!=null && it.hasNext() ) {
-                    String argName = formalArgumentNames[a];
-                    Object iteratedValue = it.next();
-                    embedded.rawSetAttribute(argName, iteratedValue);
-                }
-                else {
-                    numEmpty++;
+                    embedded.rawSetAttribute(formalArgumentNames[a], it.next());
                 }
             }
-            if ( numEmpty==numExprs ) break;
-            results.add(embedded);
             i++;
+            return embedded;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
-        return results;
     }
 
     protected void setFirstArgument(InstanceScope scope, ST st, Object attr) {
@@ -997,6 +1536,10 @@ public class Interpreter {
      */
     public Object first(InstanceScope scope, Object v) {
         if ( v==null ) return null;
+        if ( v instanceof List ) {
+            List<?> elems = (List<?>)v;
+            return elems.isEmpty() ? v : elems.get(0);
+        }
         Object r = v;
         v = convertAnythingIteratableToIterator(scope, v);
         if ( v instanceof Iterator ) {
@@ -1039,11 +1582,16 @@ public class Interpreter {
      */
     public Object rest(InstanceScope scope, Object v) {
         if ( v == null ) return null;
-        if ( v instanceof List ) { // optimize list case
-            List<?> elems = (List<?>)v;
+        Collection<?> c = asCollection(scope, v); // arrays become lists
+        if ( c instanceof List ) { // optimize list case
+            List<?> elems = (List<?>)c;
             if ( elems.size()<=1 ) return null;
             return elems.subList(1, elems.size());
         }
+        if ( c!=null ) {
+            if ( c.isEmpty() ) return null; // if not even one value return null
+            return CollectionViews.rest(c);
+        }
         v = convertAnythingIteratableToIterator(scope, v);
         if ( v instanceof Iterator ) {
             List<Object> a = new ArrayList<Object>();
@@ -1062,11 +1610,13 @@ public class Interpreter {
     /** Return all but the last element. <code>trunc(<i>x</i>)==null</code> if <code><i>x</i></code> is single-valued. */
     public Object trunc(InstanceScope scope, Object v) {
         if ( v ==null ) return null;
-        if ( v instanceof List ) { // optimize list case
-            List<?> elems = (List<?>)v;
+        Collection<?> c = asCollection(scope, v); // arrays become lists
+        if ( c instanceof List ) { // optimize list case
+            List<?> elems = (List<?>)c;
             if ( elems.size()<=1 ) return null;
             return elems.subList(0, elems.size()-1);
         }
+        if ( c!=null ) return CollectionViews.trunc(c);
         v = convertAnythingIteratableToIterator(scope, v);
         if ( v instanceof Iterator ) {
             List<Object> a = new ArrayList<Object>();
@@ -1080,9 +1630,11 @@ public class Interpreter {
         return null; // trunc(x)==null when x single-valued attribute
     }
 
-    /** Return a new list without {@code null} values. */
+    /** Return the values of {@code v} except the {@code null} ones. */
     public Object strip(InstanceScope scope, Object v) {
         if ( v ==null ) return null;
+        Collection<?> c = asCollection(scope, v);
+        if ( c!=null ) return CollectionViews.strip(c);
         v = convertAnythingIteratableToIterator(scope, v);
         if ( v instanceof Iterator ) {
             List<Object> a = new ArrayList<Object>();
@@ -1104,16 +1656,40 @@ public class Interpreter {
      */
     public Object reverse(InstanceScope scope, Object v) {
         if ( v==null ) return null;
+        if ( v instanceof RandomAccess && v instanceof List ) {
+            return CollectionViews.reverse((List<?>)v);
+        }
+        if ( v.getClass().isArray() ) {
+            return CollectionViews.reverse(CollectionViews.asList(v));
+        }
         v = convertAnythingIteratableToIterator(scope, v);
         if ( v instanceof Iterator ) {
-            List<Object> a = new LinkedList<Object>();
+            List<Object> a = new ArrayList<Object>();
             Iterator<?> it = (Iterator<?>)v;
-            while (it.hasNext()) a.add(0, it.next());
-            return a;
+            while (it.hasNext()) a.add(it.next());
+            return CollectionViews.reverse(a);
         }
         return v;
     }
 
+    /** Return the elements {@code v} stands for as a collection we can look
+     *  at more than once without copying, or {@code null} if it's a single
+     *  value or an {@link Iterator}. Arrays and maps are viewed the way
+     *  {@link #convertAnythingIteratableToIterator} iterates them.
+     */
+    protected Collection<?> asCollection(InstanceScope scope, Object v) {
+        if ( v instanceof Collection ) return (Collection<?>)v;
+        if ( v instanceof Iterable ) return null;
+        if ( v.getClass().isArray() ) return CollectionViews.asList(v);
+        if ( v instanceof Map ) {
+            if ( scope.st.groupThatCreatedThisInstance.iterateAcrossValues ) {
+                return ((Map<?, ?>)v).values();
+            }
+            return ((Map<?, ?>)v).keySet();
+        }
+        return null;
+    }
+
     /**
      * Return the length of a multi-valued attribute or 1 if it is a single
      * attribute. If {@code v} is {@code null} return 0.
@@ -1139,32 +1715,93 @@ public class Interpreter {
         return i;
     }
 
+    /** Return the trimmed string {@code v}; report an error and return
+     *  {@code v} unchanged if it is not a string.
+     */
+    public Object trim(InstanceScope scope, Object v) {
+        if ( v.getClass() == String.class ) {
+            return ((String)v).trim();
+        }
+        errMgr.runTimeError(this, scope, ErrorType.EXPECTING_STRING, "trim", v.getClass().getName());
+        return v;
+    }
+
+    /** Return the length of string {@code v}; report an error and return
+     *  0 if it is not a string.
+     */
+    public Object strlen(InstanceScope scope, Object v) {
+        if ( v.getClass() == String.class ) {
+            return ((String)v).length();
+        }
+        errMgr.runTimeError(this, scope, ErrorType.EXPECTING_STRING, "strlen", v.getClass().getName());
+        return 0;
+    }
+
     protected String toString(STWriter out, InstanceScope scope, Object value) {
         if ( value!=null ) {
             if ( value.getClass()==String.class ) return (String)value;
             // if not string already, must evaluate it
-            StringWriter sw = new StringWriter();
-            STWriter stw;
+            StringBuilderWriter sw = obtainStringBuffer();
             try {
-                Class<? extends STWriter> writerClass = out.getClass();
-                Constructor<? extends STWriter> ctor = writerClass.getConstructor(Writer.class);
-                stw = ctor.newInstance(sw);
+                STWriter stw = createChildWriter(out, scope, sw);
+
+                if (debug && !scope.earlyEval) {
+                    scope = new InstanceScope(scope, scope.st);
+                    scope.earlyEval = true;
+                }
+
+                writeObjectNoOptions(stw, scope, value);
+
+                return sw.toString();
             }
-            catch (Exception e) {
-                stw = new AutoIndentWriter(sw);
-                errMgr.runTimeError(this, scope, ErrorType.WRITER_CTOR_ISSUE, out.getClass().getSimpleName());
+            finally {
+                releaseStringBuffer(sw);
             }
+        }
+        return null;
+    }
 
-            if (debug && !scope.earlyEval) {
-                scope = new InstanceScope(scope, scope.st);
-                scope.earlyEval = true;
+    /**
+     * Return a writer like {@code out} that writes to {@code w}. Uses
+     * {@link STWriterFactory#createChildWriter} if {@code out} implements it,
+     * else the {@code (Writer)} constructor of its class. Falls back on an
+     * {@link AutoIndentWriter} if there is no such constructor.
+     */
+    protected STWriter createChildWriter(STWriter out, InstanceScope scope, Writer w) {
+        if ( out instanceof STWriterFactory ) {
+            return ((STWriterFactory)out).createChildWriter(w);
+        }
+        Class<? extends STWriter> writerClass = out.getClass();
+        if ( writerClass==AutoIndentWriter.class ) return new AutoIndentWriter(w);
+        if ( writerClass==NoIndentWriter.class ) return new NoIndentWriter(w);
+        try {
+            Constructor<? extends STWriter> ctor = writerConstructors.get(writerClass);
+            if ( ctor==null ) {
+                ctor = writerClass.getConstructor(Writer.class);
+                writerConstructors.put(writerClass, ctor);
             }
+            return ctor.newInstance(w);
+        }
+        catch (Exception e) {
+            errMgr.runTimeError(this, scope, ErrorType.WRITER_CTOR_ISSUE, writerClass.getSimpleName());
+            return new AutoIndentWriter(w);
+        }
+    }
 
-            writeObjectNoOptions(stw, scope, value);
+    private StringBuilderWriter obtainStringBuffer() {
+        if ( stringBufferDepth==stringBuffers.size() ) {
+            stringBuffers.add(new StringBuilderWriter());
+        }
+        StringBuilderWriter sw = stringBuffers.get(stringBufferDepth++);
+        sw.reset();
+        return sw;
+    }
 
-            return sw.toString();
+    private void releaseStringBuffer(StringBuilderWriter sw) {
+        stringBufferDepth--;
+        if ( sw.getBuffer().capacity()>MAX_KEPT_STRING_BUFFER ) {
+            stringBuffers.set(stringBufferDepth, new StringBuilderWriter());
         }
-        return null;
     }
 
     public Object convertAnythingIteratableToIterator(InstanceScope scope, Object o) {
@@ -1200,7 +1837,7 @@ public class Interpreter {
     protected boolean testAttributeTrue(Object a) {
         if ( a==null ) return false;
         if ( a instanceof Boolean ) return (Boolean)a;
-        if ( a instanceof Collection ) return ((Collection<?>)a).size()>0;
+        if ( a instanceof Collection ) return !((Collection<?>)a).isEmpty();
         if ( a instanceof Map ) return ((Map<?, ?>)a).size()>0;
         if ( a instanceof Iterable ) {
             return ((Iterable<?>)a).iterator().hasNext();
@@ -1216,18 +1853,121 @@ public class Interpreter {
             return null;
         }
 
+        Map<Object, Object> memo = null;
+        if ( group.memoizeProperties ) {
+            memo = memoizedProperties(o);
+            Object value = memo.get(property);
+            if ( value!=null || memo.containsKey(property) ) {
+                propertyMemoHits++;
+                return value;
+            }
+            propertyMemoMisses++;
+        }
+
         try {
             final ST self = scope.st;
-            ModelAdaptor adap = self.groupThatCreatedThisInstance.getModelAdaptor(o.getClass());
-            return adap.getProperty(this, self, o, property, toString(out,scope,property));
+            ModelAdaptor<?> adap = self.groupThatCreatedThisInstance.getModelAdaptor(o.getClass());
+            Object value = tryGetProperty(adap, self, o, property, toString(out,scope,property));
+            if ( awaitFutures && value instanceof Future ) value = await(scope, (Future<?>)value);
+            if ( value!=TryModelAdaptor.NO_SUCH_PROPERTY ) {
+                if ( memo!=null ) memo.put(property, value);
+                return value;
+            }
+            noSuchProperty(scope, o.getClass(), property, null);
         }
         catch (STNoSuchPropertyException e) {
+            noSuchProperty(scope, o.getClass(), property, e);
+        }
+        return null;
+    }
+
+    /**
+     * Like {@link #getObjectProperty(STWriter, InstanceScope, Object, Object)}
+     * for a property name known at compile time. The adaptor, and the getter
+     * or field when it is a plain {@link ObjectModelAdaptor}, come from the
+     * inline cache in {@code site} while {@code o}'s class is one it has seen.
+     */
+    Object getObjectProperty(STWriter out, InstanceScope scope, Object o, PropertySite site) {
+        if ( o==null ) {
             errMgr.runTimeError(this, scope, ErrorType.NO_SUCH_PROPERTY,
-                                      e, o.getClass().getName()+"."+property);
+                                      "null." + site.name);
+            return null;
+        }
+
+        Map<Object, Object> memo = null;
+        if ( group.memoizeProperties ) {
+            memo = memoizedProperties(o);
+            Object value = memo.get(site.name);
+            if ( value!=null || memo.containsKey(site.name) ) {
+                propertyMemoHits++;
+                return value;
+            }
+            propertyMemoMisses++;
+        }
+
+        Class<?> c = o.getClass();
+        try {
+            final ST self = scope.st;
+            STGroup group = self.groupThatCreatedThisInstance;
+            PropertySite.Entry e = site.lookup(c, group);
+            if ( e==null && !site.isMegamorphic() ) {
+                int version = group.getModelAdaptorVersion();
+                e = site.add(c, group, version, group.getModelAdaptor(c));
+            }
+            Object value;
+            if ( e!=null && e.member!=null ) {
+                value = e.get(o, site.name);
+            }
+            else {
+                ModelAdaptor<?> adap = e!=null ? e.adaptor : group.getModelAdaptor(c); // megamorphic
+                value = tryGetProperty(adap, self, o, site.name, site.name);
+            }
+            if ( awaitFutures && value instanceof Future ) value = await(scope, (Future<?>)value);
+            if ( value!=TryModelAdaptor.NO_SUCH_PROPERTY ) {
+                if ( memo!=null ) memo.put(site.name, value);
+                return value;
+            }
+            noSuchProperty(scope, c, site.name, null);
+        }
+        catch (STNoSuchPropertyException e) {
+            noSuchProperty(scope, c, site.name, e);
         }
         return null;
     }
 
+    /** Call {@link TryModelAdaptor#tryGetProperty} if {@code adap} has it,
+     *  else {@link ModelAdaptor#getProperty}.
+     */
+    @SuppressWarnings("unchecked")
+    private Object tryGetProperty(ModelAdaptor<?> adap, ST self, Object o, Object property, String propertyName) {
+        if ( adap instanceof TryModelAdaptor ) {
+            return ((TryModelAdaptor<Object>)adap).tryGetProperty(this, self, o, property, propertyName);
+        }
+        return ((ModelAdaptor<Object>)adap).getProperty(this, self, o, property, propertyName);
+    }
+
+    /** Report that objects of class {@code c} have no property
+     *  {@code property}. If the adaptor said so by returning
+     *  {@link TryModelAdaptor#NO_SUCH_PROPERTY}, {@code e} is {@code null} and
+     *  we make up the exception here, but only if the listener will see it.
+     */
+    void noSuchProperty(InstanceScope scope, Class<?> c, Object property, STNoSuchPropertyException e) {
+        if ( errMgr.ignoresRunTimeError(ErrorType.NO_SUCH_PROPERTY) ) return;
+        String name = c.getName()+"."+property;
+        if ( e==null ) e = new STNoSuchPropertyException(null, null, name);
+        errMgr.runTimeError(this, scope, ErrorType.NO_SUCH_PROPERTY, e, name);
+    }
+
+    /** What {@link #getAttribute(InstanceScope, AttributeSite)} and
+     *  {@link #findAttribute} return for an attribute that isn't defined.
+     */
+    static final Object NO_SUCH_ATTRIBUTE = new Object() {
+        @Override
+        public String toString() {
+            return "<no such attribute>";
+        }
+    };
+
     /**
      * Find an attribute via dynamic scoping up enclosing scope chain. Only look
      * for a dictionary definition if the attribute is not found, so attributes
@@ -1236,6 +1976,18 @@ public class Interpreter {
      * Return {@link ST#EMPTY_ATTR} if found definition but no value.</p>
      */
     public Object getAttribute(InstanceScope scope, String name) {
+        Object o = findAttribute(scope, name);
+        // not found, report unknown attr
+        if ( o==NO_SUCH_ATTRIBUTE ) throw new STNoSuchAttributeException(name, scope);
+        if ( o instanceof LazyValue || o instanceof Future ) o = deferredValue(scope, o);
+        return o;
+    }
+
+    /** Like {@link #getAttribute(InstanceScope, String)} but return
+     *  {@link #NO_SUCH_ATTRIBUTE} rather than throw if there is no such
+     *  attribute.
+     */
+    Object findAttribute(InstanceScope scope, String name) {
         InstanceScope current = scope;
         while ( current!=null ) {
             ST p = current.st;
@@ -1252,22 +2004,48 @@ public class Interpreter {
         STGroup g = self.impl.nativeGroup;
         Object o = getDictionary(g, name);
         if ( o!=null ) return o;
-
-        // not found, report unknown attr
-        throw new STNoSuchAttributeException(name, scope);
+        return NO_SUCH_ATTRIBUTE;
     }
 
-    public Object getDictionary(STGroup g, String name) {
-        if ( g.isDictionary(name) ) {
-            return g.rawGetDictionary(name);
+    /**
+     * Like {@link #findAttribute} for the attribute named by an instruction.
+     * Where the attribute came from is cached in {@code site}, so as long as
+     * the scopes run the same templates we can go straight to the right one.
+     */
+    Object getAttribute(InstanceScope scope, AttributeSite site) {
+        AttributeSite.Resolution r = site.resolution;
+        if ( r!=null ) {
+            InstanceScope s = r.match(scope);
+            if ( s!=null ) return r.index>=0 ? s.st.locals[r.index] : r.dictionary;
         }
-        if ( g.imports!=null ) {
-            for (STGroup sup : g.imports) {
-                Object o = getDictionary(sup, name);
-                if ( o!=null ) return o;
+
+        int epoch = scope.st.impl.nativeGroup.getTemplateEpoch();
+        List<CompiledST> templates = new ArrayList<CompiledST>();
+        InstanceScope current = scope;
+        while ( current!=null ) {
+            ST p = current.st;
+            templates.add(p.impl);
+            FormalArgument localArg = null;
+            if ( p.impl.formalArguments!=null ) localArg = p.impl.formalArguments.get(site.name);
+            if ( localArg!=null ) {
+                site.resolution = new AttributeSite.Resolution(templates, localArg.index, null, epoch);
+                return p.locals[localArg.index];
             }
+            current = current.parent; // look up enclosing scope chain
         }
-        return null;
+        // got to root scope and no definition, try dictionaries in group and up
+        STGroup g = scope.st.impl.nativeGroup;
+        Object o = getDictionary(g, site.name);
+        if ( o!=null ) {
+            site.resolution = new AttributeSite.Resolution(templates, -1, o, epoch);
+            return o;
+        }
+
+        return NO_SUCH_ATTRIBUTE;
+    }
+
+    public Object getDictionary(STGroup g, String name) {
+        return g.resolveDictionary(name);
     }
 
     /**
@@ -0,0 +1,339 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4;
+
+import org.stringtemplate.v4.compiler.AttributeSite;
+import org.stringtemplate.v4.compiler.Compiler;
+import org.stringtemplate.v4.compiler.PropertySite;
+import org.stringtemplate.v4.compiler.TemplateSite;
+import org.stringtemplate.v4.compiler.TextRun;
+import org.stringtemplate.v4.jit.JITTemplate;
+
+/** Lets the helpers of {@link JITTemplate} run {@link Interpreter} code that
+ *  is package-private; installed when the interpreter first runs generated
+ *  code.
+ */
+final class JITBridge extends JITTemplate.Bridge {
+    static {
+        install(new JITBridge());
+    }
+
+    private JITBridge() { }
+
+    static int run(JITTemplate code, Interpreter interp, STWriter out, InstanceScope scope) {
+        return exec(code, interp, out, scope);
+    }
+
+    @Override
+    protected void load_str(Interpreter interp, String s) {
+        interp.operands[++interp.sp] = s;
+    }
+
+    @Override
+    protected void load_attr(Interpreter interp, InstanceScope scope, Object site) {
+        interp.load_attr(scope, (AttributeSite)site);
+    }
+
+    @Override
+    protected void load_local(Interpreter interp, InstanceScope scope, int valueIndex) {
+        interp.load_local(scope, valueIndex);
+    }
+
+    @Override
+    protected void load_prop(Interpreter interp, STWriter out, InstanceScope scope, Object site) {
+        interp.load_prop(out, scope, (PropertySite)site);
+    }
+
+    @Override
+    protected void load_prop_ind(Interpreter interp, STWriter out, InstanceScope scope) {
+        interp.load_prop_ind(out, scope);
+    }
+
+    @Override
+    protected void new_template(Interpreter interp, InstanceScope scope, Object site) {
+        interp.new_template(scope, (TemplateSite)site);
+    }
+
+    @Override
+    protected void new_ind(Interpreter interp, InstanceScope scope, int nargs) {
+        interp.new_ind(scope, nargs);
+    }
+
+    @Override
+    protected void new_box_args(Interpreter interp, InstanceScope scope, Object site) {
+        interp.new_box_args(scope, (TemplateSite)site);
+    }
+
+    @Override
+    protected void super_new(Interpreter interp, InstanceScope scope, Object site) {
+        interp.super_new(scope, (TemplateSite)site);
+    }
+
+    @Override
+    protected void super_new_box_args(Interpreter interp, InstanceScope scope, Object site) {
+        interp.super_new_box_args(scope, (TemplateSite)site);
+    }
+
+    @Override
+    protected void store_option(Interpreter interp, int optionIndex) {
+        interp.store_option(optionIndex);
+    }
+
+    @Override
+    protected void store_arg(Interpreter interp, String name) {
+        interp.store_arg(name);
+    }
+
+    @Override
+    protected int write(Interpreter interp, STWriter out, InstanceScope scope) {
+        return interp.write(out, scope);
+    }
+
+    @Override
+    protected int write_opt(Interpreter interp, STWriter out, InstanceScope scope) {
+        return interp.write_opt(out, scope);
+    }
+
+    @Override
+    protected int write_str(Interpreter interp, STWriter out, InstanceScope scope, String s) {
+        return interp.write_str(out, scope, s);
+    }
+
+    @Override
+    protected int write_text(Interpreter interp, STWriter out, InstanceScope scope, Object run) {
+        return interp.write_text(out, scope, (TextRun)run);
+    }
+
+    @Override
+    protected int write_local(Interpreter interp, STWriter out, InstanceScope scope, int valueIndex) {
+        return interp.write_local(out, scope, valueIndex);
+    }
+
+    @Override
+    protected void load_local_prop(Interpreter interp, STWriter out, InstanceScope scope,
+                                          int valueIndex, Object site)
+    {
+        interp.load_local_prop(out, scope, valueIndex, (PropertySite)site);
+    }
+
+    @Override
+    protected int write_local_prop(Interpreter interp, STWriter out, InstanceScope scope,
+                                          int valueIndex, Object site)
+    {
+        return interp.write_local_prop(out, scope, valueIndex, (PropertySite)site);
+    }
+
+    @Override
+    protected int write_opt_const(Interpreter interp, STWriter out, InstanceScope scope,
+                                         Object optionStrings)
+    {
+        return interp.write_opt_const(out, scope, (String[])optionStrings);
+    }
+
+    @Override
+    protected int write_attr(Interpreter interp, STWriter out, InstanceScope scope, Object site) {
+        return interp.write_attr(out, scope, (AttributeSite)site);
+    }
+
+    @Override
+    protected void map(Interpreter interp, InstanceScope scope) {
+        interp.map(scope, false);
+    }
+
+    @Override
+    protected void map_streamed(Interpreter interp, InstanceScope scope) {
+        interp.map(scope, true);
+    }
+
+    @Override
+    protected void rot_map(Interpreter interp, InstanceScope scope, int nmaps) {
+        interp.rot_map(scope, nmaps, false);
+    }
+
+    @Override
+    protected void rot_map_streamed(Interpreter interp, InstanceScope scope, int nmaps) {
+        interp.rot_map(scope, nmaps, true);
+    }
+
+    @Override
+    protected void zip_map(Interpreter interp, InstanceScope scope, int nmaps) {
+        interp.zip_map(scope, nmaps, false);
+    }
+
+    @Override
+    protected void zip_map_streamed(Interpreter interp, InstanceScope scope, int nmaps) {
+        interp.zip_map(scope, nmaps, true);
+    }
+
+    @Override
+    protected boolean brf(Interpreter interp) {
+        return !interp.testAttributeTrue(interp.operands[interp.sp--]);
+    }
+
+    @Override
+    protected boolean brf_local(Interpreter interp, InstanceScope scope, int valueIndex) {
+        return !interp.testAttributeTrue(interp.localValue(scope, valueIndex));
+    }
+
+    @Override
+    protected boolean brf_attr(Interpreter interp, InstanceScope scope, Object site) {
+        return !interp.testAttributeTrue(interp.attributeValue(scope, (AttributeSite)site));
+    }
+
+    @Override
+    protected void options(Interpreter interp) {
+        interp.operands[++interp.sp] = new Object[Compiler.NUM_OPTIONS];
+    }
+
+    @Override
+    protected void args(Interpreter interp) {
+        interp.operands[++interp.sp] = new Interpreter.ArgumentsMap();
+    }
+
+    @Override
+    protected void passthru(Interpreter interp, InstanceScope scope, String name) {
+        Interpreter.ArgumentsMap attrs = (Interpreter.ArgumentsMap)interp.operands[interp.sp];
+        interp.passthru(scope, name, attrs);
+    }
+
+    @Override
+    protected void list(Interpreter interp) {
+        interp.operands[++interp.sp] = new Interpreter.ObjectList();
+    }
+
+    @Override
+    protected void add(Interpreter interp, InstanceScope scope) {
+        interp.add(scope);
+    }
+
+    @Override
+    protected void tostr(Interpreter interp, STWriter out, InstanceScope scope) {
+        Object v = interp.toString(out, scope, interp.operands[interp.sp]);
+        interp.operands[interp.sp] = v;
+    }
+
+    @Override
+    protected void first(Interpreter interp, InstanceScope scope) {
+        Object v = interp.first(scope, interp.operands[interp.sp]);
+        interp.operands[interp.sp] = v;
+    }
+
+    @Override
+    protected void last(Interpreter interp, InstanceScope scope) {
+        Object v = interp.last(scope, interp.operands[interp.sp]);
+        interp.operands[interp.sp] = v;
+    }
+
+    @Override
+    protected void rest(Interpreter interp, InstanceScope scope) {
+        Object v = interp.rest(scope, interp.operands[interp.sp]);
+        interp.operands[interp.sp] = v;
+    }
+
+    @Override
+    protected void trunc(Interpreter interp, InstanceScope scope) {
+        Object v = interp.trunc(scope, interp.operands[interp.sp]);
+        interp.operands[interp.sp] = v;
+    }
+
+    @Override
+    protected void strip(Interpreter interp, InstanceScope scope) {
+        Object v = interp.strip(scope, interp.operands[interp.sp]);
+        interp.operands[interp.sp] = v;
+    }
+
+    @Override
+    protected void trim(Interpreter interp, InstanceScope scope) {
+        Object v = interp.trim(scope, interp.operands[interp.sp]);
+        interp.operands[interp.sp] = v;
+    }
+
+    @Override
+    protected void length(Interpreter interp) {
+        Object v = interp.length(interp.operands[interp.sp]);
+        interp.operands[interp.sp] = v;
+    }
+
+    @Override
+    protected void strlen(Interpreter interp, InstanceScope scope) {
+        Object v = interp.strlen(scope, interp.operands[interp.sp]);
+        interp.operands[interp.sp] = v;
+    }
+
+    @Override
+    protected void reverse(Interpreter interp, InstanceScope scope) {
+        Object v = interp.reverse(scope, interp.operands[interp.sp]);
+        interp.operands[interp.sp] = v;
+    }
+
+    @Override
+    protected void not(Interpreter interp) {
+        boolean v = !interp.testAttributeTrue(interp.operands[interp.sp]);
+        interp.operands[interp.sp] = v;
+    }
+
+    @Override
+    protected void or(Interpreter interp) {
+        interp.or();
+    }
+
+    @Override
+    protected void and(Interpreter interp) {
+        interp.and();
+    }
+
+    @Override
+    protected void indent(Interpreter interp, STWriter out, InstanceScope scope, int strIndex) {
+        interp.indent(out, scope, strIndex);
+    }
+
+    @Override
+    protected void newline(Interpreter interp, STWriter out, InstanceScope scope, int prevOpcode) {
+        interp.newline(out, scope, prevOpcode);
+    }
+
+    @Override
+    protected void pop(Interpreter interp) {
+        interp.sp--; // throw away top of stack
+    }
+
+    @Override
+    protected void push_null(Interpreter interp) {
+        interp.operands[++interp.sp] = null;
+    }
+
+    @Override
+    protected void push_true(Interpreter interp) {
+        interp.operands[++interp.sp] = true;
+    }
+
+    @Override
+    protected void push_false(Interpreter interp) {
+        interp.operands[++interp.sp] = false;
+    }
+}
@@ -35,6 +35,7 @@ import org.stringtemplate.v4.debug.EvalTemplateEvent;
 import org.stringtemplate.v4.debug.InterpEvent;
 import org.stringtemplate.v4.gui.STViz;
 import org.stringtemplate.v4.misc.Aggregate;
+import org.stringtemplate.v4.misc.ArrayIterator;
 import org.stringtemplate.v4.misc.ErrorBuffer;
 import org.stringtemplate.v4.misc.ErrorManager;
 import org.stringtemplate.v4.misc.MultiMap;
@@ -53,6 +54,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /** An instance of the StringTemplate. It consists primarily of
  *  a {@linkplain ST#impl reference} to its implementation (shared among all
@@ -100,6 +107,12 @@ public class ST {
     /** The implementation for this template among all instances of same template . */
     public CompiledST impl;
 
+    /** {@link #impl} is shared with instances cloned from this one, or with
+     *  the prototype this one was cloned from; {@link #add} must copy it
+     *  before faking a formal argument definition.
+     */
+    boolean implShared;
+
     /** Safe to simultaneously write via {@link #add}, which is synchronized.
      *  Reading during exec is, however, NOT synchronized.  So, not thread safe
      *  to add attributes while it is being evaluated.  Initialized to
@@ -180,25 +193,29 @@ public class ST {
     /** Clone a prototype template.
      *  Copy all fields minus {@link #debugState}; don't delegate to {@link #ST()},
      *  which creates {@link ConstructionEvent}.
+     *  <p>
+     *  We hold {@code proto}'s lock while copying, like {@link #add} does, so
+     *  a concurrent {@code add} to the prototype sees it marked shared. Other
+     *  changes to the prototype, such as {@link #remove}, must not race with
+     *  this constructor.</p>
      */
     public ST(ST proto) {
-        try {
-            // Because add() can fake a formal arg def, make sure to clone impl
-            // entire impl so formalArguments list is cloned as well. Don't want
-            // further derivations altering previous arg defs. See
-            // testRedefOfKeyInCloneAfterAddingAttribute().
-            this.impl = proto.impl.clone();
-        }
-        catch (CloneNotSupportedException e) {
-            throw new RuntimeException(e);
-        }
-        if ( proto.locals!=null ) {
-            this.locals = new Object[proto.locals.length];
-            System.arraycopy(proto.locals, 0, this.locals, 0, proto.locals.length);
-        }
-        else if (impl.formalArguments != null && !impl.formalArguments.isEmpty()) {
-            this.locals = new Object[impl.formalArguments.size()];
-            Arrays.fill(this.locals, EMPTY_ATTR);
+        synchronized (proto) {
+            // Share impl; we only need our own locals. Because add() can fake a
+            // formal arg def, it clones impl (and so formalArguments) first if
+            // impl is shared. Don't want further derivations altering previous
+            // arg defs. See testRedefOfKeyInCloneAfterAddingAttribute().
+            this.impl = proto.impl;
+            this.implShared = true;
+            proto.implShared = true;
+            if ( proto.locals!=null ) {
+                this.locals = new Object[proto.locals.length];
+                System.arraycopy(proto.locals, 0, this.locals, 0, proto.locals.length);
+            }
+            else if (impl.formalArguments != null && !impl.formalArguments.isEmpty()) {
+                this.locals = new Object[impl.formalArguments.size()];
+                Arrays.fill(this.locals, EMPTY_ATTR);
+            }
         }
         this.groupThatCreatedThisInstance = proto.groupThatCreatedThisInstance;
     }
@@ -241,6 +258,15 @@ public class ST {
                 arg = impl.formalArguments.get(name);
             }
             if ( arg==null ) { // not defined
+                if ( implShared ) {
+                    try {
+                        impl = impl.clone();
+                    }
+                    catch (CloneNotSupportedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    implShared = false;
+                }
                 arg = new FormalArgument(name);
                 impl.addArg(arg);
                 if ( locals==null ) locals = new Object[1];
@@ -275,8 +301,12 @@ public class ST {
             if (value instanceof Object[]) {
                 multi.addAll(Arrays.asList((Object[])value));
             }
-            else {
-                multi.addAll(convertToAttributeList(value));
+            else { // copy primitive array straight into the list
+                int length = Array.getLength(value);
+                multi.ensureCapacity(multi.size() + length);
+                for (int i = 0; i < length; i++) {
+                    multi.add(ArrayIterator.get(value, i));
+                }
             }
         }
         else {
@@ -402,7 +432,7 @@ public class ST {
             int length = Array.getLength(curvalue);
             multi = new AttributeList(length);
             for (int i = 0; i < length; i++) {
-                multi.add(Array.get(curvalue, i));
+                multi.add(ArrayIterator.get(curvalue, i));
             }
         }
         else {
@@ -419,37 +449,38 @@ public class ST {
     public boolean isAnonSubtemplate() { return impl.isAnonSubtemplate; }
 
     public int write(STWriter out) throws IOException {
-        Interpreter interp = new Interpreter(groupThatCreatedThisInstance,
-                                             impl.nativeGroup.errMgr,
-                                             false);
-        InstanceScope scope = new InstanceScope(null, this);
-        return interp.exec(out, scope);
+        Interpreter interp =
+            Interpreter.obtain(groupThatCreatedThisInstance, Locale.getDefault(), impl.nativeGroup.errMgr);
+        return writeAndRelease(out, interp);
     }
 
     public int write(STWriter out, Locale locale) {
-        Interpreter interp = new Interpreter(groupThatCreatedThisInstance,
-                                             locale,
-                                             impl.nativeGroup.errMgr,
-                                             false);
-        InstanceScope scope = new InstanceScope(null, this);
-        return interp.exec(out, scope);
+        Interpreter interp =
+            Interpreter.obtain(groupThatCreatedThisInstance, locale, impl.nativeGroup.errMgr);
+        return writeAndRelease(out, interp);
     }
 
     public int write(STWriter out, STErrorListener listener) {
-        Interpreter interp = new Interpreter(groupThatCreatedThisInstance,
-                                             new ErrorManager(listener),
-                                             false);
-        InstanceScope scope = new InstanceScope(null, this);
-        return interp.exec(out, scope);
+        Interpreter interp =
+            Interpreter.obtain(groupThatCreatedThisInstance, Locale.getDefault(), listener);
+        return writeAndRelease(out, interp);
     }
 
     public int write(STWriter out, Locale locale, STErrorListener listener) {
-        Interpreter interp = new Interpreter(groupThatCreatedThisInstance,
-                                             locale,
-                                             new ErrorManager(listener),
-                                             false);
-        InstanceScope scope = new InstanceScope(null, this);
-        return interp.exec(out, scope);
+        Interpreter interp =
+            Interpreter.obtain(groupThatCreatedThisInstance, locale, listener);
+        return writeAndRelease(out, interp);
+    }
+
+    /** Execute this template with a pooled interpreter and give it back. */
+    private int writeAndRelease(STWriter out, Interpreter interp) {
+        try {
+            InstanceScope scope = new InstanceScope(null, this);
+            return interp.exec(out, scope);
+        }
+        finally {
+            interp.release();
+        }
     }
 
     public int write(File outputFile, STErrorListener listener) throws IOException {
@@ -506,6 +537,78 @@ public class ST {
         return out.toString();
     }
 
+    /** Like {@link #renderAsync(Executor, Locale, int)} with the default
+     *  locale and no line wrapping.
+     */
+    public Future<String> renderAsync(Executor executor) {
+        return renderAsync(executor, Locale.getDefault(), STWriter.NO_WRAP);
+    }
+
+    /**
+     * Render this template on {@code executor} rather than the calling
+     * thread, and return the text through the returned future.
+     * <p>
+     * The task first waits, in {@link Future#get()}, for every {@link Future}
+     * this template was given as an attribute value or as an element of a
+     * multi-valued attribute, and then renders. It holds one of
+     * {@code executor}'s threads the whole time, blocked while it waits:
+     * {@link Future} has no way to call us back when it's done, so the only
+     * alternative would be polling. The calling thread never waits.</p>
+     * <p>
+     * In this render only, a template reading a future attribute or property
+     * gets the future's result, so once the attributes are ready the render
+     * itself only blocks for futures it finds in the model. The other render
+     * and write methods treat futures like any other object. Don't change
+     * this template's attributes until the returned future is done.</p>
+     */
+    public Future<String> renderAsync(Executor executor, final Locale locale, final int lineWidth) {
+        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws InterruptedException {
+                awaitAttributes();
+                StringWriter out = new StringWriter();
+                STWriter wr = new AutoIndentWriter(out);
+                wr.setLineWidth(lineWidth);
+                Interpreter interp =
+                    Interpreter.obtain(groupThatCreatedThisInstance, locale, impl.nativeGroup.errMgr);
+                interp.awaitFutures = true;
+                writeAndRelease(wr, interp);
+                return out.toString();
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    /** Wait for the futures among our attribute values to finish. They run
+     *  concurrently, so this takes as long as the slowest one. Failures are
+     *  left for the render to report.
+     */
+    private void awaitAttributes() throws InterruptedException {
+        if ( locals==null ) return;
+        for (Object o : locals) {
+            if ( o instanceof AttributeList ) {
+                for (Object e : (AttributeList)o) await(e);
+            }
+            else {
+                await(o);
+            }
+        }
+    }
+
+    private static void await(Object o) throws InterruptedException {
+        if ( !(o instanceof Future) ) return;
+        try {
+            ((Future<?>)o).get();
+        }
+        catch (ExecutionException ee) {
+            // reported when the template reads it
+        }
+        catch (CancellationException ce) {
+            // reported when the template reads it
+        }
+    }
+
     // LAUNCH A WINDOW TO INSPECT TEMPLATE HIERARCHY
 
     public STViz inspect() { return inspect(Locale.getDefault()); }
@@ -34,12 +34,15 @@ import org.antlr.runtime.CommonToken;
 import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.RecognitionException;
 import org.antlr.runtime.Token;
+import org.stringtemplate.v4.compiler.AttributeSite;
 import org.stringtemplate.v4.compiler.CompiledST;
 import org.stringtemplate.v4.compiler.Compiler;
 import org.stringtemplate.v4.compiler.FormalArgument;
 import org.stringtemplate.v4.compiler.GroupLexer;
 import org.stringtemplate.v4.compiler.GroupParser;
 import org.stringtemplate.v4.compiler.STException;
+import org.stringtemplate.v4.compiler.PropertySite;
+import org.stringtemplate.v4.compiler.TemplateSite;
 import org.stringtemplate.v4.gui.STViz;
 import org.stringtemplate.v4.misc.Aggregate;
 import org.stringtemplate.v4.misc.AggregateModelAdaptor;
@@ -65,6 +68,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** A directory or directory tree of {@code .st} template files and/or group files.
  *  Individual template files contain formal template definitions. In a sense,
@@ -128,6 +133,9 @@ public class STGroup {
     protected Map<String, Map<String,Object>> dictionaries =
         Collections.synchronizedMap(new HashMap<String, Map<String,Object>>());
 
+    /** Every dictionary visible from this group; see {@link #resolveDictionary}. */
+    private volatile DictionaryTable dictionaryTable;
+
     /** A dictionary that allows people to register a renderer for
      *  a particular kind of object for any template evaluated relative to this
      *  group.  For example, a date should be formatted differently depending
@@ -145,9 +153,11 @@ public class STGroup {
      *  </pre>
      *  So it works if {@code o} is subclass or implements {@code t}.
      *  <p>
-     *  This structure is synchronized.</p>
+     *  This structure is a {@link TypeRegistry}, safe to read from any thread
+     *  without locking. It is {@code null} until the first renderer is
+     *  registered; volatile so a thread that sees it also sees it built.</p>
      */
-    protected Map<Class<?>, AttributeRenderer<?>> renderers;
+    protected volatile Map<Class<?>, AttributeRenderer<?>> renderers;
 
     /** A dictionary that allows people to register a model adaptor for
      *  a particular kind of object (subclass or implementation). Applies
@@ -159,13 +169,20 @@ public class STGroup {
      *  The last one you register gets priority; do least to most specific.</p>
      */
     protected final Map<Class<?>, ModelAdaptor<?>> adaptors;
+
+    /**
+     * Changes whenever {@link #adaptors} changes. Property lookups cached by
+     * the interpreter (see {@link PropertySite}) are only valid for the version
+     * they were made in.
+     */
+    private final AtomicInteger modelAdaptorVersion = new AtomicInteger();
     {
         TypeRegistry<ModelAdaptor<?>> registry = new TypeRegistry<ModelAdaptor<?>>();
         registry.put(Object.class, new ObjectModelAdaptor<Object>());
         registry.put(ST.class, new STModelAdaptor());
         registry.put(Map.class, new MapModelAdaptor());
         registry.put(Aggregate.class, new AggregateModelAdaptor());
-        adaptors = Collections.synchronizedMap(registry);
+        adaptors = registry; // final, and TypeRegistry does its own synchronization
     }
 
     /** Used to indicate that the template doesn't exist.
@@ -184,6 +201,18 @@ public class STGroup {
      */
     public static boolean trackCreationEvents = false;
 
+    /** Hands out the values of {@link #changedAt}; never repeats. */
+    private static final AtomicInteger epochs = new AtomicInteger();
+
+    /**
+     * The value {@link #epochs} gave us when templates, dictionaries, or
+     * imports of this group last changed.
+     */
+    private volatile int changedAt;
+
+    /** {@link #imports} as of the last change; see {@link #getTemplateEpoch}. */
+    private volatile STGroup[] importedGroups = new STGroup[0];
+
     /** v3 compatibility; used to iterate across {@link Map#values()} instead of
      *  v4's default {@link Map#keySet()}.
      *  But to convert ANTLR templates, it's too hard to find without
@@ -191,6 +220,20 @@ public class STGroup {
      */
     public boolean iterateAcrossValues = false;
 
+    /**
+     * Remember each property value read while rendering a template of this
+     * group, keyed by the object's identity and the property, so a template
+     * that reads {@code order.customer} many times calls the getter once per
+     * render. Only worth it for getters that do real work, and only correct
+     * if property values don't change while a template renders.
+     * {@link #getPropertyCacheHits} and {@link #getPropertyCacheMisses} tell
+     * how well it works.
+     */
+    public boolean memoizeProperties = false;
+
+    private final AtomicLong propertyCacheHits = new AtomicLong();
+    private final AtomicLong propertyCacheMisses = new AtomicLong();
+
     public static STGroup defaultGroup = new STGroup();
 
     /** The {@link ErrorManager} for entire group; all compilations and executions.
@@ -242,6 +285,41 @@ public class STGroup {
         return st;
     }
 
+    /** Same as {@link #getEmbeddedInstanceOf(Interpreter, InstanceScope, String)}
+     *  but reuses what {@code site} resolved to last time if templates haven't
+     *  changed since.
+     */
+    protected ST getEmbeddedInstanceOf(Interpreter interp,
+                                       InstanceScope scope,
+                                       TemplateSite site)
+    {
+        String prefix = scope.st.impl.prefix;
+        TemplateSite.Resolution r = site.getResolution(this, prefix);
+        if ( r==null ) {
+            int epoch = getTemplateEpoch();
+            String fullyQualifiedName = site.name;
+            if ( fullyQualifiedName.charAt(0)!='/' ) {
+                fullyQualifiedName = prefix + fullyQualifiedName;
+            }
+            if ( verbose ) System.out.println("getEmbeddedInstanceOf(" + fullyQualifiedName +")");
+            CompiledST code = lookupTemplate(fullyQualifiedName);
+            if ( code==null ) {
+                errMgr.runTimeError(interp, scope,
+                                    ErrorType.NO_SUCH_TEMPLATE,
+                                    fullyQualifiedName);
+                return createStringTemplateInternally(new CompiledST());
+            }
+            r = new TemplateSite.Resolution(this, prefix, epoch, code, this);
+            site.resolution = r;
+        }
+        ST st = createStringTemplate(r.code);
+        // this is only called internally. wack any debug ST create events
+        if ( trackCreationEvents ) {
+            st.debugState.newSTEvent = null; // toss it out
+        }
+        return st;
+    }
+
     /** Create singleton template for use with dictionary values. */
     public ST createSingleton(Token templateToken) {
         String template;
@@ -304,6 +382,7 @@ public class STGroup {
             imports.remove(imp);
         }
         importsToClearOnUnload.clear();
+        templatesChanged();
     }
 
     /** Load st from disk if directory or load whole group file if .stg file (then
@@ -344,6 +423,56 @@ public class STGroup {
         return null;
     }
 
+    /**
+     * Return dictionary {@code name} as seen from this group: its own if it
+     * defines one, else the first one found searching its imports in order,
+     * depth first. Answers come from a table covering the whole import graph,
+     * rebuilt whenever templates, dictionaries, or imports of this group or a
+     * group it imports change (see {@link #getTemplateEpoch}). Defining
+     * templates or dictionaries in other groups does not touch it.
+     */
+    public Map<String,Object> resolveDictionary(String name) {
+        DictionaryTable table = dictionaryTable;
+        if ( table==null || table.epoch!=getTemplateEpoch() ) {
+            table = new DictionaryTable(this);
+            dictionaryTable = table;
+        }
+        return table.dictionaries.get(name);
+    }
+
+    /** The dictionaries of a group and its imports, flattened so that the
+     *  one {@link #resolveDictionary} should find for each name is the one in
+     *  {@link #dictionaries}. Never modified once built; {@link #epoch} is the
+     *  epoch of the group it was built for.
+     */
+    private static final class DictionaryTable {
+        final int epoch;
+        final Map<String, Map<String,Object>> dictionaries =
+            new HashMap<String, Map<String,Object>>();
+
+        DictionaryTable(STGroup group) {
+            // loading groups may change the epoch again; we'll just rebuild
+            epoch = group.getTemplateEpoch();
+            add(group, new HashSet<STGroup>());
+        }
+
+        void add(STGroup g, Set<STGroup> visited) {
+            if ( !visited.add(g) ) return;
+            g.load(); // make sure dictionaries and imports exist
+            Map<String, Map<String,Object>> own = g.dictionaries;
+            synchronized (own) {
+                for (Map.Entry<String, Map<String,Object>> e : own.entrySet()) {
+                    if ( e.getValue()!=null && !dictionaries.containsKey(e.getKey()) ) {
+                        dictionaries.put(e.getKey(), e.getValue());
+                    }
+                }
+            }
+            for (STGroup imp : new ArrayList<STGroup>(g.imports)) {
+                add(imp, visited);
+            }
+        }
+    }
+
     public CompiledST rawGetTemplate(String name) { return templates.get(name); }
     public Map<String,Object> rawGetDictionary(String name) { return dictionaries.get(name); }
     public boolean isDictionary(String name) { return dictionaries.get(name)!=null; }
@@ -496,10 +625,40 @@ public class STGroup {
         code.nativeGroup = this;
         code.templateDefStartToken = defT;
         templates.put(name, code);
+        templatesChanged();
     }
 
     public void undefineTemplate(String name) {
         templates.remove(name);
+        templatesChanged();
+    }
+
+    /**
+     * Return the template epoch of this group. It changes whenever templates,
+     * dictionaries, or imports of this group or any group it imports change.
+     * Template and dictionary references cached by the interpreter (see
+     * {@link TemplateSite} and {@link AttributeSite}) are only valid for the
+     * epoch they were resolved in. Changes to unrelated groups leave it alone.
+     */
+    public int getTemplateEpoch() {
+        // each change takes a fresh, larger value, so the max always moves
+        int epoch = changedAt;
+        for (STGroup g : importedGroups) {
+            epoch = Math.max(epoch, g.getTemplateEpoch());
+        }
+        return epoch;
+    }
+
+    /**
+     * Invalidate template and dictionary references cached by the
+     * interpreter for this group and the groups importing it. Groups call this
+     * whenever they define, undefine, or unload templates, define
+     * dictionaries, or add imports; subclasses that change {@link #templates},
+     * {@link #dictionaries}, or {@link #imports} directly must call it too.
+     */
+    protected void templatesChanged() {
+        importedGroups = imports.toArray(new STGroup[0]);
+        changedAt = epochs.incrementAndGet();
     }
 
     /** Compile a template. */
@@ -541,6 +700,7 @@ public class STGroup {
      */
     public void defineDictionary(String name, Map<String,Object> mapping) {
         dictionaries.put(name, mapping);
+        templatesChanged();
     }
 
     /**
@@ -656,6 +816,7 @@ public class STGroup {
     protected void importTemplates(STGroup g, boolean clearOnUnload) {
         if ( g==null ) return;
         imports.add(g);
+        templatesChanged();
         if (clearOnUnload) {
             importsToClearOnUnload.add(g);
         }
@@ -743,6 +904,40 @@ public class STGroup {
         }
 
         adaptors.put(attributeType, adaptor);
+        modelAdaptorsChanged();
+    }
+
+    /** Number of property reads answered from the per-render cache since
+     *  {@link #memoizeProperties} was turned on.
+     */
+    public long getPropertyCacheHits() {
+        return propertyCacheHits.get();
+    }
+
+    /** Number of property reads that had to ask a model adaptor while
+     *  {@link #memoizeProperties} was on.
+     */
+    public long getPropertyCacheMisses() {
+        return propertyCacheMisses.get();
+    }
+
+    /** Add the cache counts of one render; see {@link #memoizeProperties}. */
+    void countPropertyCacheUse(long hits, long misses) {
+        propertyCacheHits.addAndGet(hits);
+        propertyCacheMisses.addAndGet(misses);
+    }
+
+    /** Return the current model adaptor version; see {@link PropertySite}. */
+    public int getModelAdaptorVersion() {
+        return modelAdaptorVersion.get();
+    }
+
+    /**
+     * Invalidate property lookups cached by the interpreter for this group.
+     * Subclasses that change {@link #adaptors} directly must call this.
+     */
+    protected void modelAdaptorsChanged() {
+        modelAdaptorVersion.incrementAndGet();
     }
 
     public <T> ModelAdaptor<? super T> getModelAdaptor(Class<T> attributeType) {
@@ -765,11 +960,18 @@ public class STGroup {
                                                attributeType.getSimpleName());
         }
 
-        if ( renderers == null ) {
-            renderers = Collections.synchronizedMap(new TypeRegistry<AttributeRenderer<?>>());
+        Map<Class<?>, AttributeRenderer<?>> registry = renderers;
+        if ( registry==null ) {
+            synchronized (this) { // don't lose a registry made by another thread
+                registry = renderers;
+                if ( registry==null ) {
+                    registry = new TypeRegistry<AttributeRenderer<?>>();
+                    renderers = registry;
+                }
+            }
         }
 
-        renderers.put(attributeType, r);
+        registry.put(attributeType, r);
 
         if ( recursive ) {
             load(); // make sure imports exist (recursively)
@@ -791,12 +993,13 @@ public class STGroup {
      *  renderer with more specific format names.</p>
      */
     public <T> AttributeRenderer<? super T> getAttributeRenderer(Class<T> attributeType) {
-        if ( renderers==null ) {
+        Map<Class<?>, AttributeRenderer<?>> registry = renderers;
+        if ( registry==null ) {
             return null;
         }
 
         //noinspection unchecked
-        return (AttributeRenderer<? super T>) renderers.get(attributeType);
+        return (AttributeRenderer<? super T>) registry.get(attributeType);
     }
 
     public ST createStringTemplate(CompiledST impl) {
@@ -0,0 +1,60 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4;
+
+import org.stringtemplate.v4.misc.STNoSuchPropertyException;
+
+/**
+ * A {@link ModelAdaptor} that can report a missing property without throwing.
+ * Templates often probe for properties that may not be there, and building an
+ * {@link STNoSuchPropertyException} for each probe is expensive. The
+ * {@link Interpreter} calls {@link #tryGetProperty} instead of
+ * {@link #getProperty} on adaptors that implement this interface, and only
+ * builds an exception if the error listener wants to hear about it.
+ *
+ * @param <T>
+ *     the type of values this adaptor can handle.
+ */
+public interface TryModelAdaptor<T> extends ModelAdaptor<T> {
+    /** What {@link #tryGetProperty} returns for a missing property. */
+    Object NO_SUCH_PROPERTY = new Object() {
+        @Override
+        public String toString() {
+            return "<no such property>";
+        }
+    };
+
+    /**
+     * Like {@link #getProperty}, but return {@link #NO_SUCH_PROPERTY} rather
+     * than throw {@link STNoSuchPropertyException} if {@code model} doesn't
+     * have the property. Other failures, such as a getter that throws, may
+     * still throw.
+     */
+    Object tryGetProperty(Interpreter interp, ST self, T model, Object property, String propertyName)
+        throws STNoSuchPropertyException;
+}
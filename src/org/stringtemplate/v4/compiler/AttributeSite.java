@@ -0,0 +1,121 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.compiler;
+
+import org.stringtemplate.v4.InstanceScope;
+import org.stringtemplate.v4.STGroup;
+
+import java.util.List;
+
+/**
+ * The operand of a {@code load_attr}, {@code write_attr}, or {@code brf_attr}
+ * instruction in {@link LinkedCode}. Besides the attribute name, it remembers
+ * where dynamic scoping found the attribute the last time the instruction
+ * executed: the number of scopes up the {@link InstanceScope} chain and the
+ * index into that template's locals, or the dictionary it named.
+ * <p>
+ * A {@link Resolution} applies to a lookup whose scopes run the same
+ * templates, up to the one that had the attribute, as the lookup it was
+ * computed for. That costs a reference comparison per scope instead of a
+ * {@link CompiledST#formalArguments} lookup. Templates without formal
+ * arguments define arguments as attributes are added, so for those the number
+ * of arguments must not have changed either. Dictionaries are only valid until
+ * templates, dictionaries, or imports of the innermost template's native group,
+ * or of a group it imports, change (see {@link STGroup#getTemplateEpoch}).</p>
+ */
+public final class AttributeSite {
+    public final String name;
+
+    /** Last successful resolution of {@link #name}; {@code null} if none. */
+    public volatile Resolution resolution;
+
+    public AttributeSite(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /** The number of formal arguments of {@code impl} if it can still get
+     *  more, or -1.
+     */
+    static int growableArgCount(CompiledST impl) {
+        if ( impl.hasFormalArgs ) return -1;
+        return impl.formalArguments!=null ? impl.formalArguments.size() : 0;
+    }
+
+    public static final class Resolution {
+        /** The templates of the scopes searched, innermost first. */
+        public final CompiledST[] templates;
+        /** {@link #growableArgCount} of each of {@link #templates}. */
+        final int[] argCounts;
+        /** Index into the locals of the last scope, or -1 for a dictionary. */
+        public final int index;
+        /** The dictionary {@link #name} refers to if {@link #index} is -1. */
+        public final Object dictionary;
+        /** {@link STGroup#getTemplateEpoch} of the native group of
+         *  {@code templates[0]} before the lookup started.
+         */
+        public final int epoch;
+
+        public Resolution(List<CompiledST> templates, int index, Object dictionary, int epoch) {
+            this.templates = templates.toArray(new CompiledST[templates.size()]);
+            this.argCounts = new int[this.templates.length];
+            for (int i = 0; i < this.templates.length; i++) {
+                argCounts[i] = growableArgCount(this.templates[i]);
+            }
+            this.index = index;
+            this.dictionary = dictionary;
+            this.epoch = epoch;
+        }
+
+        /** Return the scope whose locals hold the attribute, or the root scope
+         *  for a dictionary, if this resolution applies to a lookup starting
+         *  at {@code scope}; else {@code null}.
+         */
+        public InstanceScope match(InstanceScope scope) {
+            InstanceScope current = scope;
+            int last = templates.length - 1;
+            for (int i = 0; ; i++) {
+                CompiledST impl = current.st.impl;
+                if ( impl!=templates[i] ) return null;
+                if ( argCounts[i]>=0 && argCounts[i]!=growableArgCount(impl) ) return null;
+                if ( i==last ) break;
+                current = current.parent;
+                if ( current==null ) return null;
+            }
+            if ( index<0 ) { // must have searched the whole chain
+                if ( current.parent!=null ) return null;
+                if ( epoch!=templates[0].nativeGroup.getTemplateEpoch() ) return null;
+            }
+            return current;
+        }
+    }
+}
@@ -27,6 +27,8 @@
  */
 package org.stringtemplate.v4.compiler;
 
+import java.util.Arrays;
+
 public class Bytecode {
     public static final int MAX_OPNDS = 2;
     public static final int OPND_SIZE_IN_BYTES = 2;
@@ -107,12 +109,18 @@ public class Bytecode {
     public static final short INSTR_TRUE            = 45; // push true value
     public static final short INSTR_FALSE           = 46;
 
-    // combined instructions
+    // combined instructions; see BytecodeOptimizer
 
     public static final short INSTR_WRITE_STR       = 47; // load_str n, write
-    public static final short INSTR_WRITE_LOCAL     = 48; // TODO load_local n, write
+    public static final short INSTR_WRITE_LOCAL     = 48; // load_local n, write
+    public static final short INSTR_LOAD_LOCAL_PROP = 49; // load_local n, load_prop s
+    public static final short INSTR_WRITE_LOCAL_PROP = 50; // load_local n, load_prop s, write
+    public static final short INSTR_WRITE_ATTR      = 51; // load_attr s, write
+    public static final short INSTR_BRF_LOCAL       = 52; // load_local n, brf a
+    public static final short INSTR_BRF_ATTR        = 53; // load_attr s, brf a
+    public static final short INSTR_WRITE_OPT_CONST = 54; // options, (load_str s, store_option n)*, write_opt
 
-    public static final short MAX_BYTECODE          = 48;
+    public static final short MAX_BYTECODE          = 54;
 
     /** Used for assembly/disassembly; describes instruction set */
     public static Instruction[] instructions = new Instruction[] {
@@ -165,5 +173,99 @@ public class Bytecode {
         new Instruction("false"),
         new Instruction("write_str", OperandType.STRING),
         new Instruction("write_local",OperandType.INT),
+        new Instruction("load_local_prop",OperandType.INT,OperandType.STRING),
+        new Instruction("write_local_prop",OperandType.INT,OperandType.STRING),
+        new Instruction("write_attr",OperandType.STRING),
+        new Instruction("brf_local",OperandType.INT,OperandType.ADDR),
+        new Instruction("brf_attr",OperandType.STRING,OperandType.ADDR),
+        new Instruction("write_opt_const",OperandType.INT),
     };
+
+    /** Return how much the instruction {@code opcode} with operands
+     *  {@code a} and {@code b} changes the size of the operand stack.
+     */
+    public static int stackEffect(short opcode, int a, int b) {
+        switch ( opcode ) {
+            case INSTR_LOAD_STR :
+            case INSTR_LOAD_ATTR :
+            case INSTR_LOAD_LOCAL :
+            case INSTR_OPTIONS :
+            case INSTR_ARGS :
+            case INSTR_LIST :
+            case INSTR_NULL :
+            case INSTR_TRUE :
+            case INSTR_FALSE :
+            case INSTR_LOAD_LOCAL_PROP :
+                return 1;
+            case INSTR_NEW :
+            case INSTR_SUPER_NEW :
+                return 1 - b; // pop args, push instance
+            case INSTR_NEW_IND :
+            case INSTR_ROT_MAP :
+            case INSTR_ZIP_MAP :
+                return -a; // pop a values and one more, push one
+            case INSTR_LOAD_PROP_IND :
+            case INSTR_STORE_OPTION :
+            case INSTR_STORE_ARG :
+            case INSTR_WRITE :
+            case INSTR_MAP :
+            case INSTR_BRF :
+            case INSTR_ADD :
+            case INSTR_OR :
+            case INSTR_AND :
+            case INSTR_POP :
+            case INSTR_WRITE_OPT_CONST :
+                return -1;
+            case INSTR_WRITE_OPT :
+                return -2;
+            default :
+                return 0;
+        }
+    }
+
+    /**
+     * Return the largest number of operands the first {@code codeSize} bytes
+     * of {@code code} can have on the stack at once. Like the JVM verifier,
+     * follow both ways out of every branch and take the deepest stack seen at
+     * each instruction.
+     */
+    public static int maxStackDepth(byte[] code, int codeSize) {
+        if ( code==null ) return 0;
+        int[] depth = new int[codeSize+1]; // stack size on entry; -1 if not reached yet
+        Arrays.fill(depth, -1);
+        int[] work = new int[codeSize+1];
+        int nwork = 0;
+        depth[0] = 0;
+        work[nwork++] = 0;
+        int max = 0;
+        while ( nwork>0 ) {
+            int ip = work[--nwork];
+            int d = depth[ip];
+            while ( ip < codeSize ) {
+                short opcode = code[ip];
+                Instruction I = opcode>0 && opcode<=MAX_BYTECODE ? instructions[opcode] : null;
+                int size = I!=null ? 1 + I.nopnds*OPND_SIZE_IN_BYTES : 1;
+                if ( ip+size > codeSize ) break;
+                int a = I!=null && I.nopnds>0 ? BytecodeDisassembler.getShort(code, ip+1) : 0;
+                int b = I!=null && I.nopnds>1 ? BytecodeDisassembler.getShort(code, ip+3) : 0;
+                d = Math.max(0, d + stackEffect(opcode, a, b));
+                if ( d > codeSize ) return d; // can't happen in generated code
+                max = Math.max(max, d);
+                int opnd = I!=null ? BytecodeOptimizer.addressOperand(opcode) : 0;
+                if ( opnd>0 ) {
+                    int target = opnd==1 ? a : b;
+                    if ( target<=codeSize && depth[target]<d ) {
+                        depth[target] = d;
+                        if ( nwork==work.length ) work = Arrays.copyOf(work, nwork*2);
+                        work[nwork++] = target;
+                    }
+                    if ( opcode==INSTR_BR ) break;
+                }
+                ip += size;
+                if ( depth[ip]>=d ) break; // been here with at least as many operands
+                depth[ip] = d;
+            }
+        }
+        return max;
+    }
 }
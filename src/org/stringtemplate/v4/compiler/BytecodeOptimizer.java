@@ -0,0 +1,266 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.compiler;
+
+import org.stringtemplate.v4.misc.Interval;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Peephole pass run over a template's code once {@link CodeGenerator} is done
+ * with it. It replaces the most frequent instruction sequences with combined
+ * instructions that do the same work in one dispatch, without pushing the
+ * intermediate values on the operand stack:
+ * <pre>
+ *  load_local i; load_prop #s; write  =&gt;  write_local_prop i, #s
+ *  load_local i; load_prop #s         =&gt;  load_local_prop i, #s
+ *  load_local i; write                =&gt;  write_local i
+ *  load_local i; brf a                =&gt;  brf_local i, a
+ *  load_attr #s; write                =&gt;  write_attr #s
+ *  load_attr #s; brf a                =&gt;  brf_attr #s, a
+ *  load_str #s; write                 =&gt;  write_str #s
+ *  options; load_str #s; store_option n; ...; write_opt
+ *                                     =&gt;  write_opt_const k
+ * </pre>
+ * The last one applies when every option value is a string literal; the
+ * values are then looked up once, here, and {@code k} indexes
+ * {@link CompiledST#constantOptions}.
+ * Only the first instruction of a sequence may be a branch target; branch
+ * operands are remapped to the new addresses.
+ * <p>
+ * Error messages and debug events locate themselves with
+ * {@link CompiledST#sourceMap}{@code [}{@link org.stringtemplate.v4.InstanceScope#ip}{@code ]}.
+ * A combined instruction at address {@code a} therefore keeps the interval of
+ * each instruction it replaces that can report something, in order, at
+ * {@code a}, {@code a+1}, ...; the interpreter moves {@code scope.ip} along
+ * as it does each part, so errors point at the same place with or without
+ * this pass. Among the instructions above, only {@code load_str},
+ * {@code options}, {@code store_option}, and {@code brf} never report
+ * anything; {@code load_local} does for a failed {@link java.util.concurrent.Future}.</p>
+ */
+final class BytecodeOptimizer {
+    final byte[] code;
+    final Interval[] sourceMap;
+    final String[] strings;
+    final int size;
+
+    /** Addresses some branch jumps to. */
+    final boolean[] target;
+
+    final byte[] newCode;
+    final Interval[] newSourceMap;
+
+    /** New address of each old instruction that starts a sequence. */
+    final int[] newAddress;
+
+    /** Option values of the {@code write_opt_const} instructions so far. */
+    final List<String[]> constantOptions = new ArrayList<String[]>();
+
+    /** Next address to write to in {@link #newCode}. */
+    int ip = 0;
+
+    private BytecodeOptimizer(CompiledST impl, int size, String[] strings) {
+        this.code = impl.instrs;
+        this.sourceMap = impl.sourceMap;
+        this.strings = strings;
+        this.size = size;
+        this.target = new boolean[size+1];
+        this.newCode = new byte[code.length];
+        this.newSourceMap = new Interval[sourceMap.length];
+        this.newAddress = new int[size+1];
+    }
+
+    /** Optimize the first {@code size} bytes of {@code impl}'s code, whose
+     *  string operands index {@code strings}.
+     *
+     * @return the new code size
+     */
+    static int optimize(CompiledST impl, int size, String[] strings) {
+        BytecodeOptimizer optimizer = new BytecodeOptimizer(impl, size, strings);
+        if ( !optimizer.findBranchTargets() ) return size; // leave odd code alone
+        optimizer.rewrite();
+        impl.instrs = optimizer.newCode;
+        impl.sourceMap = optimizer.newSourceMap;
+        if ( !optimizer.constantOptions.isEmpty() ) {
+            impl.constantOptions =
+                optimizer.constantOptions.toArray(new String[optimizer.constantOptions.size()][]);
+        }
+        return optimizer.ip;
+    }
+
+    boolean findBranchTargets() {
+        int a = 0;
+        while ( a < size ) {
+            short opcode = code[a];
+            if ( opcode<=0 || opcode>Bytecode.MAX_BYTECODE || Bytecode.instructions[opcode]==null ) {
+                return false;
+            }
+            int opnd = addressOperand(opcode);
+            if ( opnd>0 ) {
+                int addr = BytecodeDisassembler.getShort(code, a+opnd);
+                if ( addr>size ) return false;
+                target[addr] = true;
+            }
+            a = next(a);
+        }
+        return a==size;
+    }
+
+    void rewrite() {
+        int a = 0;
+        while ( a < size ) {
+            newAddress[a] = ip;
+            short opcode = code[a];
+            int b = next(a);
+            int c = b<size ? next(b) : b;
+            short op2 = opcodeAt(b);
+            short op3 = op2!=0 ? opcodeAt(c) : 0;
+            int opnd = Bytecode.instructions[opcode].nopnds>0 ? BytecodeDisassembler.getShort(code, a+1) : 0;
+            if ( opcode==Bytecode.INSTR_LOAD_LOCAL && op2==Bytecode.INSTR_LOAD_PROP &&
+                 op3==Bytecode.INSTR_WRITE )
+            {
+                emit(Bytecode.INSTR_WRITE_LOCAL_PROP, opnd, BytecodeDisassembler.getShort(code, b+1), a, b, c);
+                a = next(c);
+            }
+            else if ( opcode==Bytecode.INSTR_LOAD_LOCAL && op2==Bytecode.INSTR_LOAD_PROP ) {
+                emit(Bytecode.INSTR_LOAD_LOCAL_PROP, opnd, BytecodeDisassembler.getShort(code, b+1), a, b);
+                a = c;
+            }
+            else if ( opcode==Bytecode.INSTR_LOAD_LOCAL && op2==Bytecode.INSTR_WRITE ) {
+                emit(Bytecode.INSTR_WRITE_LOCAL, opnd, -1, a, b);
+                a = c;
+            }
+            else if ( opcode==Bytecode.INSTR_LOAD_LOCAL && op2==Bytecode.INSTR_BRF ) {
+                emit(Bytecode.INSTR_BRF_LOCAL, opnd, BytecodeDisassembler.getShort(code, b+1), a, b);
+                a = c;
+            }
+            else if ( opcode==Bytecode.INSTR_LOAD_ATTR && op2==Bytecode.INSTR_WRITE ) {
+                emit(Bytecode.INSTR_WRITE_ATTR, opnd, -1, a, b);
+                a = c;
+            }
+            else if ( opcode==Bytecode.INSTR_LOAD_ATTR && op2==Bytecode.INSTR_BRF ) {
+                emit(Bytecode.INSTR_BRF_ATTR, opnd, BytecodeDisassembler.getShort(code, b+1), a, b);
+                a = c;
+            }
+            else if ( opcode==Bytecode.INSTR_LOAD_STR && op2==Bytecode.INSTR_WRITE ) {
+                emit(Bytecode.INSTR_WRITE_STR, opnd, -1, b);
+                a = c;
+            }
+            else if ( opcode==Bytecode.INSTR_OPTIONS && constantOptionsEnd(b)>=0 ) {
+                int end = constantOptionsEnd(b);
+                emit(Bytecode.INSTR_WRITE_OPT_CONST, constantOptions.size(), -1, end);
+                constantOptions.add(optionValues(b, end));
+                a = next(end);
+            }
+            else { // copy as is
+                newSourceMap[ip] = sourceMap[a];
+                System.arraycopy(code, a, newCode, ip, b-a);
+                ip += b-a;
+                a = b;
+            }
+        }
+        newAddress[size] = ip;
+
+        // point branches at the new addresses
+        a = 0;
+        while ( a < ip ) {
+            int opnd = addressOperand(newCode[a]);
+            if ( opnd>0 ) {
+                int addr = BytecodeDisassembler.getShort(newCode, a+opnd);
+                CompilationState.writeShort(newCode, a+opnd, (short)newAddress[addr]);
+            }
+            a += size(newCode[a]);
+        }
+    }
+
+    /** Write a combined instruction; {@code locs} are the old addresses
+     *  whose source intervals it keeps, in order.
+     */
+    void emit(short opcode, int opnd1, int opnd2, int... locs) {
+        int start = ip;
+        Bytecode.Instruction I = Bytecode.instructions[opcode];
+        newCode[ip++] = (byte)opcode;
+        if ( I.nopnds>0 ) {
+            CompilationState.writeShort(newCode, ip, (short)opnd1);
+            ip += Bytecode.OPND_SIZE_IN_BYTES;
+        }
+        if ( I.nopnds>1 ) {
+            CompilationState.writeShort(newCode, ip, (short)opnd2);
+            ip += Bytecode.OPND_SIZE_IN_BYTES;
+        }
+        for (int i=0; i<locs.length; i++) newSourceMap[start+i] = sourceMap[locs[i]];
+    }
+
+    /** If the instructions from {@code a} on are only {@code load_str},
+     *  {@code store_option} pairs followed by a {@code write_opt}, return the
+     *  address of the {@code write_opt}; else -1.
+     */
+    int constantOptionsEnd(int a) {
+        while ( opcodeAt(a)==Bytecode.INSTR_LOAD_STR ) {
+            int b = next(a);
+            if ( opcodeAt(b)!=Bytecode.INSTR_STORE_OPTION ) return -1;
+            a = next(b);
+        }
+        return opcodeAt(a)==Bytecode.INSTR_WRITE_OPT ? a : -1;
+    }
+
+    /** Collect the option values stored from {@code a} up to {@code end}. */
+    String[] optionValues(int a, int end) {
+        String[] values = new String[Compiler.NUM_OPTIONS];
+        while ( a < end ) {
+            int b = next(a);
+            values[BytecodeDisassembler.getShort(code, b+1)] = strings[BytecodeDisassembler.getShort(code, a+1)];
+            a = next(b);
+        }
+        return values;
+    }
+
+    /** Opcode at {@code a} if it can be folded into the instruction before it, else 0. */
+    short opcodeAt(int a) {
+        if ( a>=size || target[a] ) return 0;
+        return code[a];
+    }
+
+    int next(int a) {
+        return a + size(code[a]);
+    }
+
+    static int size(short opcode) {
+        return 1 + Bytecode.instructions[opcode].nopnds*Bytecode.OPND_SIZE_IN_BYTES;
+    }
+
+    /** Offset of the branch target operand of {@code opcode} or 0 if it has none. */
+    static int addressOperand(short opcode) {
+        Bytecode.Instruction I = Bytecode.instructions[opcode];
+        for (int i=0; i<I.nopnds; i++) {
+            if ( I.type[i]==Bytecode.OperandType.ADDR ) return 1 + i*Bytecode.OPND_SIZE_IN_BYTES;
+        }
+        return 0;
+    }
+}
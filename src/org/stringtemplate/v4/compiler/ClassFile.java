@@ -0,0 +1,375 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a JVM class file writer for {@link JITCompiler}: a constant
+ * pool, methods with a single {@code Code} attribute, and forward or backward
+ * jumps to labels. We emit version 49 (Java 5) class files so we don't have to
+ * compute stack map frames; the JVM still verifies them with the type
+ * inferencing verifier.
+ */
+final class ClassFile {
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_PROTECTED = 0x0004;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    // the JVM opcodes we need
+    public static final int ICONST_0 = 0x03;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int LDC = 0x12;
+    public static final int LDC_W = 0x13;
+    public static final int ILOAD = 0x15;
+    public static final int ALOAD = 0x19;
+    public static final int AALOAD = 0x32;
+    public static final int ISTORE = 0x36;
+    public static final int IADD = 0x60;
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9a;
+    public static final int GOTO = 0xa7;
+    public static final int IRETURN = 0xac;
+    public static final int RETURN = 0xb1;
+    public static final int GETFIELD = 0xb4;
+    public static final int PUTFIELD = 0xb5;
+    public static final int INVOKESPECIAL = 0xb7;
+    public static final int INVOKESTATIC = 0xb8;
+
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_String = 8;
+    private static final int CONSTANT_Fieldref = 9;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_NameAndType = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndexes = new HashMap<String, Integer>();
+    private int poolSize = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int sourceFile;
+    private final int codeAttribute;
+    private final List<byte[]> methods = new ArrayList<byte[]>();
+
+    /**
+     * @param className internal name of the class, e.g. {@code a/b/C}
+     * @param superName internal name of its superclass
+     * @param sourceName name recorded in the {@code SourceFile} attribute
+     */
+    public ClassFile(String className, String superName, String sourceName) {
+        thisClass = classRef(className);
+        superClass = classRef(superName);
+        sourceFile = utf8(sourceName);
+        codeAttribute = utf8("Code");
+    }
+
+    public int utf8(String s) {
+        Integer i = poolIndexes.get("U"+s);
+        if ( i!=null ) return i;
+        try {
+            pool.writeByte(CONSTANT_Utf8);
+            pool.writeUTF(s);
+        }
+        catch (IOException ioe) {
+            throw new IllegalStateException(ioe); // can't happen in memory
+        }
+        return newEntry("U"+s, 1);
+    }
+
+    public int classRef(String internalName) {
+        return ref("C", CONSTANT_Class, utf8(internalName));
+    }
+
+    public int string(String s) {
+        return ref("S", CONSTANT_String, utf8(s));
+    }
+
+    public int integer(int value) {
+        Integer i = poolIndexes.get("I"+value);
+        if ( i!=null ) return i;
+        try {
+            pool.writeByte(CONSTANT_Integer);
+            pool.writeInt(value);
+        }
+        catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+        return newEntry("I"+value, 1);
+    }
+
+    public int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_Fieldref, owner, name, descriptor);
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_Methodref, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = tag+owner+"."+name+descriptor;
+        Integer i = poolIndexes.get(key);
+        if ( i!=null ) return i;
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        }
+        catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+        return newEntry(key, 1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N"+name+":"+descriptor;
+        Integer i = poolIndexes.get(key);
+        if ( i!=null ) return i;
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        try {
+            pool.writeByte(CONSTANT_NameAndType);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+        }
+        catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+        return newEntry(key, 1);
+    }
+
+    private int ref(String kind, int tag, int index) {
+        String key = kind+index;
+        Integer i = poolIndexes.get(key);
+        if ( i!=null ) return i;
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(index);
+        }
+        catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+        return newEntry(key, 1);
+    }
+
+    private int newEntry(String key, int slots) {
+        int index = poolSize;
+        poolSize += slots;
+        if ( poolSize>0xFFFF ) throw new IllegalStateException("constant pool overflow");
+        poolIndexes.put(key, index);
+        return index;
+    }
+
+    /** Add a method whose body is {@code code}. */
+    public void addMethod(int access, String name, String descriptor, Code code) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);                  // attributes_count
+            byte[] instrs = code.toByteArray();
+            out.writeShort(codeAttribute);
+            out.writeInt(2+2+4+instrs.length+2+2);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(instrs.length);
+            out.write(instrs);
+            out.writeShort(0);                  // exception_table_length
+            out.writeShort(0);                  // attributes_count
+        }
+        catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    public byte[] toByteArray(int access) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int sourceFileAttribute = utf8("SourceFile");
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);                  // minor_version
+            out.writeShort(49);                 // major_version: Java 5
+            out.writeShort(poolSize);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);                  // interfaces_count
+            out.writeShort(0);                  // fields_count
+            out.writeShort(methods.size());
+            for (byte[] m : methods) out.write(m);
+            out.writeShort(1);                  // attributes_count
+            out.writeShort(sourceFileAttribute);
+            out.writeInt(2);
+            out.writeShort(sourceFile);
+        }
+        catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** A label marks a position in a {@link Code} block that jumps can target. */
+    public static final class Label {
+        int address = -1;
+        /** Addresses of the offset operands waiting for this label. */
+        final List<Integer> fixups = new ArrayList<Integer>();
+        /** Addresses of the jump instructions owning the {@link #fixups}. */
+        final List<Integer> sources = new ArrayList<Integer>();
+    }
+
+    /**
+     * The instructions of a single method. The emit methods track the operand
+     * stack depth so {@link #maxStack} comes out right as long as the stack is
+     * empty at every label, which holds for the code {@link JITCompiler}
+     * generates.
+     */
+    public static final class Code {
+        private byte[] code = new byte[256];
+        private int length;
+        private int stack;
+        int maxStack;
+        int maxLocals;
+
+        public Code(int maxLocals) {
+            this.maxLocals = maxLocals;
+        }
+
+        public int size() { return length; }
+
+        public void op(int opcode, int stackEffect) {
+            ensureCapacity(1);
+            code[length++] = (byte)opcode;
+            adjustStack(stackEffect);
+        }
+
+        public void op1(int opcode, int operand, int stackEffect) {
+            ensureCapacity(2);
+            code[length++] = (byte)opcode;
+            code[length++] = (byte)operand;
+            adjustStack(stackEffect);
+        }
+
+        public void op2(int opcode, int operand, int stackEffect) {
+            ensureCapacity(3);
+            code[length++] = (byte)opcode;
+            code[length++] = (byte)(operand>>8);
+            code[length++] = (byte)operand;
+            adjustStack(stackEffect);
+        }
+
+        public void aload(int local) { op1(ALOAD, local, 1); }
+
+        public void iload(int local) { op1(ILOAD, local, 1); }
+
+        public void istore(int local) { op1(ISTORE, local, -1); }
+
+        /** Push constant {@code value} using the shortest encoding. */
+        public void iconst(ClassFile cf, int value) {
+            if ( value>=-1 && value<=5 ) op(ICONST_0+value, 1);
+            else if ( value>=Byte.MIN_VALUE && value<=Byte.MAX_VALUE ) op1(BIPUSH, value, 1);
+            else if ( value>=Short.MIN_VALUE && value<=Short.MAX_VALUE ) op2(SIPUSH, value, 1);
+            else ldc(cf.integer(value));
+        }
+
+        public void ldc(int poolIndex) {
+            if ( poolIndex<=0xFF ) op1(LDC, poolIndex, 1);
+            else op2(LDC_W, poolIndex, 1);
+        }
+
+        /** Emit a call to a static method taking {@code nargs} words and
+         *  returning {@code nresults} (0 or 1) words.
+         */
+        public void invokestatic(int methodRef, int nargs, int nresults) {
+            op2(INVOKESTATIC, methodRef, nresults - nargs);
+        }
+
+        public void jump(int opcode, Label target) {
+            int source = length;
+            op2(opcode, 0, opcode==GOTO ? 0 : -1);
+            if ( target.address>=0 ) {
+                patch(source+1, target.address - source);
+            }
+            else {
+                target.sources.add(source);
+                target.fixups.add(source+1);
+            }
+        }
+
+        public void mark(Label label) {
+            label.address = length;
+            for (int i=0; i<label.fixups.size(); i++) {
+                patch(label.fixups.get(i), length - label.sources.get(i));
+            }
+            label.fixups.clear();
+            label.sources.clear();
+        }
+
+        private void patch(int addr, int offset) {
+            code[addr] = (byte)(offset>>8);
+            code[addr+1] = (byte)offset;
+        }
+
+        private void adjustStack(int effect) {
+            stack += effect;
+            if ( stack>maxStack ) maxStack = stack;
+        }
+
+        private void ensureCapacity(int n) {
+            if ( length+n >= code.length ) {
+                byte[] c = new byte[code.length*2];
+                System.arraycopy(code, 0, c, 0, length);
+                code = c;
+            }
+        }
+
+        byte[] toByteArray() {
+            byte[] c = new byte[length];
+            System.arraycopy(code, 0, c, 0, length);
+            return c;
+        }
+    }
+}
@@ -157,8 +157,10 @@ scope {
 }
 	:	chunk
 		{ // finish off the CompiledST result
+        if ( Compiler.optimize ) $template::state.optimize();
         if ( $template::state.stringtable!=null ) $impl.strings = $template::state.stringtable.toArray();
         $impl.codeSize = $template::state.ip;
+        $impl.maxStackDepth = Bytecode.maxStackDepth($impl.instrs, $impl.codeSize);
 		}
 	;
 
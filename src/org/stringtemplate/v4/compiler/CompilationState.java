@@ -179,6 +179,11 @@ public class CompilationState {
         }
     }
 
+    /** Run {@link BytecodeOptimizer} over the code generated so far. */
+    public void optimize() {
+        ip = BytecodeOptimizer.optimize(impl, ip, stringtable.toArray());
+    }
+
     public void indent(CommonTree indent) {
         emit1(indent,Bytecode.INSTR_INDENT, indent.getText());
     }
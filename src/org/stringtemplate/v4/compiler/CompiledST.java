@@ -113,10 +113,27 @@ public class CompiledST implements Cloneable {
     public boolean isAnonSubtemplate; // {...}
 
     public String[] strings;     // string operands of instructions
+
+    /** Option values of each {@code write_opt_const} instruction, indexed by
+     *  its operand. Each has {@link Compiler#NUM_OPTIONS} elements, {@code null}
+     *  for options not given. Never modified once compiled.
+     */
+    public String[][] constantOptions;
     public byte[] instrs;        // byte-addressable code memory.
     public int codeSize;
     public Interval[] sourceMap; // maps IP to range in template pattern
 
+    /** Most operands {@link #instrs} ever has on the stack at once, or -1 if
+     *  not computed yet; see {@link Bytecode#maxStackDepth}.
+     */
+    public int maxStackDepth = -1;
+
+    /** Execution count and JIT-generated code, shared with our clones. */
+    public final JITCompiler.Profile jitProfile = new JITCompiler.Profile();
+
+    /** The linked form of {@link #instrs}; see {@link #getLinkedCode}. */
+    private volatile LinkedCode linkedCode;
+
     public CompiledST() {
         instrs = new byte[Compiler.TEMPLATE_INITIAL_CODE_SIZE];
         sourceMap = new Interval[Compiler.TEMPLATE_INITIAL_CODE_SIZE];
@@ -137,14 +154,28 @@ public class CompiledST implements Cloneable {
      */
     @Override
     public CompiledST clone() throws CloneNotSupportedException {
+        getLinkedCode(); // link once and share with the clone
         CompiledST clone = (CompiledST)super.clone();
         if (formalArguments != null) {
-            formalArguments = Collections.synchronizedMap(new LinkedHashMap<String,FormalArgument>(formalArguments));
+            clone.formalArguments = Collections.synchronizedMap(new LinkedHashMap<String,FormalArgument>(formalArguments));
         }
 
         return clone;
     }
 
+    /** Return the form of this template the interpreter executes, linking
+     *  {@link #instrs} the first time we're asked. Don't change the code
+     *  after that.
+     */
+    public LinkedCode getLinkedCode() {
+        LinkedCode code = linkedCode;
+        if ( code==null ) {
+            code = new LinkedCode(this);
+            linkedCode = code;
+        }
+        return code;
+    }
+
     public void addImplicitlyDefinedTemplate(CompiledST sub) {
         sub.prefix = this.prefix;
         if ( sub.name.charAt(0)!='/' ) sub.name = sub.prefix+sub.name;
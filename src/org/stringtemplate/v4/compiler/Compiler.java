@@ -91,6 +91,11 @@ public class Compiler {
         funcs = Collections.unmodifiableMap(map);
     }
 
+    /** Rewrite common instruction sequences into combined instructions
+     *  after code generation; see {@link BytecodeOptimizer}.
+     */
+    public static boolean optimize = true;
+
     /** Name subtemplates {@code _sub1}, {@code _sub2}, ... */
     public static AtomicInteger subtemplateCount = new AtomicInteger(0);
 
@@ -0,0 +1,591 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.compiler;
+
+import org.stringtemplate.v4.InstanceScope;
+import org.stringtemplate.v4.Interpreter;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.jit.JITTemplate;
+import org.stringtemplate.v4.misc.ErrorManager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Translates the bytecode of a {@link CompiledST} into a JVM class extending
+ * {@link JITTemplate}. {@link Interpreter#_exec} counts executions per
+ * template and, once a template reaches {@link Interpreter#jitThreshold},
+ * runs the generated code instead of decoding bytecodes.
+ * <p>
+ * The generated {@code exec} method is a flat sequence of calls to the static
+ * helpers of {@link JITTemplate}, with string and integer operands turned into
+ * JVM constants, template references taken from the template's
+ * {@link LinkedCode}, and {@code br}/{@code brf} turned into JVM jumps. The helpers
+ * share their implementation with the interpreter, so output and error
+ * reporting are identical; {@link InstanceScope#ip} is kept up to date for
+ * every instruction that could report an error.</p>
+ * <p>
+ * Each class is defined by its own class loader so it can be unloaded along
+ * with its template. Templates we can't translate (unknown instructions, or
+ * methods too big for the JVM to bother optimizing) simply stay
+ * interpreted. A class that fails to generate, load, or instantiate is
+ * reported as an internal error to the template's group, and the template
+ * stays interpreted as well.</p>
+ */
+public class JITCompiler {
+    /** Package (internal form) of the generated classes. */
+    public static final String JIT_PACKAGE = "org/stringtemplate/v4/jit/";
+
+    /** Don't generate methods larger than HotSpot is willing to optimize. */
+    public static final int MAX_METHOD_SIZE = 8000;
+
+    private static final String JIT_TEMPLATE = "org/stringtemplate/v4/jit/JITTemplate";
+    private static final String INTERP = "Lorg/stringtemplate/v4/Interpreter;";
+    private static final String WRITER = "Lorg/stringtemplate/v4/STWriter;";
+    private static final String SCOPE = "Lorg/stringtemplate/v4/InstanceScope;";
+    private static final String STRING = "Ljava/lang/String;";
+    private static final String OBJECT = "Ljava/lang/Object;";
+
+    // JVM locals of the generated exec method
+    private static final int INTERP_LOCAL = 1, OUT = 2, SCOPE_LOCAL = 3, N = 4, PREV = 5;
+
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    /**
+     * Execution count and generated code for one template. A {@link CompiledST}
+     * shares its profile with its clones since they all have the same
+     * bytecode.
+     */
+    public static final class Profile {
+        /** Racy by design; an occasional lost update only delays compilation. */
+        int executions;
+        volatile JITTemplate code;
+        volatile boolean failed;
+
+        public JITTemplate getCode() { return code; }
+    }
+
+    /**
+     * Count an execution of {@code impl} and return its generated code, or
+     * {@code null} if it should be interpreted.
+     */
+    public static JITTemplate getCode(CompiledST impl) {
+        Profile profile = impl.jitProfile;
+        JITTemplate code = profile.code;
+        if ( code!=null || profile.failed ) return code;
+        if ( ++profile.executions < Interpreter.jitThreshold ) return null;
+        synchronized (profile) {
+            if ( profile.code==null && !profile.failed ) {
+                code = compile(impl);
+                if ( code==null ) profile.failed = true;
+                else profile.code = code;
+            }
+            return profile.code;
+        }
+    }
+
+    /** Generate, load, and instantiate a class for {@code impl}; return
+     *  {@code null} if it can't be translated.
+     */
+    public static JITTemplate compile(CompiledST impl) {
+        String className = JIT_PACKAGE+javaName(impl.name)+"$"+classCounter.incrementAndGet();
+        try {
+            byte[] bytes = generate(impl, className);
+            if ( bytes==null ) return null;
+            Loader loader = new Loader(JITTemplate.class.getClassLoader());
+            Class<?> c = loader.define(className.replace('/', '.'), bytes);
+            return (JITTemplate)c.getConstructor(CompiledST.class).newInstance(impl);
+        }
+        catch (Exception e) {
+            reportFailure(impl, e);
+            return null;
+        }
+        catch (LinkageError le) {
+            reportFailure(impl, le);
+            return null;
+        }
+    }
+
+    /** Tell {@code impl}'s group that we couldn't compile it and will keep
+     *  interpreting it. {@link #getCode} compiles a template only once, so
+     *  this happens once per template.
+     */
+    static void reportFailure(CompiledST impl, Throwable e) {
+        ErrorManager errMgr = impl.nativeGroup!=null ? impl.nativeGroup.errMgr : STGroup.DEFAULT_ERR_MGR;
+        errMgr.internalError(null, "can't compile "+impl.name+" to JVM code; interpreting it instead", e);
+    }
+
+    /** Return the class file for {@code impl}, or {@code null} if it can't
+     *  be translated.
+     */
+    public static byte[] generate(CompiledST impl, String className) {
+        byte[] instrs = impl.instrs;
+        int size = impl.codeSize;
+        if ( instrs==null ) size = 0;
+
+        // find branch targets and the newlines that follow one; only for
+        // those newlines do we need to track the previous opcode at run time
+        boolean[] target = new boolean[size+1];
+        int ip = 0;
+        while ( ip < size ) {
+            short opcode = instrs[ip];
+            if ( opcode<=0 || opcode>Bytecode.MAX_BYTECODE ||
+                 Bytecode.instructions[opcode]==null )
+            {
+                return null; // let the interpreter report it
+            }
+            int opnd = BytecodeOptimizer.addressOperand(opcode);
+            if ( opnd>0 ) {
+                int addr = Interpreter.getShort(instrs, ip+opnd);
+                if ( addr>size ) return null;
+                target[addr] = true;
+            }
+            ip += 1 + Bytecode.instructions[opcode].nopnds*Bytecode.OPND_SIZE_IN_BYTES;
+        }
+        if ( ip!=size ) return null;
+        boolean[] dynamicPrev = new boolean[size+1];
+        boolean needPrev = false;
+        for (ip=0; ip<size; ip++) {
+            if ( target[ip] && instrs[ip]==Bytecode.INSTR_NEWLINE ) {
+                dynamicPrev[ip] = true;
+                needPrev = true;
+            }
+        }
+
+        LinkedCode linked = impl.getLinkedCode();
+        ClassFile cf = new ClassFile(className, JIT_TEMPLATE, impl.name+".st");
+        ClassFile.Label[] labels = new ClassFile.Label[size+1];
+        for (int i=0; i<=size; i++) if ( target[i] ) labels[i] = new ClassFile.Label();
+
+        ClassFile.Code ctor = new ClassFile.Code(2);
+        ctor.aload(0);
+        ctor.aload(1);
+        ctor.op2(ClassFile.INVOKESPECIAL,
+                 cf.methodRef(JIT_TEMPLATE, "<init>", "(Lorg/stringtemplate/v4/compiler/CompiledST;)V"),
+                 -2);
+        ctor.op(ClassFile.RETURN, 0);
+        cf.addMethod(ClassFile.ACC_PUBLIC, "<init>", "(Lorg/stringtemplate/v4/compiler/CompiledST;)V", ctor);
+
+        ClassFile.Code code = new ClassFile.Code(needPrev ? 6 : 5);
+        code.iconst(cf, 0);
+        code.istore(N);
+        if ( needPrev ) {
+            code.iconst(cf, 0);
+            code.istore(PREV);
+        }
+        int scopeIp = cf.fieldRef("org/stringtemplate/v4/InstanceScope", "ip", "I");
+        int prevOpcode = 0;
+        ip = 0;
+        while ( ip < size ) {
+            if ( labels[ip]!=null ) code.mark(labels[ip]);
+            short opcode = instrs[ip];
+            int next = ip + 1 + Bytecode.instructions[opcode].nopnds*Bytecode.OPND_SIZE_IN_BYTES;
+            int a = Bytecode.instructions[opcode].nopnds>0 ? Interpreter.getShort(instrs, ip+1) : 0;
+            int b = Bytecode.instructions[opcode].nopnds>1 ? Interpreter.getShort(instrs, ip+3) : 0;
+            if ( mayReport(opcode) ) {
+                code.aload(SCOPE_LOCAL);
+                code.iconst(cf, ip);
+                code.op2(ClassFile.PUTFIELD, scopeIp, -2);
+            }
+            boolean storePrev = next<size && dynamicPrev[next];
+            switch ( opcode ) {
+                case Bytecode.INSTR_LOAD_STR :
+                    code.aload(INTERP_LOCAL);
+                    code.ldc(cf.string(impl.strings[a]));
+                    call(cf, code, "load_str", "("+INTERP+STRING+")V");
+                    break;
+                case Bytecode.INSTR_LOAD_ATTR :
+                    callWithSite(cf, code, "load_attr", ip);
+                    break;
+                case Bytecode.INSTR_LOAD_LOCAL :
+                    callWithInt(cf, code, "load_local", a);
+                    break;
+                case Bytecode.INSTR_LOAD_PROP :
+                    code.aload(INTERP_LOCAL);
+                    code.aload(OUT);
+                    code.aload(SCOPE_LOCAL);
+                    loadSite(cf, code, ip);
+                    call(cf, code, "load_prop", "("+INTERP+WRITER+SCOPE+OBJECT+")V");
+                    break;
+                case Bytecode.INSTR_LOAD_PROP_IND :
+                    callWithWriter(cf, code, "load_prop_ind");
+                    break;
+                case Bytecode.INSTR_STORE_OPTION :
+                    code.aload(INTERP_LOCAL);
+                    code.iconst(cf, a);
+                    call(cf, code, "store_option", "("+INTERP+"I)V");
+                    break;
+                case Bytecode.INSTR_STORE_ARG :
+                    code.aload(INTERP_LOCAL);
+                    code.ldc(cf.string(impl.strings[a]));
+                    call(cf, code, "store_arg", "("+INTERP+STRING+")V");
+                    break;
+                case Bytecode.INSTR_NEW :
+                    callWithSite(cf, code, "new_template", ip);
+                    break;
+                case Bytecode.INSTR_SUPER_NEW :
+                    callWithSite(cf, code, "super_new", ip);
+                    break;
+                case Bytecode.INSTR_NEW_IND :
+                    callWithInt(cf, code, "new_ind", a);
+                    break;
+                case Bytecode.INSTR_NEW_BOX_ARGS :
+                    callWithSite(cf, code, "new_box_args", ip);
+                    break;
+                case Bytecode.INSTR_SUPER_NEW_BOX_ARGS :
+                    callWithSite(cf, code, "super_new_box_args", ip);
+                    break;
+                case Bytecode.INSTR_WRITE :
+                case Bytecode.INSTR_WRITE_OPT :
+                    code.aload(INTERP_LOCAL);
+                    code.aload(OUT);
+                    code.aload(SCOPE_LOCAL);
+                    call(cf, code, opcode==Bytecode.INSTR_WRITE ? "write" : "write_opt",
+                         "("+INTERP+WRITER+SCOPE+")I");
+                    addToN(code);
+                    break;
+                case Bytecode.INSTR_WRITE_STR :
+                    code.aload(INTERP_LOCAL);
+                    code.aload(OUT);
+                    code.aload(SCOPE_LOCAL);
+                    if ( linked.resolved[ip] instanceof TextRun ) {
+                        // none of the run's instructions is a branch target
+                        loadSite(cf, code, ip);
+                        call(cf, code, "write_text", "("+INTERP+WRITER+SCOPE+OBJECT+")I");
+                        addToN(code);
+                        next = ((TextRun)linked.resolved[ip]).end;
+                        storePrev = next<size && dynamicPrev[next];
+                        break;
+                    }
+                    code.ldc(cf.string(impl.strings[a]));
+                    call(cf, code, "write_str", "("+INTERP+WRITER+SCOPE+STRING+")I");
+                    addToN(code);
+                    break;
+                case Bytecode.INSTR_WRITE_LOCAL :
+                    code.aload(INTERP_LOCAL);
+                    code.aload(OUT);
+                    code.aload(SCOPE_LOCAL);
+                    code.iconst(cf, a);
+                    call(cf, code, "write_local", "("+INTERP+WRITER+SCOPE+"I)I");
+                    addToN(code);
+                    break;
+                case Bytecode.INSTR_LOAD_LOCAL_PROP :
+                case Bytecode.INSTR_WRITE_LOCAL_PROP :
+                    code.aload(INTERP_LOCAL);
+                    code.aload(OUT);
+                    code.aload(SCOPE_LOCAL);
+                    code.iconst(cf, a);
+                    loadSite(cf, code, ip);
+                    if ( opcode==Bytecode.INSTR_LOAD_LOCAL_PROP ) {
+                        call(cf, code, "load_local_prop", "("+INTERP+WRITER+SCOPE+"I"+OBJECT+")V");
+                    }
+                    else {
+                        call(cf, code, "write_local_prop", "("+INTERP+WRITER+SCOPE+"I"+OBJECT+")I");
+                        addToN(code);
+                    }
+                    break;
+                case Bytecode.INSTR_WRITE_OPT_CONST :
+                    code.aload(INTERP_LOCAL);
+                    code.aload(OUT);
+                    code.aload(SCOPE_LOCAL);
+                    loadSite(cf, code, ip);
+                    call(cf, code, "write_opt_const", "("+INTERP+WRITER+SCOPE+OBJECT+")I");
+                    addToN(code);
+                    break;
+                case Bytecode.INSTR_WRITE_ATTR :
+                    code.aload(INTERP_LOCAL);
+                    code.aload(OUT);
+                    code.aload(SCOPE_LOCAL);
+                    loadSite(cf, code, ip);
+                    call(cf, code, "write_attr", "("+INTERP+WRITER+SCOPE+OBJECT+")I");
+                    addToN(code);
+                    break;
+                case Bytecode.INSTR_MAP :
+                    callWithScope(cf, code, linked.streamed[ip] ? "map_streamed" : "map");
+                    break;
+                case Bytecode.INSTR_ROT_MAP :
+                    callWithInt(cf, code, linked.streamed[ip] ? "rot_map_streamed" : "rot_map", a);
+                    break;
+                case Bytecode.INSTR_ZIP_MAP :
+                    callWithInt(cf, code, linked.streamed[ip] ? "zip_map_streamed" : "zip_map", a);
+                    break;
+                case Bytecode.INSTR_BR :
+                    if ( dynamicPrev[a] ) setPrev(cf, code, opcode);
+                    code.jump(ClassFile.GOTO, labels[a]);
+                    break;
+                case Bytecode.INSTR_BRF :
+                    if ( dynamicPrev[a] || storePrev ) setPrev(cf, code, opcode);
+                    storePrev = false;
+                    code.aload(INTERP_LOCAL);
+                    call(cf, code, "brf", "("+INTERP+")Z");
+                    code.jump(ClassFile.IFNE, labels[a]);
+                    break;
+                case Bytecode.INSTR_BRF_LOCAL :
+                case Bytecode.INSTR_BRF_ATTR :
+                    if ( dynamicPrev[b] || storePrev ) setPrev(cf, code, opcode);
+                    storePrev = false;
+                    code.aload(INTERP_LOCAL);
+                    code.aload(SCOPE_LOCAL);
+                    if ( opcode==Bytecode.INSTR_BRF_LOCAL ) {
+                        code.iconst(cf, a);
+                        call(cf, code, "brf_local", "("+INTERP+SCOPE+"I)Z");
+                    }
+                    else {
+                        loadSite(cf, code, ip);
+                        call(cf, code, "brf_attr", "("+INTERP+SCOPE+OBJECT+")Z");
+                    }
+                    code.jump(ClassFile.IFNE, labels[b]);
+                    break;
+                case Bytecode.INSTR_OPTIONS :
+                    callWithInterp(cf, code, "options");
+                    break;
+                case Bytecode.INSTR_ARGS :
+                    callWithInterp(cf, code, "args");
+                    break;
+                case Bytecode.INSTR_PASSTHRU :
+                    callWithString(cf, code, "passthru", impl.strings[a]);
+                    break;
+                case Bytecode.INSTR_LIST :
+                    callWithInterp(cf, code, "list");
+                    break;
+                case Bytecode.INSTR_ADD :
+                    callWithScope(cf, code, "add");
+                    break;
+                case Bytecode.INSTR_TOSTR :
+                    callWithWriter(cf, code, "tostr");
+                    break;
+                case Bytecode.INSTR_FIRST :
+                    callWithScope(cf, code, "first");
+                    break;
+                case Bytecode.INSTR_LAST :
+                    callWithScope(cf, code, "last");
+                    break;
+                case Bytecode.INSTR_REST :
+                    callWithScope(cf, code, "rest");
+                    break;
+                case Bytecode.INSTR_TRUNC :
+                    callWithScope(cf, code, "trunc");
+                    break;
+                case Bytecode.INSTR_STRIP :
+                    callWithScope(cf, code, "strip");
+                    break;
+                case Bytecode.INSTR_TRIM :
+                    callWithScope(cf, code, "trim");
+                    break;
+                case Bytecode.INSTR_LENGTH :
+                    callWithInterp(cf, code, "length");
+                    break;
+                case Bytecode.INSTR_STRLEN :
+                    callWithScope(cf, code, "strlen");
+                    break;
+                case Bytecode.INSTR_REVERSE :
+                    callWithScope(cf, code, "reverse");
+                    break;
+                case Bytecode.INSTR_NOT :
+                    callWithInterp(cf, code, "not");
+                    break;
+                case Bytecode.INSTR_OR :
+                    callWithInterp(cf, code, "or");
+                    break;
+                case Bytecode.INSTR_AND :
+                    callWithInterp(cf, code, "and");
+                    break;
+                case Bytecode.INSTR_INDENT :
+                    code.aload(INTERP_LOCAL);
+                    code.aload(OUT);
+                    code.aload(SCOPE_LOCAL);
+                    code.iconst(cf, a);
+                    call(cf, code, "indent", "("+INTERP+WRITER+SCOPE+"I)V");
+                    break;
+                case Bytecode.INSTR_DEDENT :
+                    code.aload(OUT);
+                    call(cf, code, "dedent", "("+WRITER+")V");
+                    break;
+                case Bytecode.INSTR_NEWLINE :
+                    code.aload(INTERP_LOCAL);
+                    code.aload(OUT);
+                    code.aload(SCOPE_LOCAL);
+                    if ( dynamicPrev[ip] ) code.iload(PREV);
+                    else code.iconst(cf, prevOpcode);
+                    call(cf, code, "newline", "("+INTERP+WRITER+SCOPE+"I)V");
+                    break;
+                case Bytecode.INSTR_NOOP :
+                    break;
+                case Bytecode.INSTR_POP :
+                    callWithInterp(cf, code, "pop");
+                    break;
+                case Bytecode.INSTR_NULL :
+                    callWithInterp(cf, code, "push_null");
+                    break;
+                case Bytecode.INSTR_TRUE :
+                    callWithInterp(cf, code, "push_true");
+                    break;
+                case Bytecode.INSTR_FALSE :
+                    callWithInterp(cf, code, "push_false");
+                    break;
+                default :
+                    return null;
+            }
+            if ( storePrev && opcode!=Bytecode.INSTR_BR ) setPrev(cf, code, opcode);
+            prevOpcode = opcode;
+            ip = next;
+        }
+        if ( labels[size]!=null ) code.mark(labels[size]);
+        code.iload(N);
+        code.op(ClassFile.IRETURN, -1);
+        if ( code.size() > MAX_METHOD_SIZE ) return null;
+        cf.addMethod(ClassFile.ACC_PROTECTED|ClassFile.ACC_FINAL, "exec",
+                     "("+INTERP+WRITER+SCOPE+")I", code);
+        return cf.toByteArray(ClassFile.ACC_PUBLIC|ClassFile.ACC_FINAL|ClassFile.ACC_SUPER);
+    }
+
+    /** Return {@code true} if {@code opcode} could report an error or
+     *  otherwise look at {@link InstanceScope#ip}.
+     */
+    static boolean mayReport(short opcode) {
+        switch ( opcode ) {
+            case Bytecode.INSTR_LOAD_STR :
+            case Bytecode.INSTR_STORE_OPTION :
+            case Bytecode.INSTR_STORE_ARG :
+            case Bytecode.INSTR_BR :
+            case Bytecode.INSTR_BRF :
+            case Bytecode.INSTR_OPTIONS :
+            case Bytecode.INSTR_ARGS :
+            case Bytecode.INSTR_LIST :
+            case Bytecode.INSTR_LENGTH :
+            case Bytecode.INSTR_NOT :
+            case Bytecode.INSTR_OR :
+            case Bytecode.INSTR_AND :
+            case Bytecode.INSTR_INDENT :
+            case Bytecode.INSTR_DEDENT :
+            case Bytecode.INSTR_NEWLINE :
+            case Bytecode.INSTR_NOOP :
+            case Bytecode.INSTR_POP :
+            case Bytecode.INSTR_NULL :
+            case Bytecode.INSTR_TRUE :
+            case Bytecode.INSTR_FALSE :
+                return false;
+            default :
+                return true;
+        }
+    }
+
+    private static void setPrev(ClassFile cf, ClassFile.Code code, short opcode) {
+        code.iconst(cf, opcode);
+        code.istore(PREV);
+    }
+
+    private static void addToN(ClassFile.Code code) {
+        code.iload(N);
+        code.op(ClassFile.IADD, -1);
+        code.istore(N);
+    }
+
+    private static void call(ClassFile cf, ClassFile.Code code, String helper, String descriptor) {
+        int nargs = 0;
+        for (int i=1; descriptor.charAt(i)!=')'; i++) {
+            if ( descriptor.charAt(i)=='L' ) i = descriptor.indexOf(';', i);
+            nargs++;
+        }
+        int nresults = descriptor.endsWith(")V") ? 0 : 1;
+        code.invokestatic(cf.methodRef(JIT_TEMPLATE, helper, descriptor), nargs, nresults);
+    }
+
+    private static void callWithInterp(ClassFile cf, ClassFile.Code code, String helper) {
+        code.aload(INTERP_LOCAL);
+        call(cf, code, helper, "("+INTERP+")V");
+    }
+
+    private static void callWithScope(ClassFile cf, ClassFile.Code code, String helper) {
+        code.aload(INTERP_LOCAL);
+        code.aload(SCOPE_LOCAL);
+        call(cf, code, helper, "("+INTERP+SCOPE+")V");
+    }
+
+    private static void callWithWriter(ClassFile cf, ClassFile.Code code, String helper) {
+        code.aload(INTERP_LOCAL);
+        code.aload(OUT);
+        code.aload(SCOPE_LOCAL);
+        call(cf, code, helper, "("+INTERP+WRITER+SCOPE+")V");
+    }
+
+    private static void callWithString(ClassFile cf, ClassFile.Code code, String helper, String s) {
+        code.aload(INTERP_LOCAL);
+        code.aload(SCOPE_LOCAL);
+        code.ldc(cf.string(s));
+        call(cf, code, helper, "("+INTERP+SCOPE+STRING+")V");
+    }
+
+    /** Call {@code helper} with the {@link TemplateSite} or {@link AttributeSite}
+     *  of the instruction at {@code ip}.
+     */
+    private static void callWithSite(ClassFile cf, ClassFile.Code code, String helper, int ip) {
+        code.aload(INTERP_LOCAL);
+        code.aload(SCOPE_LOCAL);
+        loadSite(cf, code, ip);
+        call(cf, code, helper, "("+INTERP+SCOPE+OBJECT+")V");
+    }
+
+    /** Push {@code resolved[ip]}, the site of the instruction at {@code ip}. */
+    private static void loadSite(ClassFile cf, ClassFile.Code code, int ip) {
+        code.aload(0);
+        code.op2(ClassFile.GETFIELD, cf.fieldRef(JIT_TEMPLATE, "resolved", "["+OBJECT), 0);
+        code.iconst(cf, ip);
+        code.op(ClassFile.AALOAD, -1);
+    }
+
+    private static void callWithInt(ClassFile cf, ClassFile.Code code, String helper, int value) {
+        code.aload(INTERP_LOCAL);
+        code.aload(SCOPE_LOCAL);
+        code.iconst(cf, value);
+        call(cf, code, helper, "("+INTERP+SCOPE+"I)V");
+    }
+
+    /** Turn a template name like {@code /group/a-b} into a legal class name. */
+    static String javaName(String templateName) {
+        if ( templateName==null ) return "anonymous";
+        StringBuilder buf = new StringBuilder();
+        for (int i=0; i<templateName.length(); i++) {
+            char c = templateName.charAt(i);
+            if ( Character.isJavaIdentifierPart(c) && c!='$' ) buf.append(c);
+            else if ( buf.length()>0 ) buf.append('_');
+        }
+        if ( buf.length()==0 || !Character.isJavaIdentifierStart(buf.charAt(0)) ) buf.insert(0, 'T');
+        return buf.toString();
+    }
+
+    /** Defines exactly one generated class. */
+    static final class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
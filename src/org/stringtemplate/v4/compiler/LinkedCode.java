@@ -0,0 +1,237 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.compiler;
+
+import org.stringtemplate.v4.Interpreter;
+
+/**
+ * The form of a {@link CompiledST} the {@link Interpreter} executes. Operands
+ * are decoded once, when a template first runs, rather than on every
+ * execution of every instruction.
+ * <p>
+ * {@link #instrs} keeps the addresses of {@link CompiledST#instrs}: the opcode
+ * is at {@code ip}, its first operand at {@code ip+1} and its second at
+ * {@code ip+3}. Branch targets, {@link CompiledST#sourceMap}, and
+ * {@link org.stringtemplate.v4.InstanceScope#ip} work for both forms. The
+ * string operand of an instruction, if it has one, is also available as an
+ * object in {@link #resolved}, indexed by instruction address. Template
+ * references ({@code new}, {@code super_new}, and their {@code _box_args}
+ * variants) get a {@link TemplateSite} there instead, and constant property
+ * references ({@code load_prop} and the combined instructions built on it) a
+ * {@link PropertySite}. Attribute references ({@code load_attr},
+ * {@code write_attr}, and {@code brf_attr}) get an {@link AttributeSite}, and
+ * {@code write_opt_const} its element of {@link CompiledST#constantOptions}.
+ * The first {@code write_str} of a stretch of literal text gets a
+ * {@link TextRun} covering the whole stretch.</p>
+ */
+public final class LinkedCode {
+    /** Decoded instructions and operands; same addresses as {@link CompiledST#instrs}. */
+    public final int[] instrs;
+
+    /** Pre-resolved operand of the instruction at each address, if any. */
+    public final Object[] resolved;
+
+    /** Whether the result of the {@code map}, {@code rot_map}, or
+     *  {@code zip_map} at each address goes straight to a {@code write},
+     *  {@code write_opt}, or {@code write_opt_const}. Nothing else sees such
+     *  a result, so the interpreter may produce it lazily.
+     */
+    public final boolean[] streamed;
+
+    public final int codeSize;
+
+    /** {@link CompiledST#maxStackDepth}, computed here if the compiler didn't. */
+    public final int maxStackDepth;
+
+    public LinkedCode(CompiledST impl) {
+        byte[] code = impl.instrs;
+        codeSize = code!=null ? impl.codeSize : 0;
+        instrs = new int[codeSize];
+        resolved = new Object[codeSize];
+        streamed = new boolean[codeSize];
+        maxStackDepth = impl.maxStackDepth>=0 ?
+            impl.maxStackDepth : Bytecode.maxStackDepth(code, codeSize);
+        boolean valid = true;
+        int ip = 0;
+        while ( ip < codeSize ) {
+            short opcode = code[ip];
+            instrs[ip] = opcode;
+            Bytecode.Instruction I = opcode>0 && opcode<=Bytecode.MAX_BYTECODE ?
+                Bytecode.instructions[opcode] : null;
+            if ( I==null ) { // let the interpreter report it
+                valid = false;
+                ip++;
+                continue;
+            }
+            if ( ip + I.nopnds*Bytecode.OPND_SIZE_IN_BYTES >= codeSize ) break;
+            int a = 0;
+            int b = 0;
+            if ( I.nopnds>0 ) a = instrs[ip+1] = Interpreter.getShort(code, ip+1);
+            if ( I.nopnds>1 ) b = instrs[ip+3] = Interpreter.getShort(code, ip+3);
+            switch ( opcode ) {
+                case Bytecode.INSTR_NEW :
+                case Bytecode.INSTR_NEW_BOX_ARGS :
+                case Bytecode.INSTR_SUPER_NEW :
+                case Bytecode.INSTR_SUPER_NEW_BOX_ARGS :
+                    resolved[ip] = new TemplateSite(impl.strings[a], b);
+                    break;
+                case Bytecode.INSTR_LOAD_ATTR :
+                case Bytecode.INSTR_WRITE_ATTR :
+                case Bytecode.INSTR_BRF_ATTR :
+                    resolved[ip] = new AttributeSite(impl.strings[a]);
+                    break;
+                case Bytecode.INSTR_LOAD_PROP :
+                    resolved[ip] = new PropertySite(impl.strings[a]);
+                    break;
+                case Bytecode.INSTR_WRITE_OPT_CONST :
+                    resolved[ip] = impl.constantOptions[a];
+                    break;
+                case Bytecode.INSTR_LOAD_LOCAL_PROP :
+                case Bytecode.INSTR_WRITE_LOCAL_PROP :
+                    resolved[ip] = new PropertySite(impl.strings[b]);
+                    break;
+                default :
+                    if ( I.type[0]==Bytecode.OperandType.STRING ) resolved[ip] = impl.strings[a];
+                    else if ( I.type[1]==Bytecode.OperandType.STRING ) resolved[ip] = impl.strings[b];
+                    break;
+            }
+            ip += 1 + I.nopnds*Bytecode.OPND_SIZE_IN_BYTES;
+        }
+        boolean[] target = valid && ip==codeSize ? findBranchTargets() : null;
+        if ( target!=null ) {
+            findTextRuns(target);
+            findStreamedMaps(target);
+        }
+    }
+
+    /** Return the addresses some branch jumps to, or {@code null} if a
+     *  branch goes astray.
+     */
+    private boolean[] findBranchTargets() {
+        boolean[] target = new boolean[codeSize+1];
+        int ip = 0;
+        while ( ip < codeSize ) {
+            int opnd = BytecodeOptimizer.addressOperand((short)instrs[ip]);
+            if ( opnd>0 ) {
+                int addr = instrs[ip+opnd];
+                if ( addr<0 || addr>codeSize ) return null;
+                target[addr] = true;
+            }
+            ip = next(ip);
+        }
+        return target;
+    }
+
+    /** Replace the operand of the first {@code write_str} of each
+     *  {@link TextRun} with the run.
+     */
+    private void findTextRuns(boolean[] target) {
+        int ip = 0;
+        while ( ip < codeSize ) {
+            if ( instrs[ip]!=Bytecode.INSTR_WRITE_STR ) {
+                ip = next(ip);
+                continue;
+            }
+            // extend the run as far as we can, but end it after a write_str
+            // or dedent so the next newline sees the same previous opcode
+            int end = next(ip);
+            int len = 1;
+            int nstrings = 1;
+            int a = end;
+            int i = 1;
+            while ( a<codeSize && !target[a] && TextRun.isText(instrs[a]) ) {
+                int opcode = instrs[a];
+                a = next(a);
+                i++;
+                if ( opcode==Bytecode.INSTR_WRITE_STR || opcode==Bytecode.INSTR_DEDENT ) {
+                    if ( opcode==Bytecode.INSTR_WRITE_STR ) nstrings++;
+                    end = a;
+                    len = i;
+                }
+            }
+            if ( nstrings>=TextRun.MIN_STRINGS ) {
+                short[] opcodes = new short[len];
+                String[] strings = new String[len];
+                a = ip;
+                for (i=0; i<len; i++) {
+                    opcodes[i] = (short)instrs[a];
+                    if ( opcodes[i]!=Bytecode.INSTR_NEWLINE && opcodes[i]!=Bytecode.INSTR_DEDENT ) {
+                        strings[i] = (String)resolved[a];
+                    }
+                    a = next(a);
+                }
+                resolved[ip] = new TextRun(opcodes, strings, end);
+            }
+            ip = end;
+        }
+    }
+
+    private void findStreamedMaps(boolean[] target) {
+        int ip = 0;
+        while ( ip < codeSize ) {
+            int opcode = instrs[ip];
+            ip = next(ip);
+            if ( opcode==Bytecode.INSTR_MAP || opcode==Bytecode.INSTR_ROT_MAP ||
+                 opcode==Bytecode.INSTR_ZIP_MAP )
+            {
+                streamed[ip-BytecodeOptimizer.size((short)opcode)] = writtenRightAway(ip, target);
+            }
+        }
+    }
+
+    /** Return {@code true} if the value on top of the stack when we get to
+     *  {@code ip} is the next thing written, with at most some options
+     *  computed in between.
+     */
+    private boolean writtenRightAway(int ip, boolean[] target) {
+        if ( ip>=codeSize || target[ip] ) return false;
+        int opcode = instrs[ip];
+        if ( opcode==Bytecode.INSTR_WRITE || opcode==Bytecode.INSTR_WRITE_OPT_CONST ) return true;
+        if ( opcode!=Bytecode.INSTR_OPTIONS ) return false;
+        // each option value is pushed on top of the options and then stored;
+        // anything else could be looking at our value
+        int depth = 1;
+        ip = next(ip);
+        while ( ip<codeSize && !target[ip] ) {
+            opcode = instrs[ip];
+            if ( opcode==Bytecode.INSTR_WRITE_OPT ) return depth==1;
+            if ( BytecodeOptimizer.addressOperand((short)opcode)>0 ) return false;
+            int nopnds = Bytecode.instructions[opcode].nopnds;
+            depth += Bytecode.stackEffect((short)opcode,
+                                          nopnds>0 ? instrs[ip+1] : 0,
+                                          nopnds>1 ? instrs[ip+3] : 0);
+            if ( depth<1 || (depth==1 && opcode!=Bytecode.INSTR_STORE_OPTION) ) return false;
+            ip = next(ip);
+        }
+        return false;
+    }
+
+    private int next(int ip) {
+        return ip + BytecodeOptimizer.size((short)instrs[ip]);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.compiler;
+
+import org.stringtemplate.v4.ModelAdaptor;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.misc.ObjectModelAdaptor;
+import org.stringtemplate.v4.misc.STNoSuchPropertyException;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+/**
+ * The operand of a {@code load_prop}, {@code load_local_prop}, or
+ * {@code write_local_prop} instruction in {@link LinkedCode}: the property
+ * name plus a polymorphic inline cache. For each of the last few receiver
+ * classes seen at the instruction, the cache remembers the
+ * {@link ModelAdaptor} the group picked for it and, if that adaptor is a plain
+ * {@link ObjectModelAdaptor}, the getter or field to read directly.
+ * <p>
+ * An {@link Entry} is only valid for the group it was computed for, and only
+ * until that group's model adaptors change (see
+ * {@link STGroup#getModelAdaptorVersion}). Once more than
+ * {@link #MAX_ENTRIES} receiver types have shown up, the site is megamorphic
+ * and stops caching; every lookup then goes through the group as usual.</p>
+ */
+public final class PropertySite {
+    public static final int MAX_ENTRIES = 4;
+
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    public final String name;
+
+    /** Never modified once published; {@link #add} copies. */
+    private volatile Entry[] entries = NO_ENTRIES;
+
+    private volatile boolean megamorphic;
+
+    public PropertySite(String name) {
+        this.name = name;
+    }
+
+    /** Return the cache entry for objects of class {@code type} in
+     *  {@code group}, or {@code null} if there is none.
+     */
+    public Entry lookup(Class<?> type, STGroup group) {
+        Entry[] entries = this.entries;
+        for (Entry e : entries) {
+            if ( e.type==type && e.group==group ) {
+                return e.version==group.getModelAdaptorVersion() ? e : null;
+            }
+        }
+        return null;
+    }
+
+    /** Remember that {@code group} uses {@code adaptor} for objects of class
+     *  {@code type}; {@code version} is the group's
+     *  {@link STGroup#getModelAdaptorVersion} from before it returned the adaptor.
+     *
+     *  @return the new entry, or {@code null} if the site is megamorphic
+     */
+    public Entry add(Class<?> type, STGroup group, int version, ModelAdaptor<?> adaptor) {
+        if ( megamorphic ) return null;
+        Member member = null;
+        if ( adaptor.getClass()==ObjectModelAdaptor.class ) { // subclasses may override getProperty
+            member = ObjectModelAdaptor.getPropertyMember(type, name);
+        }
+        Entry e = new Entry(type, group, version, adaptor, member);
+        Entry[] old = entries;
+        int n = 0;
+        Entry[] copy = new Entry[old.length+1];
+        for (Entry o : old) {
+            if ( o.type!=type || o.group!=group ) copy[n++] = o; // drop stale entry
+        }
+        if ( n>=MAX_ENTRIES ) {
+            megamorphic = true;
+            entries = NO_ENTRIES;
+            return null;
+        }
+        copy[n++] = e;
+        if ( n<copy.length ) {
+            Entry[] trimmed = new Entry[n];
+            System.arraycopy(copy, 0, trimmed, 0, n);
+            copy = trimmed;
+        }
+        entries = copy;
+        return e;
+    }
+
+    public boolean isMegamorphic() {
+        return megamorphic;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    public static final class Entry {
+        public final Class<?> type;
+        public final STGroup group;
+        public final int version;
+        public final ModelAdaptor<?> adaptor;
+        /** Getter or field {@link #adaptor} would read; {@code null} to ask the adaptor. */
+        public final Member member;
+
+        public Entry(Class<?> type, STGroup group, int version, ModelAdaptor<?> adaptor, Member member) {
+            this.type = type;
+            this.group = group;
+            this.version = version;
+            this.adaptor = adaptor;
+            this.member = member;
+        }
+
+        /** Read {@link #member} of {@code o} the way {@link ObjectModelAdaptor} does. */
+        public Object get(Object o, String propertyName) throws STNoSuchPropertyException {
+            try {
+                if ( member instanceof Method ) return ((Method)member).invoke(o);
+                return ((Field)member).get(o);
+            }
+            catch (Exception e) {
+                throw new STNoSuchPropertyException(e, null, type.getName()+"."+propertyName);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.compiler;
+
+import org.stringtemplate.v4.STGroup;
+
+/**
+ * The operand of a {@code new}, {@code new_box_args}, {@code super_new}, or
+ * {@code super_new_box_args} instruction in {@link LinkedCode}. Besides the
+ * template name, it remembers what the name resolved to the last time the
+ * instruction executed so we don't have to look it up again. A
+ * {@link Resolution} is only valid for the group and template prefix it was
+ * computed for, and only until templates or imports of that group or a group
+ * it imports change (see {@link STGroup#getTemplateEpoch}).
+ */
+public final class TemplateSite {
+    public final String name;
+    public final int nargs;
+
+    /** Last successful resolution of {@link #name}; {@code null} if none. */
+    public volatile Resolution resolution;
+
+    public TemplateSite(String name, int nargs) {
+        this.name = name;
+        this.nargs = nargs;
+    }
+
+    /** Return the cached resolution if it is still valid for looking up
+     *  {@link #name} in {@code group} with {@code prefix}.
+     */
+    public Resolution getResolution(STGroup group, String prefix) {
+        Resolution r = resolution;
+        if ( r!=null && r.group==group && r.prefix==prefix &&
+             r.epoch==group.getTemplateEpoch() )
+        {
+            return r;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    public static final class Resolution {
+        /** The group we looked {@link #name} up in. */
+        public final STGroup group;
+        /** The prefix of the template containing the instruction. */
+        public final String prefix;
+        /** {@link STGroup#getTemplateEpoch} of {@link #group} before the
+         *  lookup started.
+         */
+        public final int epoch;
+        /** The template to instantiate. */
+        public final CompiledST code;
+        /** The group that creates the instance. */
+        public final STGroup creator;
+
+        public Resolution(STGroup group, String prefix, int epoch, CompiledST code, STGroup creator) {
+            this.group = group;
+            this.prefix = prefix;
+            this.epoch = epoch;
+            this.code = code;
+            this.creator = creator;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.compiler;
+
+/**
+ * A straight-line stretch of a template that only emits literal text: a
+ * {@code write_str} followed by more {@code write_str}, {@code newline},
+ * {@code indent}, and {@code dedent} instructions, none of them a branch
+ * target. {@link LinkedCode} finds these runs once, when the template is
+ * linked, and puts the run in {@link LinkedCode#resolved} at the address of
+ * its first {@code write_str}.
+ * <p>
+ * Whether a literal renders as itself depends on the group's
+ * {@link org.stringtemplate.v4.AttributeRenderer} for {@link String} at the
+ * time we write it, so the text can't simply be rendered at link time.
+ * Instead, {@link org.stringtemplate.v4.Interpreter} asks for the renderer
+ * once per run. If there is none, it writes the text between two
+ * {@code newline}, {@code indent}, or {@code dedent} instructions with one
+ * call, which we join here once. The writer sees the same characters and the
+ * same newline and indentation calls as from the individual instructions, so
+ * indentation, line wrapping, and anchors behave the same.</p>
+ * <p>
+ * A run never ends with a {@code newline} or {@code indent}, the only
+ * instructions the next {@code newline} looks back at.</p>
+ */
+public final class TextRun {
+    /** Only runs with at least this many {@code write_str}s are worth it. */
+    public static final int MIN_STRINGS = 2;
+
+    /** The instructions of the run, in order. */
+    public final short[] opcodes;
+
+    /** The text of each {@code write_str} and {@code indent}; {@code null}
+     *  for the others.
+     */
+    public final String[] strings;
+
+    /** At the first of each group of adjacent {@code write_str}s, the text of
+     *  the whole group; {@code null} everywhere else. This is what we write
+     *  when no renderer wants to see the literals.
+     */
+    public final String[] texts;
+
+    /** Address of the instruction right after the run. */
+    public final int end;
+
+    public TextRun(short[] opcodes, String[] strings, int end) {
+        this.opcodes = opcodes;
+        this.strings = strings;
+        this.end = end;
+        texts = new String[opcodes.length];
+        int first = -1;
+        StringBuilder buf = new StringBuilder();
+        for (int i=0; i<=opcodes.length; i++) {
+            if ( i<opcodes.length && opcodes[i]==Bytecode.INSTR_WRITE_STR ) {
+                if ( first<0 ) first = i;
+                buf.append(strings[i]);
+                continue;
+            }
+            if ( first>=0 ) texts[first] = buf.toString();
+            first = -1;
+            buf.setLength(0);
+        }
+    }
+
+    /** Return {@code true} if {@code opcode} may be part of a run. */
+    public static boolean isText(int opcode) {
+        return opcode==Bytecode.INSTR_WRITE_STR ||
+               opcode==Bytecode.INSTR_NEWLINE ||
+               opcode==Bytecode.INSTR_INDENT ||
+               opcode==Bytecode.INSTR_DEDENT;
+    }
+}
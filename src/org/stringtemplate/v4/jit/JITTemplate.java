@@ -0,0 +1,391 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.jit;
+
+import org.stringtemplate.v4.InstanceScope;
+import org.stringtemplate.v4.Interpreter;
+import org.stringtemplate.v4.STWriter;
+import org.stringtemplate.v4.compiler.AttributeSite;
+import org.stringtemplate.v4.compiler.CompiledST;
+import org.stringtemplate.v4.compiler.JITCompiler;
+import org.stringtemplate.v4.compiler.LinkedCode;
+import org.stringtemplate.v4.compiler.PropertySite;
+import org.stringtemplate.v4.compiler.TemplateSite;
+import org.stringtemplate.v4.compiler.TextRun;
+
+/**
+ * Superclass of the JVM classes generated by {@link JITCompiler}. A generated
+ * {@link #exec} method is a straight-line translation of a template's
+ * bytecode: each instruction becomes a call to one of the static helpers
+ * below, which in turn run the same {@link Interpreter} code as
+ * {@link Interpreter#exec}. Branches become JVM jumps, so the only work left
+ * at run time is the work the instructions actually do.
+ * <p>
+ * This package is not part of the API. Generated classes get a class loader
+ * of their own, so the JVM only lets them call protected or public members
+ * here; the helpers reach the package-private parts of {@link Interpreter}
+ * through the one {@link Bridge} that {@code org.stringtemplate.v4}
+ * installs.</p>
+ */
+public abstract class JITTemplate {
+    /** {@link LinkedCode#resolved} of the template this code was generated
+     *  from; holds the {@link TemplateSite}s, {@link PropertySite}s,
+     *  {@link AttributeSite}s, and {@link TextRun}s.
+     */
+    protected final Object[] resolved;
+
+    protected JITTemplate(CompiledST impl) {
+        this.resolved = impl.getLinkedCode().resolved;
+    }
+
+    /** Execute the template exactly like the interpreter would.
+     *
+     * @return the number of characters written to {@code out}
+     */
+    protected abstract int exec(Interpreter interp, STWriter out, InstanceScope scope);
+
+    /**
+     * The instructions behind the helpers of {@link JITTemplate}, one method
+     * per helper with the same name and parameters. Only
+     * {@code org.stringtemplate.v4.JITBridge} implements this, since that's
+     * where the {@link Interpreter} code they call lives; it has to be public
+     * for that, but nobody else can create one.
+     */
+    public abstract static class Bridge {
+        private static final String IMPLEMENTATION = "org.stringtemplate.v4.JITBridge";
+
+        static volatile Bridge instance;
+
+        protected Bridge() {
+            Class<?> c = getClass();
+            if ( !c.getName().equals(IMPLEMENTATION) ||
+                 c.getClassLoader()!=Bridge.class.getClassLoader() )
+            {
+                throw new IllegalStateException(c.getName()+" can't be a JIT bridge");
+            }
+        }
+
+        /** Make {@code bridge} the one the helpers call; only once. */
+        protected static synchronized void install(Bridge bridge) {
+            if ( instance!=null ) throw new IllegalStateException("bridge already installed");
+            instance = bridge;
+        }
+
+        /** Call {@link JITTemplate#exec} on {@code code}. */
+        protected static int exec(JITTemplate code, Interpreter interp, STWriter out, InstanceScope scope) {
+            return code.exec(interp, out, scope);
+        }
+
+        protected abstract void load_str(Interpreter interp, String s);
+        protected abstract void load_attr(Interpreter interp, InstanceScope scope, Object site);
+        protected abstract void load_local(Interpreter interp, InstanceScope scope, int valueIndex);
+        protected abstract void load_prop(Interpreter interp, STWriter out, InstanceScope scope, Object site);
+        protected abstract void load_prop_ind(Interpreter interp, STWriter out, InstanceScope scope);
+        protected abstract void new_template(Interpreter interp, InstanceScope scope, Object site);
+        protected abstract void new_ind(Interpreter interp, InstanceScope scope, int nargs);
+        protected abstract void new_box_args(Interpreter interp, InstanceScope scope, Object site);
+        protected abstract void super_new(Interpreter interp, InstanceScope scope, Object site);
+        protected abstract void super_new_box_args(Interpreter interp, InstanceScope scope, Object site);
+        protected abstract void store_option(Interpreter interp, int optionIndex);
+        protected abstract void store_arg(Interpreter interp, String name);
+        protected abstract int write(Interpreter interp, STWriter out, InstanceScope scope);
+        protected abstract int write_opt(Interpreter interp, STWriter out, InstanceScope scope);
+        protected abstract int write_str(Interpreter interp, STWriter out, InstanceScope scope, String s);
+        protected abstract int write_text(Interpreter interp, STWriter out, InstanceScope scope, Object run);
+        protected abstract int write_local(Interpreter interp, STWriter out, InstanceScope scope, int valueIndex);
+        protected abstract void load_local_prop(Interpreter interp, STWriter out, InstanceScope scope, int valueIndex, Object site);
+        protected abstract int write_local_prop(Interpreter interp, STWriter out, InstanceScope scope, int valueIndex, Object site);
+        protected abstract int write_opt_const(Interpreter interp, STWriter out, InstanceScope scope, Object optionStrings);
+        protected abstract int write_attr(Interpreter interp, STWriter out, InstanceScope scope, Object site);
+        protected abstract void map(Interpreter interp, InstanceScope scope);
+        protected abstract void map_streamed(Interpreter interp, InstanceScope scope);
+        protected abstract void rot_map(Interpreter interp, InstanceScope scope, int nmaps);
+        protected abstract void rot_map_streamed(Interpreter interp, InstanceScope scope, int nmaps);
+        protected abstract void zip_map(Interpreter interp, InstanceScope scope, int nmaps);
+        protected abstract void zip_map_streamed(Interpreter interp, InstanceScope scope, int nmaps);
+        protected abstract boolean brf(Interpreter interp);
+        protected abstract boolean brf_local(Interpreter interp, InstanceScope scope, int valueIndex);
+        protected abstract boolean brf_attr(Interpreter interp, InstanceScope scope, Object site);
+        protected abstract void options(Interpreter interp);
+        protected abstract void args(Interpreter interp);
+        protected abstract void passthru(Interpreter interp, InstanceScope scope, String name);
+        protected abstract void list(Interpreter interp);
+        protected abstract void add(Interpreter interp, InstanceScope scope);
+        protected abstract void tostr(Interpreter interp, STWriter out, InstanceScope scope);
+        protected abstract void first(Interpreter interp, InstanceScope scope);
+        protected abstract void last(Interpreter interp, InstanceScope scope);
+        protected abstract void rest(Interpreter interp, InstanceScope scope);
+        protected abstract void trunc(Interpreter interp, InstanceScope scope);
+        protected abstract void strip(Interpreter interp, InstanceScope scope);
+        protected abstract void trim(Interpreter interp, InstanceScope scope);
+        protected abstract void length(Interpreter interp);
+        protected abstract void strlen(Interpreter interp, InstanceScope scope);
+        protected abstract void reverse(Interpreter interp, InstanceScope scope);
+        protected abstract void not(Interpreter interp);
+        protected abstract void or(Interpreter interp);
+        protected abstract void and(Interpreter interp);
+        protected abstract void indent(Interpreter interp, STWriter out, InstanceScope scope, int strIndex);
+        protected abstract void newline(Interpreter interp, STWriter out, InstanceScope scope, int prevOpcode);
+        protected abstract void pop(Interpreter interp);
+        protected abstract void push_null(Interpreter interp);
+        protected abstract void push_true(Interpreter interp);
+        protected abstract void push_false(Interpreter interp);
+    }
+
+    protected static void load_str(Interpreter interp, String s) {
+        Bridge.instance.load_str(interp, s);
+    }
+
+    protected static void load_attr(Interpreter interp, InstanceScope scope, Object site) {
+        Bridge.instance.load_attr(interp, scope, site);
+    }
+
+    protected static void load_local(Interpreter interp, InstanceScope scope, int valueIndex) {
+        Bridge.instance.load_local(interp, scope, valueIndex);
+    }
+
+    protected static void load_prop(Interpreter interp, STWriter out, InstanceScope scope, Object site) {
+        Bridge.instance.load_prop(interp, out, scope, site);
+    }
+
+    protected static void load_prop_ind(Interpreter interp, STWriter out, InstanceScope scope) {
+        Bridge.instance.load_prop_ind(interp, out, scope);
+    }
+
+    protected static void new_template(Interpreter interp, InstanceScope scope, Object site) {
+        Bridge.instance.new_template(interp, scope, site);
+    }
+
+    protected static void new_ind(Interpreter interp, InstanceScope scope, int nargs) {
+        Bridge.instance.new_ind(interp, scope, nargs);
+    }
+
+    protected static void new_box_args(Interpreter interp, InstanceScope scope, Object site) {
+        Bridge.instance.new_box_args(interp, scope, site);
+    }
+
+    protected static void super_new(Interpreter interp, InstanceScope scope, Object site) {
+        Bridge.instance.super_new(interp, scope, site);
+    }
+
+    protected static void super_new_box_args(Interpreter interp, InstanceScope scope, Object site) {
+        Bridge.instance.super_new_box_args(interp, scope, site);
+    }
+
+    protected static void store_option(Interpreter interp, int optionIndex) {
+        Bridge.instance.store_option(interp, optionIndex);
+    }
+
+    protected static void store_arg(Interpreter interp, String name) {
+        Bridge.instance.store_arg(interp, name);
+    }
+
+    protected static int write(Interpreter interp, STWriter out, InstanceScope scope) {
+        return Bridge.instance.write(interp, out, scope);
+    }
+
+    protected static int write_opt(Interpreter interp, STWriter out, InstanceScope scope) {
+        return Bridge.instance.write_opt(interp, out, scope);
+    }
+
+    protected static int write_str(Interpreter interp, STWriter out, InstanceScope scope, String s) {
+        return Bridge.instance.write_str(interp, out, scope, s);
+    }
+
+    protected static int write_text(Interpreter interp, STWriter out, InstanceScope scope, Object run) {
+        return Bridge.instance.write_text(interp, out, scope, run);
+    }
+
+    protected static int write_local(Interpreter interp, STWriter out, InstanceScope scope, int valueIndex) {
+        return Bridge.instance.write_local(interp, out, scope, valueIndex);
+    }
+
+    protected static void load_local_prop(Interpreter interp, STWriter out, InstanceScope scope,
+                                          int valueIndex, Object site)
+    {
+        Bridge.instance.load_local_prop(interp, out, scope, valueIndex, site);
+    }
+
+    protected static int write_local_prop(Interpreter interp, STWriter out, InstanceScope scope,
+                                          int valueIndex, Object site)
+    {
+        return Bridge.instance.write_local_prop(interp, out, scope, valueIndex, site);
+    }
+
+    protected static int write_opt_const(Interpreter interp, STWriter out, InstanceScope scope,
+                                         Object optionStrings)
+    {
+        return Bridge.instance.write_opt_const(interp, out, scope, optionStrings);
+    }
+
+    protected static int write_attr(Interpreter interp, STWriter out, InstanceScope scope, Object site) {
+        return Bridge.instance.write_attr(interp, out, scope, site);
+    }
+
+    protected static void map(Interpreter interp, InstanceScope scope) {
+        Bridge.instance.map(interp, scope);
+    }
+
+    protected static void map_streamed(Interpreter interp, InstanceScope scope) {
+        Bridge.instance.map_streamed(interp, scope);
+    }
+
+    protected static void rot_map(Interpreter interp, InstanceScope scope, int nmaps) {
+        Bridge.instance.rot_map(interp, scope, nmaps);
+    }
+
+    protected static void rot_map_streamed(Interpreter interp, InstanceScope scope, int nmaps) {
+        Bridge.instance.rot_map_streamed(interp, scope, nmaps);
+    }
+
+    protected static void zip_map(Interpreter interp, InstanceScope scope, int nmaps) {
+        Bridge.instance.zip_map(interp, scope, nmaps);
+    }
+
+    protected static void zip_map_streamed(Interpreter interp, InstanceScope scope, int nmaps) {
+        Bridge.instance.zip_map_streamed(interp, scope, nmaps);
+    }
+
+    /** Pop the condition of a {@code BRF} instruction.
+     *
+     * @return {@code true} if the branch must be taken
+     */
+    protected static boolean brf(Interpreter interp) {
+        return Bridge.instance.brf(interp);
+    }
+
+    /** Like {@link #brf} for a {@code brf_local} instruction. */
+    protected static boolean brf_local(Interpreter interp, InstanceScope scope, int valueIndex) {
+        return Bridge.instance.brf_local(interp, scope, valueIndex);
+    }
+
+    /** Like {@link #brf} for a {@code brf_attr} instruction. */
+    protected static boolean brf_attr(Interpreter interp, InstanceScope scope, Object site) {
+        return Bridge.instance.brf_attr(interp, scope, site);
+    }
+
+    protected static void options(Interpreter interp) {
+        Bridge.instance.options(interp);
+    }
+
+    protected static void args(Interpreter interp) {
+        Bridge.instance.args(interp);
+    }
+
+    protected static void passthru(Interpreter interp, InstanceScope scope, String name) {
+        Bridge.instance.passthru(interp, scope, name);
+    }
+
+    protected static void list(Interpreter interp) {
+        Bridge.instance.list(interp);
+    }
+
+    protected static void add(Interpreter interp, InstanceScope scope) {
+        Bridge.instance.add(interp, scope);
+    }
+
+    protected static void tostr(Interpreter interp, STWriter out, InstanceScope scope) {
+        Bridge.instance.tostr(interp, out, scope);
+    }
+
+    protected static void first(Interpreter interp, InstanceScope scope) {
+        Bridge.instance.first(interp, scope);
+    }
+
+    protected static void last(Interpreter interp, InstanceScope scope) {
+        Bridge.instance.last(interp, scope);
+    }
+
+    protected static void rest(Interpreter interp, InstanceScope scope) {
+        Bridge.instance.rest(interp, scope);
+    }
+
+    protected static void trunc(Interpreter interp, InstanceScope scope) {
+        Bridge.instance.trunc(interp, scope);
+    }
+
+    protected static void strip(Interpreter interp, InstanceScope scope) {
+        Bridge.instance.strip(interp, scope);
+    }
+
+    protected static void trim(Interpreter interp, InstanceScope scope) {
+        Bridge.instance.trim(interp, scope);
+    }
+
+    protected static void length(Interpreter interp) {
+        Bridge.instance.length(interp);
+    }
+
+    protected static void strlen(Interpreter interp, InstanceScope scope) {
+        Bridge.instance.strlen(interp, scope);
+    }
+
+    protected static void reverse(Interpreter interp, InstanceScope scope) {
+        Bridge.instance.reverse(interp, scope);
+    }
+
+    protected static void not(Interpreter interp) {
+        Bridge.instance.not(interp);
+    }
+
+    protected static void or(Interpreter interp) {
+        Bridge.instance.or(interp);
+    }
+
+    protected static void and(Interpreter interp) {
+        Bridge.instance.and(interp);
+    }
+
+    protected static void indent(Interpreter interp, STWriter out, InstanceScope scope, int strIndex) {
+        Bridge.instance.indent(interp, out, scope, strIndex);
+    }
+
+    protected static void dedent(STWriter out) {
+        out.popIndentation();
+    }
+
+    protected static void newline(Interpreter interp, STWriter out, InstanceScope scope, int prevOpcode) {
+        Bridge.instance.newline(interp, out, scope, prevOpcode);
+    }
+
+    protected static void pop(Interpreter interp) {
+        Bridge.instance.pop(interp);
+    }
+
+    protected static void push_null(Interpreter interp) {
+        Bridge.instance.push_null(interp);
+    }
+
+    protected static void push_true(Interpreter interp) {
+        Bridge.instance.push_true(interp);
+    }
+
+    protected static void push_false(Interpreter interp) {
+        Bridge.instance.push_false(interp);
+    }
+}
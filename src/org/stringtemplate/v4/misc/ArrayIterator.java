@@ -33,7 +33,8 @@ import java.util.List;
 import java.util.NoSuchElementException;
 
 /** Iterator for an array so I don't have to copy the array to a {@link List}
- *  just to make it implement {@link Iterator}.
+ *  just to make it implement {@link Iterator}. The static methods read
+ *  elements of primitive arrays without going through reflection.
  */
 public class ArrayIterator implements Iterator<Object> {
     /** Index into the data array */
@@ -58,11 +59,57 @@ public class ArrayIterator implements Iterator<Object> {
         if ( i >= n ) {
             throw new NoSuchElementException();
         }
-        return Array.get(array, i);
+        return get(array, i);
     }
 
     @Override
     public void remove() {
         throw new UnsupportedOperationException();
     }
+
+    /** Return element {@code i} of {@code array}, boxed if it's primitive.
+     *  Like {@link Array#get} but much faster for the usual element types.
+     */
+    public static Object get(Object array, int i) {
+        if ( array instanceof Object[] ) return ((Object[])array)[i];
+        if ( array instanceof int[] ) return ((int[])array)[i];
+        if ( array instanceof long[] ) return ((long[])array)[i];
+        if ( array instanceof double[] ) return ((double[])array)[i];
+        if ( array instanceof float[] ) return ((float[])array)[i];
+        if ( array instanceof boolean[] ) return ((boolean[])array)[i];
+        if ( array instanceof char[] ) return ((char[])array)[i];
+        if ( array instanceof byte[] ) return ((byte[])array)[i];
+        if ( array instanceof short[] ) return ((short[])array)[i];
+        return Array.get(array, i);
+    }
+
+    /** Return {@code String.valueOf} element {@code i} of a primitive
+     *  {@code array}, which is what its boxed value's {@code toString}
+     *  would return, without boxing it.
+     */
+    public static String elementToString(Object array, int i) {
+        if ( array instanceof int[] ) return Integer.toString(((int[])array)[i]);
+        if ( array instanceof long[] ) return Long.toString(((long[])array)[i]);
+        if ( array instanceof double[] ) return Double.toString(((double[])array)[i]);
+        if ( array instanceof float[] ) return Float.toString(((float[])array)[i]);
+        if ( array instanceof boolean[] ) return String.valueOf(((boolean[])array)[i]);
+        if ( array instanceof char[] ) return String.valueOf(((char[])array)[i]);
+        if ( array instanceof byte[] ) return Byte.toString(((byte[])array)[i]);
+        if ( array instanceof short[] ) return Short.toString(((short[])array)[i]);
+        return String.valueOf(get(array, i));
+    }
+
+    /** Return the class of the boxed elements of a primitive {@code array}. */
+    public static Class<?> boxedElementType(Object array) {
+        Class<?> type = array.getClass().getComponentType();
+        if ( type==int.class ) return Integer.class;
+        if ( type==long.class ) return Long.class;
+        if ( type==double.class ) return Double.class;
+        if ( type==float.class ) return Float.class;
+        if ( type==boolean.class ) return Boolean.class;
+        if ( type==char.class ) return Character.class;
+        if ( type==byte.class ) return Byte.class;
+        if ( type==short.class ) return Short.class;
+        return type;
+    }
 }
@@ -0,0 +1,215 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.misc;
+
+import java.lang.reflect.Array;
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/** Read-only views the collection functions ({@code rest}, {@code trunc},
+ *  {@code strip}, and {@code reverse}) return instead of copying their
+ *  argument. A view reads through to the collection it was made from every
+ *  time it's iterated, so it costs nothing until somebody looks at it.
+ */
+public final class CollectionViews {
+    private CollectionViews() {
+    }
+
+    /** Return a fixed-size list backed by an array of any element type. */
+    public static List<Object> asList(Object array) {
+        if ( array instanceof Object[] ) return Arrays.asList((Object[])array);
+        return new PrimitiveArrayList(array);
+    }
+
+    /** Return all elements of {@code c} but the first. */
+    public static Collection<Object> rest(Collection<?> c) {
+        if ( c instanceof Slice ) {
+            // first(x)/rest(x) recursion: a view of a view would have to skip
+            // ever more elements, so copy once and let List.subList take over
+            List<Object> elems = new ArrayList<Object>(c);
+            return elems.subList(1, elems.size());
+        }
+        return new Slice(c, 1, 0);
+    }
+
+    /** Return all elements of {@code c} but the last. */
+    public static Collection<Object> trunc(Collection<?> c) {
+        if ( c instanceof Slice ) {
+            Slice s = (Slice)c;
+            return new Slice(s.elements, s.skipFirst, s.skipLast+1);
+        }
+        return new Slice(c, 0, 1);
+    }
+
+    /** Return the elements of {@code elements} that aren't {@code null}. */
+    public static Collection<Object> strip(Iterable<?> elements) {
+        return new Stripped(elements);
+    }
+
+    /** Return {@code list}, which should be {@link RandomAccess}, back to front. */
+    @SuppressWarnings("unchecked")
+    public static List<Object> reverse(List<?> list) {
+        if ( list instanceof Reversed ) return (List<Object>)((Reversed)list).list;
+        return new Reversed(list);
+    }
+
+    /** {@link Collection#size} elements of a collection, less some at each end. */
+    static final class Slice extends AbstractCollection<Object> {
+        final Collection<?> elements;
+        final int skipFirst;
+        final int skipLast;
+
+        Slice(Collection<?> elements, int skipFirst, int skipLast) {
+            this.elements = elements;
+            this.skipFirst = skipFirst;
+            this.skipLast = skipLast;
+        }
+
+        @Override
+        public int size() {
+            return Math.max(0, elements.size() - skipFirst - skipLast);
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            final int n = size();
+            final Iterator<?> it = elements.iterator();
+            for (int i=0; i<skipFirst && n>0; i++) it.next();
+            return new Iterator<Object>() {
+                int i = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return i < n;
+                }
+
+                @Override
+                public Object next() {
+                    if ( i >= n ) throw new NoSuchElementException();
+                    i++;
+                    return it.next();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    static final class Stripped extends AbstractCollection<Object> {
+        final Iterable<?> elements;
+
+        Stripped(Iterable<?> elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        public int size() {
+            int n = 0;
+            for (Object o : elements) if ( o!=null ) n++;
+            return n;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return !iterator().hasNext();
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            final Iterator<?> it = elements.iterator();
+            return new Iterator<Object>() {
+                Object next;
+
+                @Override
+                public boolean hasNext() {
+                    while ( next==null && it.hasNext() ) next = it.next();
+                    return next!=null;
+                }
+
+                @Override
+                public Object next() {
+                    if ( !hasNext() ) throw new NoSuchElementException();
+                    Object o = next;
+                    next = null;
+                    return o;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    static final class Reversed extends AbstractList<Object> implements RandomAccess {
+        final List<?> list;
+
+        Reversed(List<?> list) {
+            this.list = list;
+        }
+
+        @Override
+        public Object get(int index) {
+            return list.get(list.size() - 1 - index);
+        }
+
+        @Override
+        public int size() {
+            return list.size();
+        }
+    }
+
+    static final class PrimitiveArrayList extends AbstractList<Object> implements RandomAccess {
+        final Object array;
+
+        PrimitiveArrayList(Object array) {
+            this.array = array;
+        }
+
+        @Override
+        public Object get(int index) {
+            return ArrayIterator.get(array, index);
+        }
+
+        @Override
+        public int size() {
+            return Array.getLength(array);
+        }
+    }
+}
@@ -36,7 +36,7 @@ import org.stringtemplate.v4.ST;
 import org.stringtemplate.v4.STErrorListener;
 
 public class ErrorManager {
-    public static STErrorListener DEFAULT_ERROR_LISTENER =
+    private static final STErrorListener QUIET_ABOUT_PROPERTIES =
         new STErrorListener() {
             @Override
             public void compileTimeError(STMessage msg) {
@@ -70,6 +70,8 @@ public class ErrorManager {
             }
         };
 
+    public static STErrorListener DEFAULT_ERROR_LISTENER = QUIET_ABOUT_PROPERTIES;
+
     public final STErrorListener listener;
 
     public ErrorManager() { this(DEFAULT_ERROR_LISTENER); }
@@ -118,6 +120,16 @@ public class ErrorManager {
         );
     }
 
+    /** Return {@code true} if {@link #listener} is known to drop run-time
+     *  errors of type {@code error}, so there's no need to build a message
+     *  for them. The default listener and a plain {@link ErrorBuffer} both
+     *  drop {@link ErrorType#NO_SUCH_PROPERTY}.
+     */
+    public boolean ignoresRunTimeError(ErrorType error) {
+        return error==ErrorType.NO_SUCH_PROPERTY &&
+               (listener==QUIET_ABOUT_PROPERTIES || listener.getClass()==ErrorBuffer.class);
+    }
+
     public void runTimeError(Interpreter interp, InstanceScope scope, ErrorType error) {
         listener.runTimeError(new STRuntimeMessage(interp, error, scope != null ? scope.ip : 0, scope));
     }
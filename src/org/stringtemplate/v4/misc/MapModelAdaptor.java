@@ -35,34 +35,45 @@ import org.stringtemplate.v4.STGroup;
 import java.util.Map;
 
 public class MapModelAdaptor implements ModelAdaptor<Map<?, ?>> {
+    /** What {@link #get} returns for a key the map doesn't have. */
+    private static final Object ABSENT = new Object();
+
     @Override
     public Object getProperty(Interpreter interp, ST self, Map<?, ?> model, Object property, String propertyName)
         throws STNoSuchPropertyException
     {
-        Object value;
-        if ( property==null ) value = getDefaultValue(model);
-        else if ( containsKey(model, property) ) value = model.get(property);
-        else if ( containsKey(model, propertyName) ) { // if can't find the key, try toString version
-            value = model.get(propertyName);
+        Object value = ABSENT;
+        if ( property!=null ) {
+            value = get(model, property);
+            // if can't find the key, try toString version (same key for strings)
+            if ( value==ABSENT && !property.equals(propertyName) ) value = get(model, propertyName);
+            if ( value==ABSENT ) {
+                if ( property.equals("keys") ) value = model.keySet();
+                else if ( property.equals("values") ) value = model.values();
+            }
         }
-        else if ( property.equals("keys") ) value = model.keySet();
-        else if ( property.equals("values") ) value = model.values();
-        else value = getDefaultValue(model); // not found, use default
+        if ( value==ABSENT ) value = getDefaultValue(model); // not found, use default
         if ( value == STGroup.DICT_KEY ) {
             value = property;
         }
         return value;
     }
 
-    private static Boolean containsKey(Map<?, ?> map, Object key) {
+    /** Return the value of {@code key} in {@code map}, or {@link #ABSENT} if
+     *  there is none. Only a {@code null} value takes a second probe to tell
+     *  it from a missing key.
+     */
+    private static Object get(Map<?, ?> map, Object key) {
         try {
-            return map.containsKey(key);
+            Object value = map.get(key);
+            if ( value!=null || map.containsKey(key) ) return value;
         }
         catch (ClassCastException ex) {
-            // Map.containsKey is allowed to throw ClassCastException if the key
-            // cannot be compared to keys already in the map.
-            return false;
+            // Map.get and Map.containsKey are allowed to throw
+            // ClassCastException if the key cannot be compared to keys
+            // already in the map.
         }
+        return ABSENT;
     }
 
     private static Object getDefaultValue(Map<?, ?> map) {
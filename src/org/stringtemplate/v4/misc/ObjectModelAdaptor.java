@@ -28,16 +28,18 @@
 package org.stringtemplate.v4.misc;
 
 import org.stringtemplate.v4.Interpreter;
-import org.stringtemplate.v4.ModelAdaptor;
 import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.TryModelAdaptor;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-public class ObjectModelAdaptor<T> implements ModelAdaptor<T> {
+public class ObjectModelAdaptor<T> implements TryModelAdaptor<T> {
     protected static final Member INVALID_MEMBER;
     static {
         Member invalidMember;
@@ -52,13 +54,46 @@ public class ObjectModelAdaptor<T> implements ModelAdaptor<T> {
         INVALID_MEMBER = invalidMember;
     }
 
+    /** @deprecated No longer used; members are now cached without locking. */
+    @Deprecated
     protected static final Map<Class<?>, Map<String, Member>> membersCache =
         new HashMap<Class<?>, Map<String, Member>>();
 
+    /** The getter or field for each property name looked up so far, per
+     *  class; {@link #INVALID_MEMBER} if there is none. Lookups don't lock.
+     */
+    private static final WeakClassMap<ConcurrentMap<String, Member>> members =
+        new WeakClassMap<ConcurrentMap<String, Member>>();
+
+    /** Whether this is a subclass that overrides {@link #getProperty} or
+     *  {@link #throwNoSuchProperty}; {@link #tryGetProperty} then has to go
+     *  through them.
+     */
+    private final boolean customized = overrides(getClass());
+
+    @Override
+    public Object getProperty(Interpreter interp, ST self, T model, Object property, String propertyName)
+        throws STNoSuchPropertyException
+    {
+        Object value = lookupProperty(model, property, propertyName);
+        if ( value==NO_SUCH_PROPERTY ) {
+            return throwNoSuchProperty(model.getClass(), propertyName, null);
+        }
+        return value;
+    }
+
     @Override
-    public synchronized Object getProperty(Interpreter interp, ST self, T model, Object property, String propertyName)
+    public Object tryGetProperty(Interpreter interp, ST self, T model, Object property, String propertyName)
         throws STNoSuchPropertyException
     {
+        if ( customized ) return getProperty(interp, self, model, property, propertyName);
+        return lookupProperty(model, property, propertyName);
+    }
+
+    /** Read a property the way {@link #getProperty} does, but return
+     *  {@link #NO_SUCH_PROPERTY} if there is no getter or field for it.
+     */
+    private Object lookupProperty(T model, Object property, String propertyName) {
         if (model == null) {
             throw new NullPointerException("o");
         }
@@ -66,7 +101,7 @@ public class ObjectModelAdaptor<T> implements ModelAdaptor<T> {
         Class<?> c = model.getClass();
 
         if ( property==null ) {
-            return throwNoSuchProperty(c, propertyName, null);
+            return NO_SUCH_PROPERTY;
         }
 
         Member member = findMember(c, propertyName);
@@ -84,7 +119,24 @@ public class ObjectModelAdaptor<T> implements ModelAdaptor<T> {
             }
         }
 
-        return throwNoSuchProperty(c, propertyName, null);
+        return NO_SUCH_PROPERTY;
+    }
+
+    private static boolean overrides(Class<?> clazz) {
+        for (Class<?> c = clazz; c!=ObjectModelAdaptor.class; c = c.getSuperclass()) {
+            for (Method m : c.getDeclaredMethods()) {
+                String name = m.getName();
+                if ( name.equals("getProperty") || name.equals("throwNoSuchProperty") ) return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the getter or field {@link #getProperty} reads for property
+     *  {@code name} of {@code clazz} objects, or {@code null} if there is none.
+     */
+    public static Member getPropertyMember(Class<?> clazz, String name) {
+        return findMember(clazz, name);
     }
 
     protected static Member findMember(Class<?> clazz, String memberName) {
@@ -95,40 +147,36 @@ public class ObjectModelAdaptor<T> implements ModelAdaptor<T> {
             throw new NullPointerException("memberName");
         }
 
-        synchronized (membersCache) {
-            Map<String, Member> members = membersCache.get(clazz);
-            Member member;
-            if (members != null) {
-                member = members.get(memberName);
-                if (member != null) {
-                    return member != INVALID_MEMBER ? member : null;
-                }
-            }
-            else {
-                members = new HashMap<String, Member>();
-                membersCache.put(clazz, members);
-            }
+        ConcurrentMap<String, Member> classMembers = members.get(clazz);
+        if ( classMembers==null ) {
+            classMembers = members.putIfAbsent(clazz, new ConcurrentHashMap<String, Member>());
+        }
+        Member member = classMembers.get(memberName);
+        if ( member!=null ) {
+            return member != INVALID_MEMBER ? member : null;
+        }
 
-            // try getXXX and isXXX properties, look up using reflection
-            String methodSuffix = Character.toUpperCase(memberName.charAt(0)) +
-                memberName.substring(1, memberName.length());
-            
-            member = tryGetMethod(clazz, "get" + methodSuffix);
-            if (member == null) {
-                member = tryGetMethod(clazz, "is" + methodSuffix);
-                if (member == null) {
-                    member = tryGetMethod(clazz, "has" + methodSuffix);
-                }
-            }
+        // try getXXX and isXXX properties, look up using reflection
+        String methodSuffix = Character.toUpperCase(memberName.charAt(0)) +
+            memberName.substring(1, memberName.length());
 
+        member = tryGetMethod(clazz, "get" + methodSuffix);
+        if (member == null) {
+            member = tryGetMethod(clazz, "is" + methodSuffix);
             if (member == null) {
-                // try for a visible field
-                member = tryGetField(clazz, memberName);
+                member = tryGetMethod(clazz, "has" + methodSuffix);
             }
+        }
 
-            members.put(memberName, member != null ? member : INVALID_MEMBER);
-            return member;
+        if (member == null) {
+            // try for a visible field
+            member = tryGetField(clazz, memberName);
         }
+
+        // another thread may have found the same member meanwhile; either will do
+        if ( member!=null ) classMembers.putIfAbsent(memberName, member);
+        else if ( INVALID_MEMBER!=null ) classMembers.putIfAbsent(memberName, INVALID_MEMBER);
+        return member;
     }
 
     protected static Method tryGetMethod(Class<?> clazz, String methodName) {
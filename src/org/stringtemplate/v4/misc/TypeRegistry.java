@@ -35,29 +35,47 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Maps types to values such that a value registered for a type also applies
+ * to its subtypes, the most specific registration winning.
+ * <p>
+ * Safe for concurrent use. Reads never lock: the registrations are an
+ * immutable snapshot, and each class looked up is resolved against it once
+ * and remembered. Writes copy the snapshot and are expected to be rare.</p>
  *
  * @author Sam Harwell
  */
 public class TypeRegistry<V> implements Map<Class<?>, V> {
 
-    private final Map<Class<?>, V> backingStore = new HashMap<Class<?>, V>();
-    private final Map<Class<?>, Class<?>> cache = new HashMap<Class<?>, Class<?>>();
+    /** Remembered in {@link Snapshot#resolved} for classes nothing applies to. */
+    private static final Object NO_MATCH = new Object();
+
+    /** The registrations at some point, and the lookups resolved against them. */
+    private static final class Snapshot<V> {
+        /** Never modified once published. */
+        final Map<Class<?>, V> backingStore;
+        /** Value, or {@link #NO_MATCH}, for each class looked up. */
+        final ConcurrentMap<Class<?>, Object> resolved = new ConcurrentHashMap<Class<?>, Object>();
+
+        Snapshot(Map<Class<?>, V> backingStore) {
+            this.backingStore = backingStore;
+        }
+    }
+
+    private volatile Snapshot<V> snapshot = new Snapshot<V>(new HashMap<Class<?>, V>());
 
     public int size() {
-        return backingStore.size();
+        return snapshot.backingStore.size();
     }
 
     public boolean isEmpty() {
-        return backingStore.isEmpty();
+        return snapshot.backingStore.isEmpty();
     }
 
     public boolean containsKey(Object key) {
-        if (cache.containsKey(key)) {
-            return true;
-        }
-
         if (!(key instanceof Class)) {
             return false;
         }
@@ -76,27 +94,36 @@ public class TypeRegistry<V> implements Map<Class<?>, V> {
      * @throws AmbiguousMatchException if the registry contains more than value
      * mapped to a maximally-specific type from which {@code key} is derived.
      */
+    @SuppressWarnings("unchecked")
     public V get(Object key) {
-        V value = backingStore.get(key);
+        Snapshot<V> s = snapshot;
+        V value = s.backingStore.get(key);
         if (value != null) {
             return value;
         }
 
-        Class<?> redirect = cache.get(key);
-        if (redirect != null) {
-            if (redirect == Void.TYPE) {
-                return null;
-            }
-            else {
-                return backingStore.get(redirect);
-            }
-        }
-
         if (!(key instanceof Class)) {
             return null;
         }
 
-        Class<?> keyClass = (Class<?>)key;
+        Object match = s.resolved.get(key);
+        if (match == null) {
+            Class<?> keyClass = (Class<?>)key;
+            Class<?> type = resolve(s.backingStore, keyClass);
+            match = type != null ? s.backingStore.get(type) : null;
+            if (match == null) {
+                match = NO_MATCH;
+            }
+            s.resolved.putIfAbsent(keyClass, match);
+        }
+
+        return match != NO_MATCH ? (V)match : null;
+    }
+
+    /** Return the most specific type in {@code backingStore} that
+     *  {@code keyClass} is derived from, or {@code null} if there is none.
+     */
+    private static Class<?> resolve(Map<Class<?>, ?> backingStore, Class<?> keyClass) {
         List<Class<?>> candidates = new ArrayList<Class<?>>();
         for (Class<?> clazz : backingStore.keySet()) {
             if (clazz.isAssignableFrom(keyClass)) {
@@ -105,12 +132,10 @@ public class TypeRegistry<V> implements Map<Class<?>, V> {
         }
 
         if (candidates.isEmpty()) {
-            cache.put(keyClass, Void.TYPE);
             return null;
         }
         else if (candidates.size() == 1) {
-            cache.put(keyClass, candidates.get(0));
-            return backingStore.get(candidates.get(0));
+            return candidates.get(0);
         }
         else {
             for (int i = 0; i < candidates.size() - 1; i++) {
@@ -148,66 +173,77 @@ public class TypeRegistry<V> implements Map<Class<?>, V> {
                 StringBuilder builder = new StringBuilder();
                 builder.append(String.format("The class '%s' does not match a single item in the registry. The %d ambiguous matches are:", keyClass.getName(), j));
                 for (int i = 0; i < j; i++) {
-                    builder.append(String.format("%n    %s", candidates.get(j).getName()));
+                    builder.append(String.format("%n    %s", candidates.get(i).getName()));
                 }
 
                 throw new AmbiguousMatchException(builder.toString());
             }
 
-            cache.put(keyClass, candidates.get(0));
-            return backingStore.get(candidates.get(0));
+            return candidates.get(0);
         }
     }
 
-    public V put(Class<?> key, V value) {
+    public synchronized V put(Class<?> key, V value) {
         V result = get(key);
+        Map<Class<?>, V> backingStore = new HashMap<Class<?>, V>(snapshot.backingStore);
         backingStore.put(key, value);
-        handleAlteration(key);
+        publish(backingStore, key);
         return result;
     }
 
-    public V remove(Object key) {
+    public synchronized V remove(Object key) {
         if (!(key instanceof Class)) {
             return null;
         }
 
         Class<?> clazz = (Class<?>)key;
         V previous = get(clazz);
-        if (backingStore.remove(clazz) != null) {
-            handleAlteration(clazz);
+        if (snapshot.backingStore.containsKey(clazz)) {
+            Map<Class<?>, V> backingStore = new HashMap<Class<?>, V>(snapshot.backingStore);
+            backingStore.remove(clazz);
+            publish(backingStore, clazz);
         }
 
         return previous;
     }
 
-    public void putAll(Map<? extends Class<?>, ? extends V> m) {
+    public synchronized void putAll(Map<? extends Class<?>, ? extends V> m) {
         for (Map.Entry<? extends Class<?>, ? extends V> entry : m.entrySet()) {
             put(entry.getKey(), entry.getValue());
         }
     }
 
-    public void clear() {
-        backingStore.clear();
-        cache.clear();
+    public synchronized void clear() {
+        snapshot = new Snapshot<V>(new HashMap<Class<?>, V>());
     }
 
     public Set<Class<?>> keySet() {
-        return Collections.unmodifiableSet(backingStore.keySet());
+        return Collections.unmodifiableSet(snapshot.backingStore.keySet());
     }
 
     public Collection<V> values() {
-        return Collections.unmodifiableCollection(backingStore.values());
+        return Collections.unmodifiableCollection(snapshot.backingStore.values());
     }
 
     public Set<Entry<Class<?>, V>> entrySet() {
-        return Collections.unmodifiableSet(backingStore.entrySet());
+        return Collections.unmodifiableSet(snapshot.backingStore.entrySet());
     }
 
-    protected void handleAlteration(Class<?> clazz) {
-        for (Map.Entry<Class<?>, ?> entry : cache.entrySet()) {
-            if (clazz.isAssignableFrom(entry.getKey())) {
-                entry.setValue(null);
+    /** Forget what lookups of {@code clazz} and its subtypes resolved to. */
+    protected synchronized void handleAlteration(Class<?> clazz) {
+        publish(snapshot.backingStore, clazz);
+    }
+
+    /** Make {@code backingStore} the registrations, keeping resolved lookups
+     *  that a change to {@code changed} doesn't affect.
+     */
+    private void publish(Map<Class<?>, V> backingStore, Class<?> changed) {
+        Snapshot<V> s = new Snapshot<V>(backingStore);
+        for (Map.Entry<Class<?>, Object> entry : snapshot.resolved.entrySet()) {
+            if (!changed.isAssignableFrom(entry.getKey())) {
+                s.resolved.put(entry.getKey(), entry.getValue());
             }
         }
+        snapshot = s;
     }
 }
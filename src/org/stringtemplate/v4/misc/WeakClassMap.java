@@ -0,0 +1,110 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.misc;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A concurrent map from classes to values computed from them, such as
+ * reflection data. Reads never lock. The map doesn't keep classes, or their
+ * class loaders, alive: keys are weak and values soft, since a value that
+ * refers to its class (a {@link java.lang.reflect.Method}, say) would
+ * otherwise pin the key. Under memory pressure entries go away and are
+ * computed again when next needed.
+ */
+final class WeakClassMap<V> {
+    private final ConcurrentMap<Key, Value<V>> map = new ConcurrentHashMap<Key, Value<V>>();
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    /** Return the value for {@code type}, or {@code null} if there is none. */
+    public V get(Class<?> type) {
+        Value<V> v = map.get(new Key(type, null));
+        return v!=null ? v.get() : null;
+    }
+
+    /** Associate {@code value} with {@code type} unless it already has a value.
+     *
+     * @return the value now associated with {@code type}
+     */
+    public V putIfAbsent(Class<?> type, V value) {
+        expungeStaleEntries();
+        Key key = new Key(type, queue);
+        Value<V> v = new Value<V>(value, key, queue);
+        while ( true ) {
+            Value<V> old = map.putIfAbsent(key, v);
+            if ( old==null ) return value;
+            V o = old.get();
+            if ( o!=null ) return o;
+            if ( map.replace(key, old, v) ) return value; // old one was collected
+        }
+    }
+
+    private void expungeStaleEntries() {
+        Reference<?> r;
+        while ( (r = queue.poll())!=null ) {
+            if ( r instanceof Key ) map.remove(r);
+            else map.remove(((Value<?>)r).key, r);
+        }
+    }
+
+    private static final class Key extends WeakReference<Class<?>> {
+        final int hash;
+
+        Key(Class<?> type, ReferenceQueue<Object> queue) {
+            super(type, queue);
+            hash = System.identityHashCode(type);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if ( o==this ) return true;
+            if ( !(o instanceof Key) ) return false;
+            Class<?> type = get();
+            return type!=null && type==((Key)o).get();
+        }
+    }
+
+    private static final class Value<V> extends SoftReference<V> {
+        final Key key;
+
+        Value(V value, Key key, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.processor;
+
+import org.stringtemplate.v4.STGroup;
+
+import java.util.ServiceLoader;
+
+/** Registers the adaptors {@link ModelAdaptorProcessor} generated. */
+public final class GeneratedModelAdaptors {
+    private GeneratedModelAdaptors() {
+    }
+
+    /** Register every generated adaptor visible to the context class loader
+     *  with {@code group}.
+     */
+    public static void register(STGroup group) {
+        register(group, Thread.currentThread().getContextClassLoader());
+    }
+
+    /** Register every generated adaptor visible to {@code loader} with
+     *  {@code group}. This scans the class path, so register once per group
+     *  rather than once per render.
+     */
+    public static void register(STGroup group, ClassLoader loader) {
+        for (GeneratedModelAdaptor<?> adaptor : ServiceLoader.load(GeneratedModelAdaptor.class, loader)) {
+            register(group, adaptor);
+        }
+    }
+
+    private static <T> void register(STGroup group, GeneratedModelAdaptor<T> adaptor) {
+        group.registerModelAdaptor(adaptor.getModelType(), adaptor);
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Writes a {@link GeneratedModelAdaptor} for each class annotated with
+ * {@link TemplateModel}. For class {@code Foo} it is {@code Foo_ModelAdaptor}
+ * in the same package, and it finds properties exactly like
+ * {@link org.stringtemplate.v4.misc.ObjectModelAdaptor}: property {@code p}
+ * is read with public method {@code getP()}, {@code isP()}, or {@code hasP()},
+ * or else public field {@code p}. Instead of looking them up by reflection,
+ * the generated code switches on the property name and calls them directly.
+ * Objects of subclasses fall back on reflection for properties the annotated
+ * class doesn't have.
+ * <p>
+ * The adaptors are listed in
+ * {@code META-INF/services/org.stringtemplate.v4.processor.GeneratedModelAdaptor}
+ * for {@link GeneratedModelAdaptors}. Run the processor with
+ * {@code javac -processor org.stringtemplate.v4.processor.ModelAdaptorProcessor}
+ * or your build tool's equivalent.</p>
+ */
+@SupportedAnnotationTypes("org.stringtemplate.v4.processor.TemplateModel")
+public class ModelAdaptorProcessor extends AbstractProcessor {
+    public static final String ADAPTOR_SUFFIX = "_ModelAdaptor";
+
+    static final String SERVICE_FILE =
+        "META-INF/services/" + GeneratedModelAdaptor.class.getName();
+
+    /** Fully qualified names of the adaptors written so far. */
+    private final Set<String> adaptors = new LinkedHashSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element e : roundEnv.getElementsAnnotatedWith(TemplateModel.class)) {
+            if ( e.getKind()!=ElementKind.CLASS && e.getKind()!=ElementKind.INTERFACE &&
+                 e.getKind()!=ElementKind.ENUM )
+            {
+                error(e, "@TemplateModel only applies to classes and interfaces");
+                continue;
+            }
+            TypeElement type = (TypeElement)e;
+            if ( !isAccessible(type) ) {
+                error(e, "@TemplateModel class must not be private");
+                continue;
+            }
+            try {
+                writeAdaptor(type);
+            }
+            catch (IOException ioe) {
+                error(e, "can't write model adaptor: "+ioe.getMessage());
+            }
+        }
+        if ( roundEnv.processingOver() && !adaptors.isEmpty() ) {
+            try {
+                writeServiceFile();
+            }
+            catch (IOException ioe) {
+                error(null, "can't write "+SERVICE_FILE+": "+ioe.getMessage());
+            }
+        }
+        return true;
+    }
+
+    void writeAdaptor(TypeElement type) throws IOException {
+        String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String model = processingEnv.getTypeUtils().erasure(type.asType()).toString();
+        String name = adaptorName(type);
+        String qualifiedName = pkg.length()>0 ? pkg+"."+name : name;
+
+        // group property names by hash code, the way javac compiles a switch on strings
+        Map<Integer, List<String>> byHash = new TreeMap<Integer, List<String>>();
+        Map<String, String> reads = findProperties(type);
+        for (String property : reads.keySet()) {
+            List<String> names = byHash.get(property.hashCode());
+            if ( names==null ) {
+                names = new ArrayList<String>();
+                byHash.put(property.hashCode(), names);
+            }
+            names.add(property);
+        }
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+        PrintWriter out = new PrintWriter(file.openWriter());
+        try {
+            if ( pkg.length()>0 ) {
+                out.println("package "+pkg+";");
+                out.println();
+            }
+            out.println("/** Reads the properties of {@link "+model+"} for templates; generated by");
+            out.println(" *  {@link "+ModelAdaptorProcessor.class.getName()+"}. */");
+            out.println("public final class "+name+" implements "+GeneratedModelAdaptor.class.getName()+"<"+model+"> {");
+            out.println("    private static final org.stringtemplate.v4.misc.ObjectModelAdaptor<Object> FALLBACK =");
+            out.println("        new org.stringtemplate.v4.misc.ObjectModelAdaptor<Object>();");
+            out.println();
+            out.println("    @Override");
+            out.println("    public Class<"+model+"> getModelType() {");
+            out.println("        return "+model+".class;");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public Object getProperty(org.stringtemplate.v4.Interpreter interp, org.stringtemplate.v4.ST self,");
+            out.println("                              "+model+" model, Object property, String propertyName)");
+            out.println("    {");
+            out.println("        Object value = tryGetProperty(interp, self, model, property, propertyName);");
+            out.println("        if ( value==NO_SUCH_PROPERTY ) {");
+            out.println("            throw new org.stringtemplate.v4.misc.STNoSuchPropertyException(null, null,");
+            out.println("                model.getClass().getName()+\".\"+propertyName);");
+            out.println("        }");
+            out.println("        return value;");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public Object tryGetProperty(org.stringtemplate.v4.Interpreter interp, org.stringtemplate.v4.ST self,");
+            out.println("                                 "+model+" model, Object property, String propertyName)");
+            out.println("    {");
+            out.println("        if ( property==null ) return NO_SUCH_PROPERTY;");
+            if ( !byHash.isEmpty() ) {
+                out.println("        try {");
+                out.println("            switch ( propertyName.hashCode() ) {");
+                for (Map.Entry<Integer, List<String>> e : byHash.entrySet()) {
+                    out.println("                case "+e.getKey()+" :");
+                    for (String property : e.getValue()) {
+                        out.println("                    if ( propertyName.equals(\""+property+"\") ) "+reads.get(property));
+                    }
+                    out.println("                    break;");
+                }
+                out.println("            }");
+                out.println("        }");
+                out.println("        catch (Exception e) {");
+                out.println("            throw new org.stringtemplate.v4.misc.STNoSuchPropertyException(e, null,");
+                out.println("                model.getClass().getName()+\".\"+propertyName);");
+                out.println("        }");
+            }
+            out.println("        if ( model.getClass()!="+model+".class ) {");
+            out.println("            return FALLBACK.tryGetProperty(interp, self, model, property, propertyName);");
+            out.println("        }");
+            out.println("        return NO_SUCH_PROPERTY;");
+            out.println("    }");
+            out.println("}");
+        }
+        finally {
+            out.close();
+        }
+        adaptors.add(qualifiedName);
+    }
+
+    /** Map each property name {@code type} has to the statement that reads it. */
+    Map<String, String> findProperties(TypeElement type) {
+        Map<String, ExecutableElement> getters = new LinkedHashMap<String, ExecutableElement>();
+        Map<String, Element> fields = new LinkedHashMap<String, Element>();
+        for (Element member : processingEnv.getElementUtils().getAllMembers(type)) {
+            if ( !member.getModifiers().contains(Modifier.PUBLIC) ) continue;
+            String name = member.getSimpleName().toString();
+            if ( member.getKind()==ElementKind.METHOD ) {
+                ExecutableElement method = (ExecutableElement)member;
+                if ( method.getParameters().isEmpty() && !getters.containsKey(name) ) {
+                    getters.put(name, method);
+                }
+            }
+            else if ( member.getKind()==ElementKind.FIELD || member.getKind()==ElementKind.ENUM_CONSTANT ) {
+                if ( !fields.containsKey(name) ) fields.put(name, member);
+            }
+        }
+
+        // every name ObjectModelAdaptor would map to one of these members
+        Set<String> candidates = new LinkedHashSet<String>();
+        for (String name : getters.keySet()) {
+            for (String prefix : new String[] {"get", "is", "has"}) {
+                if ( name.length()>prefix.length() && name.startsWith(prefix) ) {
+                    String suffix = name.substring(prefix.length());
+                    char c = suffix.charAt(0);
+                    if ( Character.toUpperCase(c)==c ) candidates.add(suffix);
+                    char lower = Character.toLowerCase(c);
+                    if ( Character.toUpperCase(lower)==c ) candidates.add(lower+suffix.substring(1));
+                }
+            }
+        }
+        candidates.addAll(fields.keySet());
+
+        Map<String, String> reads = new LinkedHashMap<String, String>();
+        for (String property : candidates) {
+            String suffix = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+            ExecutableElement getter = getters.get("get"+suffix);
+            if ( getter==null ) getter = getters.get("is"+suffix);
+            if ( getter==null ) getter = getters.get("has"+suffix);
+            if ( getter!=null ) {
+                String call = "model."+getter.getSimpleName()+"()";
+                if ( getter.getReturnType().getKind()==TypeKind.VOID ) {
+                    reads.put(property, "{ "+call+"; return null; }");
+                }
+                else {
+                    reads.put(property, "return "+call+";");
+                }
+            }
+            else if ( fields.containsKey(property) ) {
+                reads.put(property, "return model."+property+";");
+            }
+        }
+        return reads;
+    }
+
+    void writeServiceFile() throws IOException {
+        Set<String> all = new LinkedHashSet<String>();
+        try { // keep adaptors from earlier, incremental compilations
+            FileObject old = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+            BufferedReader in = new BufferedReader(new InputStreamReader(old.openInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ( (line = in.readLine())!=null ) {
+                    line = line.trim();
+                    if ( line.length()>0 && !line.startsWith("#") ) all.add(line);
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ioe) {
+            // no earlier file
+        }
+        all.addAll(adaptors);
+
+        FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+        Writer out = new OutputStreamWriter(file.openOutputStream(), "UTF-8");
+        try {
+            for (String adaptor : all) {
+                out.write(adaptor);
+                out.write('\n');
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /** {@code Outer_Inner_ModelAdaptor} for nested class {@code Outer.Inner}. */
+    static String adaptorName(TypeElement type) {
+        StringBuilder name = new StringBuilder(type.getSimpleName());
+        Element e = type.getEnclosingElement();
+        while ( e!=null && !(e instanceof PackageElement) ) {
+            name.insert(0, e.getSimpleName()+"_");
+            e = e.getEnclosingElement();
+        }
+        return name.append(ADAPTOR_SUFFIX).toString();
+    }
+
+    static boolean isAccessible(TypeElement type) {
+        Element e = type;
+        while ( e instanceof TypeElement ) {
+            if ( e.getModifiers().contains(Modifier.PRIVATE) ) return false;
+            e = e.getEnclosingElement();
+        }
+        return true;
+    }
+
+    void error(Element e, String msg) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, msg, e);
+    }
+}
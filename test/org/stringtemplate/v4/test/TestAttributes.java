@@ -2,7 +2,13 @@ package org.stringtemplate.v4.test;
 
 import org.junit.Test;
 import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STRawGroupDir;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class TestAttributes extends BaseTest {
@@ -33,4 +39,43 @@ public class TestAttributes extends BaseTest {
         c.add("x", "bar");
         assertTrue(true); // should not get exception
     }
+
+    @Test
+    public void testCloneSharesImplUntilItAddsArg() {
+        ST a = new ST("<x>");
+        a.add("x", "a");
+
+        ST b = new ST(a);
+        assertSame(a.impl, b.impl);
+        b.add("x", "b"); // already defined; no copy needed
+        assertSame(a.impl, b.impl);
+
+        b.add("y", "b");
+        assertNotSame(a.impl, b.impl);
+        assertNull(a.impl.formalArguments.get("y"));
+        assertEquals("a", a.render());
+        assertEquals("[a, b]", b.getAttribute("x").toString());
+    }
+
+    @Test
+    public void testPrototypeAddingArgDoesNotAlterClones() {
+        ST a = new ST("<x><y>");
+        a.add("x", "a");
+        ST b = new ST(a);
+
+        a.add("y", "!");
+        assertNull(b.impl.formalArguments.get("y"));
+        assertEquals("a!", a.render());
+        assertEquals("a", b.getAttribute("x"));
+    }
+
+    @Test
+    public void testNamedArgsToTemplateWithoutFormalArgsLeaveGroupAlone() {
+        writeFile(tmpdir, "a.st", "<b(x=\"1\", y=\"2\")>");
+        writeFile(tmpdir, "b.st", "<x>,<y>");
+        STGroup group = new STRawGroupDir(tmpdir);
+        assertEquals("1,2", group.getInstanceOf("a").render());
+        assertEquals("1,2", group.getInstanceOf("a").render());
+        assertNull(group.rawGetTemplate("/b").formalArguments);
+    }
 }
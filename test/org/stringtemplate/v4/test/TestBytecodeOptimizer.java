@@ -0,0 +1,178 @@
+/*
+ [The "BSD license"]
+ Copyright (c) 2009 Terence Parr
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.stringtemplate.v4.test;
+
+import org.junit.*;
+import org.stringtemplate.v4.compiler.*;
+import org.stringtemplate.v4.compiler.Compiler;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/** The peephole rewrites made when {@link Compiler#optimize} is on; compare
+ *  with the unoptimized code in {@link TestCompiler}.
+ */
+public class TestBytecodeOptimizer extends BaseTest {
+    private boolean optimize;
+
+    @Before
+    public void turnOnOptimizer() {
+        optimize = Compiler.optimize;
+        Compiler.optimize = true;
+    }
+
+    @After
+    public void restoreOptimizer() {
+        Compiler.optimize = optimize;
+    }
+
+    @Test public void testWriteAttr() throws Exception {
+        String template = "hi <name>";
+        CompiledST code = new Compiler().compile(template);
+        String asmExpected =
+            "write_str 0, " +
+            "write_attr 1";
+        String asmResult = code.instrs();
+        assertEquals(asmExpected, asmResult);
+        String stringsExpected = "[hi , name]";
+        String stringsResult = Arrays.toString(code.strings);
+        assertEquals(stringsExpected, stringsResult);
+    }
+
+    @Test public void testIf() throws Exception {
+        String template = "go: <if(name)>hi, foo<endif>";
+        CompiledST code = new Compiler().compile(template);
+        String asmExpected =
+            "write_str 0, brf_attr 1 11, write_str 2";
+        String asmResult = code.instrs();
+        assertEquals(asmExpected, asmResult);
+        String stringsExpected = "[go: , name, hi, foo]";
+        String stringsResult = Arrays.toString(code.strings);
+        assertEquals(stringsExpected, stringsResult);
+    }
+
+    @Test public void testIfElse() throws Exception {
+        String template = "go: <if(name)>hi, foo<else>bye<endif>";
+        CompiledST code = new Compiler().compile(template);
+        String asmExpected =
+            "write_str 0, " +
+            "brf_attr 1 14, " +
+            "write_str 2, " +
+            "br 17, " +
+            "write_str 3";
+        String asmResult = code.instrs();
+        assertEquals(asmExpected, asmResult);
+    }
+
+    @Test public void testElseIf() throws Exception {
+        String template = "go: <if(name)>hi, foo<elseif(user)>a user<endif>";
+        CompiledST code = new Compiler().compile(template);
+        String asmExpected =
+            "write_str 0, " +
+            "brf_attr 1 14, " +
+            "write_str 2, " +
+            "br 22, " +
+            "brf_attr 3 22, " +
+            "write_str 4";
+        String asmResult = code.instrs();
+        assertEquals(asmExpected, asmResult);
+    }
+
+    @Test public void testElseIfElse() throws Exception {
+        String template = "go: <if(name)>hi, foo<elseif(user)>a user<else>bye<endif>";
+        CompiledST code = new Compiler().compile(template);
+        String asmExpected =
+            "write_str 0, " +
+            "brf_attr 1 14, " +
+            "write_str 2, " +
+            "br 28, " +
+            "brf_attr 3 25, " +
+            "write_str 4, " +
+            "br 28, " +
+            "write_str 5";
+        String asmResult = code.instrs();
+        assertEquals(asmExpected, asmResult);
+    }
+
+    @Test public void testOption() throws Exception {
+        String template = "hi <name; separator=\"x\">";
+        CompiledST code = new Compiler().compile(template);
+        String asmExpected =
+            "write_str 0, load_attr 1, write_opt_const 0";
+        String asmResult = code.instrs();
+        assertEquals(asmExpected, asmResult);
+        String stringsExpected = "[hi , name, x]";
+        String stringsResult = Arrays.toString(code.strings);
+        assertEquals(stringsExpected, stringsResult);
+        assertEquals("[null, null, null, x, null]", Arrays.toString(code.constantOptions[0]));
+    }
+
+    @Test public void testConstantOptions() throws Exception {
+        String template = "<a; anchor, null=\"-\", separator=\", \"><b; separator=\", \", format=c>";
+        CompiledST code = new Compiler().compile(template);
+        String asmExpected =
+            "load_attr 0, write_opt_const 0, " +
+            "load_attr 4, options, load_str 3, store_option 3, load_attr 5, store_option 1, write_opt";
+        assertEquals(asmExpected, code.instrs());
+        assertEquals(1, code.constantOptions.length);
+        assertEquals("[true, null, -, , , null]", Arrays.toString(code.constantOptions[0]));
+    }
+
+    @Test public void testCombinedInstructionsForArgs() throws Exception {
+        String template = "<x> <x.y> <if(x)>a<endif> <if(x.y)>b<endif> <(x.y)>";
+        List<FormalArgument> args = Arrays.asList(new FormalArgument("x"));
+        CompiledST code = new Compiler().compile(null, "t", args, template, null);
+        String asmExpected =
+            "write_local 0, write_str 0, " +
+            "write_local_prop 0 1, write_str 0, " +
+            "brf_local 0 22, write_str 2, write_str 0, " +
+            "load_local_prop 0 1, brf 36, write_str 3, write_str 0, " +
+            "load_local_prop 0 1, tostr, write";
+        String asmResult = code.instrs();
+        assertEquals(asmExpected, asmResult);
+    }
+
+    @Test public void testCombinedInstructionsForAttributes() throws Exception {
+        String template = "<x> <if(x)>a<endif><\"s\">";
+        CompiledST code = new Compiler().compile(template);
+        String asmExpected =
+            "write_attr 0, write_str 1, brf_attr 0 14, write_str 2, write_str 3";
+        String asmResult = code.instrs();
+        assertEquals(asmExpected, asmResult);
+        String stringsExpected = "[x,  , a, s]";
+        String stringsResult = Arrays.toString(code.strings);
+        assertEquals(stringsExpected, stringsResult);
+    }
+
+    @Test public void testOptimizedStackDepth() throws Exception {
+        assertEquals(0, new Compiler().compile("<a>").maxStackDepth);
+        assertEquals(0, new Compiler().compile("<if(x)>a<endif>").maxStackDepth);
+    }
+}
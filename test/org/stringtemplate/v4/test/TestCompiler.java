@@ -65,6 +65,21 @@ import java.util.Arrays;
 import static org.junit.Assert.assertEquals;
 
 public class TestCompiler extends BaseTest {
+    private boolean optimize;
+
+    /** These tests show what the code generator emits; the peephole
+     *  rewrites are tested in {@link TestBytecodeOptimizer}.
+     */
+    @Before
+    public void turnOffOptimizer() {
+        optimize = Compiler.optimize;
+        Compiler.optimize = false;
+    }
+
+    @After
+    public void restoreOptimizer() {
+        Compiler.optimize = optimize;
+    }
 
     @Test public void testAttr() throws Exception {
         String template = "hi <name>";
@@ -552,4 +567,14 @@ public class TestCompiler extends BaseTest {
         String stringsResult = Arrays.toString(code.strings);
         assertEquals(stringsExpected, stringsResult);
     }
+
+    @Test public void testMaxStackDepth() throws Exception {
+        assertEquals(0, new Compiler().compile("hi").maxStackDepth);
+        assertEquals(1, new Compiler().compile("<a.b>").maxStackDepth);
+        assertEquals(3, new Compiler().compile("<t(a,b,c)>").maxStackDepth);
+        assertEquals(2, new Compiler().compile("<[a,b,c]>").maxStackDepth);
+        assertEquals(3, new Compiler().compile("<a; separator=b>").maxStackDepth);
+        // deepest branch counts
+        assertEquals(4, new Compiler().compile("<if(x)><a><elseif(y)><t(a,b,c,d)><endif>").maxStackDepth);
+    }
 }
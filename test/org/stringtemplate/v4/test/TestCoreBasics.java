@@ -29,23 +29,40 @@ package org.stringtemplate.v4.test;
 
 import org.junit.Test;
 import org.stringtemplate.v4.AutoIndentWriter;
+import org.stringtemplate.v4.InstanceScope;
+import org.stringtemplate.v4.Interpreter;
+import org.stringtemplate.v4.LazyValue;
 import org.stringtemplate.v4.NoIndentWriter;
 import org.stringtemplate.v4.ST;
 import org.stringtemplate.v4.STGroup;
 import org.stringtemplate.v4.STGroupFile;
 import org.stringtemplate.v4.STGroupString;
+import org.stringtemplate.v4.STWriter;
+import org.stringtemplate.v4.STWriterFactory;
 import org.stringtemplate.v4.misc.ErrorBuffer;
+import org.stringtemplate.v4.misc.ErrorType;
 import org.stringtemplate.v4.misc.STNoSuchPropertyException;
 import org.stringtemplate.v4.misc.STRuntimeMessage;
 
+import java.io.IOException;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 public class TestCoreBasics extends BaseTest {
     @Test public void testNullAttr() throws Exception {
@@ -94,6 +111,130 @@ public class TestCoreBasics extends BaseTest {
         assertEquals(expected, result);
     }
 
+    static class CountingValue implements LazyValue<String> {
+        final String value;
+        int calls = 0;
+        CountingValue(String value) { this.value = value; }
+        @Override
+        public String get() {
+            calls++;
+            return value;
+        }
+    }
+
+    @Test public void testLazyAttrNotComputedIfNotRendered() throws Exception {
+        ST st = new ST("<if(show)><report><endif>done");
+        CountingValue report = new CountingValue("report");
+        st.add("show", false);
+        st.add("report", report);
+        assertEquals("done", st.render());
+        assertEquals(0, report.calls);
+    }
+
+    @Test public void testLazyAttrComputedOncePerRender() throws Exception {
+        String templates =
+            "t(x) ::= <<<if(x)><x>, <u()>, <v(x)><endif>\n>>\n" +
+            "u() ::= \"<x>\"\n" +
+            "v(y) ::= \"<y>, <w(...)>\"\n" +
+            "w(y) ::= \"<y>\"\n";
+        STGroup group = new STGroupString(templates);
+        ST st = group.getInstanceOf("t");
+        CountingValue x = new CountingValue("hi");
+        st.add("x", x);
+        assertEquals("hi, hi, hi, hi", st.render());
+        assertEquals(1, x.calls);
+        assertEquals("hi, hi, hi, hi", st.render());
+        assertEquals(2, x.calls);
+    }
+
+    @Test public void testLazyAttrMayBeNull() throws Exception {
+        ST st = new ST("<if(x)>yes<else>no<endif>:<x; null={null}>");
+        CountingValue x = new CountingValue(null);
+        st.add("x", x);
+        assertEquals("no:null", st.render());
+        assertEquals(1, x.calls);
+    }
+
+    @Test public void testLazyValueComputedOncePerRenderByOwnInterpreter() throws Exception {
+        ST st = new ST("<x><x>");
+        CountingValue x = new CountingValue("a");
+        st.add("x", x);
+        Interpreter interp = new Interpreter(st.groupThatCreatedThisInstance, false);
+        StringWriter sw = new StringWriter();
+        interp.exec(new AutoIndentWriter(sw), new InstanceScope(null, st));
+        interp.exec(new AutoIndentWriter(sw), new InstanceScope(null, st));
+        assertEquals("aaaa", sw.toString());
+        assertEquals(2, x.calls);
+    }
+
+    static FutureTask<String> task(final String value) {
+        return new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() {
+                if ( value==null ) throw new IllegalStateException("no value");
+                return value;
+            }
+        });
+    }
+
+    public static class Account {
+        final FutureTask<String> owner = task("parrt");
+        public Future<String> getOwner() { return owner; }
+    }
+
+    @Test public void testRenderAsyncWaitsForFutures() throws Exception {
+        ST st = new ST("<name>: <account.owner>, <tags; separator={,}>");
+        FutureTask<String> name = task("ter");
+        FutureTask<String> tag1 = task("a");
+        FutureTask<String> tag2 = task("b");
+        Account account = new Account();
+        st.add("name", name);
+        st.add("account", account);
+        st.add("tags", tag1);
+        st.add("tags", tag2);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> result = st.renderAsync(executor);
+            assertFalse(result.isDone());
+            new Thread(name).start();
+            new Thread(tag1).start();
+            new Thread(tag2).start();
+            new Thread(account.owner).start();
+            assertEquals("ter: parrt, a,b", result.get());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /** Runs tasks on the calling thread. */
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    @Test public void testFailedFutureIsReported() throws Exception {
+        ErrorBuffer errors = new ErrorBuffer();
+        STGroup.defaultGroup.setListener(errors);
+        ST st = new ST("[<x>]");
+        FutureTask<String> x = task(null);
+        x.run();
+        st.add("x", x);
+        assertEquals("[]", st.renderAsync(DIRECT).get());
+        assertEquals(1, errors.errors.size());
+        assertEquals(ErrorType.FUTURE_FAILED, errors.errors.get(0).error);
+    }
+
+    @Test public void testRenderDoesNotWaitForFutures() throws Exception {
+        ST st = new ST("[<x>]");
+        FutureTask<String> x = task("never run");
+        st.add("x", x);
+        assertEquals("["+x+"]", st.render());
+        assertFalse(x.isDone());
+    }
+
     @Test public void testMultiAttr() throws Exception {
         String template = "hi <name>!";
         ST st = new ST(template);
@@ -130,6 +271,20 @@ public class TestCoreBasics extends BaseTest {
         assertEquals(expected, result);
     }
 
+    @Test public void testAttrIsPrimitiveArray() throws Exception {
+        String template = "<a; separator=\",\">|<b; separator=\",\">|<c; separator=\",\">|<d; separator=\",\">";
+        ST st = new ST(template);
+        st.add("a", new int[] {1, -2, Integer.MAX_VALUE});
+        st.add("a", new long[] {Long.MIN_VALUE});
+        st.add("b", new double[] {0.1, 1e20, Double.NaN});
+        st.add("c", new char[] {'x', 'y'});
+        st.add("d", new boolean[] {true, false});
+        String expected =
+            "1,-2,2147483647,-9223372036854775808|0.1,1.0E20,NaN|x,y|true,false";
+        String result = st.render();
+        assertEquals(expected, result);
+    }
+
     @Test public void testProp() throws Exception {
         String template = "<u.id>: <u.name>"; // checks field and method getter
         ST st = new ST(template);
@@ -546,6 +701,64 @@ public class TestCoreBasics extends BaseTest {
         assertEquals(expected, result);
     }
 
+    /** Hands out values that render as the number of values handed out
+     *  so far, at the time they are rendered.
+     */
+    static class CountingIterator implements Iterator<Object> {
+        final int n;
+        int next = 0;
+
+        CountingIterator(int n) { this.n = n; }
+
+        @Override
+        public boolean hasNext() { return next < n; }
+
+        @Override
+        public Object next() {
+            next++;
+            return new Object() {
+                @Override
+                public String toString() { return String.valueOf(CountingIterator.this.next); }
+            };
+        }
+
+        @Override
+        public void remove() { throw new UnsupportedOperationException(); }
+    }
+
+    @Test public void testMapWrittenRightAwayIsLazy() throws Exception {
+        STGroup group = new STGroup();
+        group.defineTemplate("a", "x", "[<x>]");
+        group.defineTemplate("test", "values,sep", "<values:a(); separator=sep> <values:{v|<v>}>");
+        ST st = group.getInstanceOf("test");
+        st.add("values", new CountingIterator(3));
+        st.add("sep", ",");
+        assertEquals("[1],[2],[3] ", st.render());
+        st = group.getInstanceOf("test");
+        st.add("values", new ArrayList<Object>(Arrays.asList("x", "y")));
+        st.add("sep", ",");
+        assertEquals("[x],[y] xy", st.render());
+    }
+
+    @Test public void testParallelMapWrittenRightAwayIsLazy() throws Exception {
+        STGroup group = new STGroup();
+        group.defineTemplate("test", "x,y", "<x,y:{a,b | <i>:<a><b>}; separator=\", \">");
+        ST st = group.getInstanceOf("test");
+        st.add("x", new CountingIterator(3));
+        st.add("y", new ArrayList<Object>(Arrays.asList("a", "b")));
+        assertEquals("1:1a, 2:2b, 3:3", st.render());
+    }
+
+    @Test public void testMapPassedToFunctionIsMaterialized() throws Exception {
+        STGroup group = new STGroup();
+        group.defineTemplate("a", "x", "[<x>]");
+        group.defineTemplate("test", "x,y", "<length(x:a())> <reverse(y:a()); separator=\",\">");
+        ST st = group.getInstanceOf("test");
+        st.add("x", new CountingIterator(3));
+        st.add("y", new CountingIterator(2));
+        assertEquals("3 [2],[2]", st.render());
+    }
+
     @Test public void testRepeatedMap() throws Exception {
      STGroup group = new STGroup();
      group.defineTemplate("a", "x", "[<x>]");
@@ -1003,6 +1216,97 @@ public class TestCoreBasics extends BaseTest {
         assertEquals(expected, result);
     }
 
+    /** Writes upper case; has no {@code (Writer)} constructor. */
+    public static class UpperCaseWriter extends AutoIndentWriter implements STWriterFactory {
+        public UpperCaseWriter(Writer out, String newline) {
+            super(out, newline);
+        }
+
+        @Override
+        public int write(String str) throws IOException {
+            return super.write(str.toUpperCase());
+        }
+
+        @Override
+        public STWriter createChildWriter(Writer out) {
+            return new UpperCaseWriter(out, newline);
+        }
+    }
+
+    /** Has neither a {@code (Writer)} constructor nor a factory. */
+    public static class OddWriter extends AutoIndentWriter {
+        public OddWriter(Writer out, String newline) {
+            super(out, newline);
+        }
+    }
+
+    @Test public void testEarlyEvalUsesWriterFactory() throws Exception {
+        STGroup group = new STGroupString(
+            "t() ::= <<abc>>\n" +
+            "main() ::= <<<t()>,<(t())>,<strlen((t()))> >>\n");
+        ErrorBuffer errors = new ErrorBuffer();
+        group.setListener(errors);
+        ST st = group.getInstanceOf("main");
+        StringWriter sw = new StringWriter();
+        st.write(new UpperCaseWriter(sw, "\n"));
+        assertEquals("ABC,ABC,3 ", sw.toString());
+        assertEquals("", errors.toString());
+    }
+
+    @Test public void testEarlyEvalGrowsOperandStack() throws Exception {
+        // u needs more operand stack than a new interpreter has, so it grows
+        // while strlen's argument is being evaluated
+        StringBuilder params = new StringBuilder();
+        StringBuilder args = new StringBuilder();
+        for (int i=0; i<40; i++) {
+            if ( i>0 ) {
+                params.append(",");
+                args.append(",");
+            }
+            params.append("p").append(i);
+            args.append("{x}");
+        }
+        STGroup group = new STGroupString(
+            "u("+params+") ::= \"<p0><p39>\"\n" +
+            "t() ::= \"<u("+args+")>\"\n" +
+            "main() ::= \"len=<strlen((t()))>, <(t())>\"\n");
+        ErrorBuffer errors = new ErrorBuffer();
+        group.setListener(errors);
+        ST st = group.getInstanceOf("main");
+        StringWriter sw = new StringWriter();
+        Interpreter interp = new Interpreter(group, false);
+        interp.exec(new AutoIndentWriter(sw), new InstanceScope(null, st));
+        assertEquals("len=2, xx", sw.toString());
+        assertEquals("len=2, xx", st.render());
+        assertEquals("", errors.toString());
+    }
+
+    @Test public void testEarlyEvalWithoutWriterConstructor() throws Exception {
+        STGroup group = new STGroupString(
+            "t() ::= <<abc>>\n" +
+            "main() ::= <<<(t())> >>\n");
+        ErrorBuffer errors = new ErrorBuffer();
+        group.setListener(errors);
+        ST st = group.getInstanceOf("main");
+        StringWriter sw = new StringWriter();
+        st.write(new OddWriter(sw, "\n"));
+        assertEquals("abc ", sw.toString());
+        assertEquals("context [/main] 1:1 OddWriter(Writer) constructor doesn't exist"+newline,
+                     errors.toString());
+    }
+
+    @Test public void testNestedEarlyEval() throws Exception {
+        STGroup group = new STGroupString(
+            "u() ::= <<x>>\n" +
+            "t() ::= <<[<(u())>,<(u())>]>>\n" +
+            "main(xs) ::= <<<xs:{v | <(t())><(v)>}; separator=(\",\")> >>\n");
+        ST st = group.getInstanceOf("main");
+        st.add("xs", 1);
+        st.add("xs", 2);
+        assertEquals("[x,x]1,[x,x]2 ", st.render());
+        assertEquals("[x,x]1,[x,x]2 ", st.render());
+    }
+
     @Test public void testArrayOfTemplates() throws Exception {
         String template = "<foo>!";
         ST st = new ST(template);
@@ -1072,4 +1376,57 @@ public class TestCoreBasics extends BaseTest {
         String actual = ST.format("<%1>:<%2>", n, p);
         assertEquals(expected, actual);
     }
+
+    @Test public void testRenderWhileRendering() throws Exception {
+        final ST inner = new ST("<x>");
+        inner.add("x", "inner");
+        Object nested = new Object() {
+            @Override
+            public String toString() { return inner.render(); }
+        };
+        ST st = new ST("<a> <b> <a>");
+        st.add("a", nested);
+        st.add("b", "outer");
+        assertEquals("inner outer inner", st.render());
+        assertEquals("inner outer inner", st.render());
+    }
+
+    @Test public void testEachRenderReportsToItsOwnListener() throws Exception {
+        STGroup group = new STGroupString("t() ::= \"<x>\"\n");
+        ErrorBuffer groupErrors = new ErrorBuffer();
+        group.setListener(groupErrors);
+        ErrorBuffer errors1 = new ErrorBuffer();
+        ErrorBuffer errors2 = new ErrorBuffer();
+        String expected = "context [/t] 1:1 attribute x isn't defined"+newline;
+
+        group.getInstanceOf("t").write(new AutoIndentWriter(new StringWriter()), errors1);
+        group.getInstanceOf("t").write(new AutoIndentWriter(new StringWriter()), errors2);
+        group.getInstanceOf("t").write(new AutoIndentWriter(new StringWriter()), errors2);
+        group.getInstanceOf("t").render();
+
+        assertEquals(expected, errors1.toString());
+        assertEquals(expected+expected, errors2.toString());
+        assertEquals(expected, groupErrors.toString());
+    }
+
+    @Test public void testManyArgs() throws Exception {
+        StringBuilder args = new StringBuilder();
+        StringBuilder refs = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 150; i++) {
+            if ( i>0 ) {
+                args.append(',');
+                values.append(',');
+            }
+            args.append("a").append(i);
+            refs.append("<a").append(i).append('>');
+            values.append('"').append(i % 10).append('"');
+            expected.append(i % 10);
+        }
+        STGroup group = new STGroupString(
+            "t() ::= <<<u(" + values + ")> >>\n" +
+            "u(" + args + ") ::= \"" + refs + "\"\n");
+        assertEquals(expected + " ", group.getInstanceOf("t").render());
+    }
 }
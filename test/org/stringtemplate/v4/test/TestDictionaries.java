@@ -586,4 +586,65 @@ public class TestDictionaries extends BaseTest {
         template = group.getInstanceOf("t").add("id", "_values".substring(1));
         assertEquals("values", template.render());
     }
+
+    @Test public void testImportedDictionaryPrecedence() throws Exception {
+        STGroup base = new STGroupString(
+            "shared ::= [\"a\":\"base\"]\n" +
+            "deep ::= [\"a\":\"deep base\"]\n");
+        STGroup first = new STGroupString("shared ::= [\"a\":\"first\"]\n");
+        first.importTemplates(base);
+        STGroup second = new STGroupString(
+            "shared ::= [\"a\":\"second\"]\n" +
+            "deep ::= [\"a\":\"deep second\"]\n");
+        STGroup group = new STGroupString(
+            "t() ::= <<<shared.a>, <deep.a>, <own.a> >>\n" +
+            "own ::= [\"a\":\"own\"]\n");
+        group.importTemplates(first);
+        group.importTemplates(second);
+        // depth first: first's import comes before the next import
+        assertEquals("first, deep base, own ", group.getInstanceOf("t").render());
+    }
+
+    @Test public void testDictionaryTableSeesChanges() throws Exception {
+        STGroup imported = new STGroup();
+        STGroup group = new STGroup();
+        group.defineTemplate("t", "<d.a>");
+        group.importTemplates(imported);
+        assertEquals("", group.getInstanceOf("t").render());
+
+        Map<String, Object> d = new HashMap<String, Object>();
+        d.put("a", "imported");
+        imported.defineDictionary("d", d);
+        assertEquals("imported", group.getInstanceOf("t").render());
+
+        Map<String, Object> own = new HashMap<String, Object>();
+        own.put("a", "own");
+        group.defineDictionary("d", own);
+        assertEquals("own", group.getInstanceOf("t").render());
+
+        // unloading drops the dictionaries of imports too
+        group.unload();
+        group.defineTemplate("t", "<d.a>");
+        assertEquals("", group.getInstanceOf("t").render());
+    }
+
+    @Test public void testDictionaryTableIgnoresUnrelatedGroups() throws Exception {
+        STGroup imported = new STGroup();
+        Map<String, Object> d = new HashMap<String, Object>();
+        d.put("a", "imported");
+        imported.defineDictionary("d", d);
+        STGroup group = new STGroup();
+        group.defineTemplate("t", "<d.a>");
+        group.importTemplates(imported);
+        assertEquals("imported", group.getInstanceOf("t").render());
+
+        // the table is only rebuilt when the epoch of group changes
+        int epoch = group.getTemplateEpoch();
+        STGroup other = new STGroup();
+        other.defineDictionary("d", new HashMap<String, Object>());
+        other.defineTemplate("t", "<d.a>");
+        assertEquals("", other.getInstanceOf("t").render());
+        assertEquals(epoch, group.getTemplateEpoch());
+        assertEquals("imported", group.getInstanceOf("t").render());
+    }
 }
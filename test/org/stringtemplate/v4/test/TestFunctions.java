@@ -32,10 +32,12 @@ import org.junit.*;
 import org.stringtemplate.v4.ST;
 import org.stringtemplate.v4.STGroup;
 import org.stringtemplate.v4.STGroupFile;
+import org.stringtemplate.v4.STGroupString;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -154,6 +156,18 @@ public class TestFunctions extends BaseTest {
         assertEquals(expecting, e.render());
     }
 
+    @Test public void testRestAndTruncOfSingleElementArrayLikeList() throws Exception {
+        ST e = new ST(
+                "<rest(names); null=\"none\">, <trunc(names); null=\"none\">"
+            );
+        e.add("names", new String[] { "Ter" });
+        String expecting = "none, none";
+        assertEquals(expecting, e.render());
+        e.remove("names");
+        e.add("names", Arrays.asList("Ter"));
+        assertEquals(expecting, e.render());
+    }
+
     @Test public void testRestOp() throws Exception {
         ST e = new org.stringtemplate.v4.ST(
                 "<rest(names); separator=\", \">"
@@ -794,4 +808,35 @@ public class TestFunctions extends BaseTest {
         assertEquals(expecting, e.render());
     }
 
+    @Test public void testFunctionsOnSet() throws Exception {
+        ST e = new ST(
+                "<rest(s)>|<trunc(s)>|<strip(s)>|<reverse(s)>|<length(rest(s))>|<length(strip(s))>"
+            );
+        e.add("s", new LinkedHashSet<String>(Arrays.asList("a", null, "b", "c")));
+        String expecting = "bc|ab|abc|cba|3|3";
+        assertEquals(expecting, e.render());
+    }
+
+    @Test public void testRestOfSetCanBeIteratedTwice() throws Exception {
+        STGroup group = new STGroupString(
+            "t(s) ::= \"<u(rest(s))> <u(reverse(trunc(s)))> <u(strip(s))>\"\n" +
+            "u(y) ::= \"<y>/<y>\"\n"
+        );
+        ST e = group.getInstanceOf("t");
+        e.add("s", new LinkedHashSet<String>(Arrays.asList("a", null, "b", "c")));
+        String expecting = "bc/bc ba/ba abc/abc";
+        assertEquals(expecting, e.render());
+    }
+
+    @Test public void testRecursiveFirstRest() throws Exception {
+        STGroup group = new STGroupString(
+            "list(x) ::= \"<if(x)><first(x)>,<list(rest(x))><endif>\"\n"
+        );
+        ST e = group.getInstanceOf("list");
+        e.add("x", new LinkedHashSet<Integer>(Arrays.asList(1, 2, 3, 4, 5)));
+        assertEquals("1,2,3,4,5,", e.render());
+        e = group.getInstanceOf("list");
+        e.add("x", new int[] { 1, 2, 3 });
+        assertEquals("1,2,3,", e.render());
+    }
 }
@@ -844,4 +844,27 @@ public class TestGroups extends BaseTest {
       }
     });
   }
+
+  @Test public void testRedefinedTemplateIsSeenByCaller() throws Exception {
+    STGroup group = new STGroup();
+    group.defineTemplate("a", "[<b()>]");
+    group.defineTemplate("b", "old");
+    assertEquals("[old]", group.getInstanceOf("a").render());
+    group.undefineTemplate("/b");
+    group.defineTemplate("b", "new");
+    assertEquals("[new]", group.getInstanceOf("a").render());
+  }
+
+  @Test public void testMissingTemplateReportedOnEachRender() throws Exception {
+    ErrorBuffer errors = new ErrorBuffer();
+    STGroup group = new STGroup();
+    group.setListener(errors);
+    group.defineTemplate("a", "[<b()>]");
+    assertEquals("[]", group.getInstanceOf("a").render());
+    assertEquals("[]", group.getInstanceOf("a").render());
+    String expected =
+      "context [/a] 1:2 no such template: /b"+newline+
+      "context [/a] 1:2 no such template: /b"+newline;
+    assertEquals(expected, errors.toString());
+  }
 }
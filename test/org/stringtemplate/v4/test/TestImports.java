@@ -747,4 +747,25 @@ public class TestImports extends BaseTest {
         String result = st.render();
         assertEquals(expected, result);
     }
+
+    @Test public void testTemplateEpochOnlyFollowsImportedGroups() throws Exception {
+        STGroup base = new STGroup();
+        base.defineTemplate("u", "base u");
+        STGroup sub = new STGroup();
+        sub.defineTemplate("t", "<u()>");
+        sub.importTemplates(base);
+        STGroup other = new STGroup();
+
+        int subEpoch = sub.getTemplateEpoch();
+        other.defineTemplate("v", "other v");
+        assertEquals(subEpoch, sub.getTemplateEpoch());
+
+        assertEquals("base u", sub.getInstanceOf("t").render());
+        base.undefineTemplate("/u");
+        base.defineTemplate("u", "new u");
+        assertTrue(subEpoch!=sub.getTemplateEpoch());
+        assertEquals("new u", sub.getInstanceOf("t").render());
+        sub.defineTemplate("u", "sub u"); // now shadows base's u
+        assertEquals("sub u", sub.getInstanceOf("t").render());
+    }
 }
@@ -28,11 +28,23 @@
 package org.stringtemplate.v4.test;
 
 import org.junit.*;
+import org.stringtemplate.v4.AttributeRenderer;
+import org.stringtemplate.v4.AutoIndentWriter;
 import org.stringtemplate.v4.ST;
 import org.stringtemplate.v4.STGroup;
 import org.stringtemplate.v4.STGroupFile;
+import org.stringtemplate.v4.STGroupString;
+import org.stringtemplate.v4.compiler.Compiler;
+import org.stringtemplate.v4.compiler.TextRun;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TestIndentation extends BaseTest {
     @Test public void testIndentInFrontOfTwoExpr()
@@ -330,4 +342,111 @@ public class TestIndentation extends BaseTest {
         assertEquals(expecting, result);
     }
 
+    @Test public void testTextRunInIndentedTemplate() throws Exception {
+        String templates =
+            "a(x) ::= <<"+newline+
+            "begin"+newline+
+            "  <b()>"+newline+
+            "end <b()>"+newline+
+            ">>"+newline+
+            "b() ::= <<"+newline+
+            "x"+newline+
+            "  y"+newline+
+            newline+
+            "z"+newline+
+            ">>"+newline;
+        STGroup group = new STGroupString(templates);
+        ST b = group.getInstanceOf("b");
+        assertTrue(b.impl.getLinkedCode().resolved[0] instanceof TextRun);
+        String expecting =
+            "begin"+newline+
+            "  x"+newline+
+            "    y"+newline+
+            newline+
+            "  z"+newline+
+            "end x"+newline+
+            "  y"+newline+
+            newline+
+            "z";
+        assertEquals(expecting, group.getInstanceOf("a").render());
+    }
+
+    @Test public void testTextRunSeesStringRenderer() throws Exception {
+        String templates =
+            "a(x) ::= <<"+newline+
+            "one"+newline+
+            "  two <x>"+newline+
+            "three"+newline+
+            "four"+newline+
+            ">>"+newline;
+        STGroup group = new STGroupString(templates);
+        group.registerRenderer(String.class, new AttributeRenderer<String>() {
+            @Override
+            public String toString(String value, String formatString, Locale locale) {
+                return value.toUpperCase();
+            }
+        });
+        ST st = group.getInstanceOf("a");
+        st.add("x", "five");
+        String expecting =
+            "ONE"+newline+
+            "  TWO FIVE"+newline+
+            "THREE"+newline+
+            "FOUR";
+        assertEquals(expecting, st.render());
+    }
+
+    @Test public void testTextRunWrapsLikeSeparateWrites() throws Exception {
+        String templates =
+            "a(names) ::= <<"+newline+
+            "first line"+newline+
+            "second line"+newline+
+            "  list: <names; wrap, separator=\", \">"+newline+
+            ">>"+newline;
+        STGroup plain = new STGroupString(templates);
+        STGroup rendered = new STGroupString(templates);
+        rendered.registerRenderer(String.class, new AttributeRenderer<String>() {
+            @Override
+            public String toString(String value, String formatString, Locale locale) {
+                return value;
+            }
+        });
+        String[] names = {"alpha", "beta", "gamma", "delta", "epsilon"};
+        ST expected = rendered.getInstanceOf("a");
+        ST actual = plain.getInstanceOf("a");
+        for (String name : names) {
+            expected.add("names", name);
+            actual.add("names", name);
+        }
+        assertEquals(expected.render(20), actual.render(20));
+    }
+
+    @Test public void testTextRunWritesAdjacentTextInOneCall() throws Exception {
+        String templates =
+            "a() ::= <<"+newline+
+            "x<\\t>y<\"z\">"+newline+
+            "w"+newline+
+            ">>"+newline;
+        // <\t> and <"z"> only become plain text writes when optimized
+        boolean savedOptimize = Compiler.optimize;
+        Compiler.optimize = true;
+        try {
+            STGroup group = new STGroupString(templates);
+            ST st = group.getInstanceOf("a");
+            final List<String> writes = new ArrayList<String>();
+            StringWriter sw = new StringWriter();
+            st.write(new AutoIndentWriter(sw) {
+                @Override
+                public int write(String str) throws IOException {
+                    writes.add(str);
+                    return super.write(str);
+                }
+            });
+            assertEquals("x\tyz"+newline+"w", sw.toString());
+            assertEquals("[x\tyz, "+newline+", w]", writes.toString());
+        }
+        finally {
+            Compiler.optimize = savedOptimize;
+        }
+    }
 }
@@ -0,0 +1,246 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.stringtemplate.v4.Interpreter;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupString;
+import org.stringtemplate.v4.StringRenderer;
+import org.stringtemplate.v4.compiler.Compiler;
+import org.stringtemplate.v4.misc.ErrorBuffer;
+import org.stringtemplate.v4.misc.ErrorType;
+import org.stringtemplate.v4.misc.STMessage;
+import org.stringtemplate.v4.misc.STRuntimeMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TestJIT extends BaseTest {
+    boolean savedJit;
+    int savedThreshold;
+
+    @Before
+    public void saveJitSettings() {
+        savedJit = Interpreter.jit;
+        savedThreshold = Interpreter.jitThreshold;
+        Interpreter.jit = true;
+        Interpreter.jitThreshold = 1;
+    }
+
+    @After
+    public void restoreJitSettings() {
+        Interpreter.jit = savedJit;
+        Interpreter.jitThreshold = savedThreshold;
+    }
+
+    /** Render template {@code name} interpreted and then compiled; both
+     *  runs must produce the same text and errors. Returns the text.
+     */
+    String checkSameAsInterpreter(STGroup group, String name, Object... nameValuePairs) {
+        ErrorBuffer interpErrors = new ErrorBuffer();
+        group.setListener(interpErrors);
+        Interpreter.jit = false;
+        String expected = render(group, name, nameValuePairs);
+
+        ErrorBuffer jitErrors = new ErrorBuffer();
+        group.setListener(jitErrors);
+        Interpreter.jit = true;
+        String result = render(group, name, nameValuePairs);
+        assertNotNull(group.rawGetTemplate("/"+name).jitProfile.getCode());
+
+        assertEquals(expected, result);
+        assertEquals(interpErrors.toString(), jitErrors.toString());
+        return result;
+    }
+
+    static String render(STGroup group, String name, Object... nameValuePairs) {
+        ST st = group.getInstanceOf(name);
+        for (int i=0; i<nameValuePairs.length; i+=2) {
+            st.add((String)nameValuePairs[i], nameValuePairs[i+1]);
+        }
+        return st.render();
+    }
+
+    @Test public void testAttributesAndProperties() throws Exception {
+        STGroup group = new STGroupString(
+            "t(u,x) ::= <<hi <u.name>, <x>! <u.(\"id\")>.>>\n");
+        String result = checkSameAsInterpreter(group, "t", "u", new User(1, "parrt"), "x", "ter");
+        assertEquals("hi parrt, ter! 1.", result);
+    }
+
+    @Test public void testConditionalsAndNewlines() throws Exception {
+        STGroup group = new STGroupString(
+            "t(x,y) ::= <<\n" +
+            "<if(x)>\n" +
+            "x\n" +
+            "<elseif(y)>\n" +
+            "y\n" +
+            "<else>\n" +
+            "none\n" +
+            "<endif>\n" +
+            "<if(!x&&y)>\n" +
+            "<endif>\n" +
+            "end\n" +
+            ">>\n");
+        assertEquals("x"+newline+"end", checkSameAsInterpreter(group, "t", "x", true));
+        assertEquals("y"+newline+"end", checkSameAsInterpreter(group, "t", "y", true));
+        assertEquals("none"+newline+"end", checkSameAsInterpreter(group, "t"));
+    }
+
+    @Test public void testMapsAndOptions() throws Exception {
+        STGroup group = new STGroupString(
+            "t(names,phones) ::= <<\n" +
+            "  <names:item(); separator=\", \", null=\"?\">\n" +
+            "  <names,phones:{n,p | <n>:<p>}; separator=\"; \">\n" +
+            "  <names:{n | <i>.<n>}:item(); wrap, anchor>\n" +
+            "  <[names,phones]:{x|<x>}>; <first(names)> <last(phones)> <length(names)> <rest(names)> <reverse(names)>\n" +
+            ">>\n" +
+            "item(x) ::= \"[<x>]\"\n");
+        String result = checkSameAsInterpreter(group, "t",
+            "names", Arrays.asList("a", null, "c"), "phones", Arrays.asList("1", "2"));
+        assertEquals(
+            "  [a], ?, [c]"+newline+
+            "  a:1; :2; c:"+newline+
+            "  [1.a][2.c]"+newline+
+            "  ac12; a 2 3 c ca", result);
+    }
+
+    @Test public void testIncludesRegionsAndSuper() throws Exception {
+        STGroup base = new STGroupString(
+            "a(x) ::= \"base <x> <@r>default<@end>\"\n");
+        STGroup group = new STGroupString(
+            "a(x) ::= <<sub(<super.a(...)>) <b(x)> <(\"b\")(x)> >>\n" +
+            "b(y) ::= \"<y; format=\\\"upper\\\">\"\n" +
+            "@a.r() ::= \"region\"\n");
+        group.importTemplates(base);
+        group.registerRenderer(String.class, new StringRenderer());
+        assertEquals("sub(base hi region) HI HI ", checkSameAsInterpreter(group, "a", "x", "hi"));
+    }
+
+    @Test public void testSameErrors() throws Exception {
+        STGroup group = new STGroupString(
+            "t(u) ::= \"<u.name> <y> <foo()> <trim(u)> <strlen(u)> <super.t()>\"\n");
+        checkSameAsInterpreter(group, "t", "u", new User(1, "parrt"));
+    }
+
+    @Test public void testFailedFutureLocation() throws Exception {
+        FutureTask<String> x = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() {
+                throw new IllegalStateException("no x");
+            }
+        });
+        x.run();
+        boolean savedOptimize = Compiler.optimize;
+        try {
+            // same locations with and without combined instructions
+            for (boolean optimize : new boolean[] {false, true}) {
+                Compiler.optimize = optimize;
+                STGroup group = new STGroupString(
+                    "t(x,y) ::= \"<y.bytes> and <if(x)>z<endif> <x; separator={,}> <x.bytes> <x>\"\n");
+                ErrorBuffer errors = new ErrorBuffer();
+                group.setListener(errors);
+                Interpreter.jit = false;
+                renderAsync(group, "t", "x", x, "y", "");
+                assertEquals("[1:18, 1:31, 1:50, 1:60]", locations(errors).toString());
+
+                Interpreter.jit = true;
+                errors.errors.clear();
+                renderAsync(group, "t", "x", x, "y", "");
+                assertNotNull(group.rawGetTemplate("/t").jitProfile.getCode());
+                assertEquals("[1:18, 1:31, 1:50, 1:60]", locations(errors).toString());
+            }
+        }
+        finally {
+            Compiler.optimize = savedOptimize;
+        }
+    }
+
+    /** Like {@link #render} but through {@link ST#renderAsync}, the only
+     *  render that waits for futures.
+     */
+    static String renderAsync(STGroup group, String name, Object... nameValuePairs) throws Exception {
+        ST st = group.getInstanceOf(name);
+        for (int i=0; i<nameValuePairs.length; i+=2) {
+            st.add((String)nameValuePairs[i], nameValuePairs[i+1]);
+        }
+        return st.renderAsync(TestCoreBasics.DIRECT).get();
+    }
+
+    static List<String> locations(ErrorBuffer errors) {
+        List<String> locations = new ArrayList<String>();
+        for (STMessage msg : errors.errors) {
+            assertEquals(ErrorType.FUTURE_FAILED, msg.error);
+            locations.add(((STRuntimeMessage)msg).getSourceLocation());
+        }
+        return locations;
+    }
+
+    @Test public void testDisabled() throws Exception {
+        STGroup group = new STGroupString("t(x) ::= \"<x>\"\n");
+        Interpreter.jit = false;
+        assertEquals("hi", render(group, "t", "x", "hi"));
+        assertNull(group.rawGetTemplate("/t").jitProfile.getCode());
+    }
+
+    @Test public void testBelowThreshold() throws Exception {
+        Interpreter.jitThreshold = 3;
+        STGroup group = new STGroupString("t(x) ::= \"<x>\"\n");
+        render(group, "t", "x", "hi");
+        render(group, "t", "x", "hi");
+        assertNull(group.rawGetTemplate("/t").jitProfile.getCode());
+        assertEquals("hi", render(group, "t", "x", "hi"));
+        assertNotNull(group.rawGetTemplate("/t").jitProfile.getCode());
+    }
+
+    @Test public void testFailedCompileIsReportedOnce() throws Exception {
+        // a class file can't hold a string constant this long
+        char[] text = new char[70000];
+        Arrays.fill(text, 'a');
+        STGroup group = new STGroup();
+        group.defineTemplate("t", "x", "<x>"+new String(text));
+        ErrorBuffer errors = new ErrorBuffer();
+        group.setListener(errors);
+        assertEquals("hi"+new String(text), render(group, "t", "x", "hi"));
+        assertEquals("hi"+new String(text), render(group, "t", "x", "hi"));
+        assertNull(group.rawGetTemplate("/t").jitProfile.getCode());
+        assertEquals(1, errors.errors.size());
+        assertEquals(ErrorType.INTERNAL_ERROR, errors.errors.get(0).error);
+    }
+}
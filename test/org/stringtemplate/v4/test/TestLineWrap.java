@@ -80,6 +80,22 @@ public class TestLineWrap extends BaseTest {
         assertEquals(expecting, a.render(40));
     }
 
+    @Test public void testLineWrapAnchoredPastManyColumns() throws Exception {
+        String templates =
+            "array(values) ::= <<static final int[] someLongArrayName = { <values; anchor, wrap, separator=\",\"> };>>"+newline;
+        writeFile(tmpdir, "t.stg", templates);
+        org.stringtemplate.v4.STGroup group = new org.stringtemplate.v4.STGroupFile(tmpdir+"/"+"t.stg");
+
+        org.stringtemplate.v4.ST a = group.getInstanceOf("array");
+        a.add("values",
+            new int[] {3,9,20,2,1,4,6,32,5,6,77,888,2,1,6,32,5,6,77});
+        String expecting =
+            "static final int[] someLongArrayName = { 3,9,20,2,1,4,6,32,5," + newline +
+            "                                         6,77,888,2,1,6,32,5," + newline +
+            "                                         6,77 };";
+        assertEquals(expecting, a.render(60));
+    }
+
     @Test public void testSubtemplatesAnchorToo() throws Exception {
         String templates =
                 "array(values) ::= <<{ <values; anchor, separator=\", \"> }>>"+newline;
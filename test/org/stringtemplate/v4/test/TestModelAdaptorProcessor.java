@@ -0,0 +1,145 @@
+/*
+ * [The "BSD license"]
+ *  Copyright (c) 2011 Terence Parr
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.stringtemplate.v4.test;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.misc.STNoSuchPropertyException;
+import org.stringtemplate.v4.misc.STRuntimeMessage;
+import org.stringtemplate.v4.processor.GeneratedModelAdaptors;
+import org.stringtemplate.v4.processor.ModelAdaptorProcessor;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+public class TestModelAdaptorProcessor extends BaseTest {
+    static final String PERSON =
+        "package models;\n" +
+        "import org.stringtemplate.v4.processor.TemplateModel;\n" +
+        "@TemplateModel\n" +
+        "public class Person {\n" +
+        "    public final String nickname = \"bob\";\n" +
+        "    private final String name;\n" +
+        "    private final int age;\n" +
+        "    public Person(String name, int age) { this.name = name; this.age = age; }\n" +
+        "    public String getName() { return name; }\n" +
+        "    public int getAge() { return age; }\n" +
+        "    public boolean isAdult() { return age >= 18; }\n" +
+        "    public boolean hasPets() { return false; }\n" +
+        "    public String getBroken() throws Exception { throw new Exception(\"broken\"); }\n" +
+        "    public static class Employee extends Person {\n" +
+        "        public Employee(String name) { super(name, 40); }\n" +
+        "        public String getTitle() { return \"boss\"; }\n" +
+        "    }\n" +
+        "}\n";
+
+    ClassLoader loader;
+
+    @Before
+    @Override
+    public void setUp() {
+        super.setUp();
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assumeNotNull(compiler);
+        writeFile(tmpdir, "models/Person.java", PERSON);
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+        JavaCompiler.CompilationTask task = compiler.getTask(
+            null, fileManager, null,
+            Arrays.asList("-d", tmpdir, "-cp", CLASSPATH), null,
+            fileManager.getJavaFileObjects(new File(tmpdir, "models/Person.java")));
+        task.setProcessors(Arrays.asList(new ModelAdaptorProcessor()));
+        assertTrue(task.call());
+        try {
+            loader = new URLClassLoader(new URL[] {new File(tmpdir).toURI().toURL()},
+                                        getClass().getClassLoader());
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    Object newPerson(String name, int age) throws Exception {
+        return loader.loadClass("models.Person")
+            .getConstructor(String.class, int.class).newInstance(name, age);
+    }
+
+    @Test public void testGeneratedAdaptorIsRegistered() throws Exception {
+        STGroup group = new STGroup();
+        GeneratedModelAdaptors.register(group, loader);
+        Class<?> person = loader.loadClass("models.Person");
+        assertEquals("models.Person_ModelAdaptor", group.getModelAdaptor(person).getClass().getName());
+    }
+
+    @Test public void testGeneratedAdaptorReadsLikeReflection() throws Exception {
+        String template = "<p.name> <p.Name> <p.age> <p.adult> <p.pets> <p.nickname> <p.class.simpleName>";
+        Object p = newPerson("parrt", 42);
+        ST reflective = new ST(template);
+        reflective.add("p", p);
+
+        STGroup group = new STGroup();
+        GeneratedModelAdaptors.register(group, loader);
+        ST generated = new ST(group, template);
+        generated.add("p", p);
+        assertEquals("parrt parrt 42 true false bob Person", generated.render());
+        assertEquals(reflective.render(), generated.render());
+    }
+
+    @Test public void testSubclassPropertiesFallBackOnReflection() throws Exception {
+        STGroup group = new STGroup();
+        GeneratedModelAdaptors.register(group, loader);
+        ST st = new ST(group, "<e.name>: <e.title>");
+        st.add("e", loader.loadClass("models.Person$Employee").getConstructor(String.class).newInstance("ter"));
+        assertEquals("ter: boss", st.render());
+    }
+
+    @Test public void testGeneratedAdaptorReportsMissingProperty() throws Exception {
+        ErrorBufferAllErrors errors = new ErrorBufferAllErrors();
+        STGroup group = new STGroup();
+        group.setListener(errors);
+        GeneratedModelAdaptors.register(group, loader);
+        ST st = new ST(group, "<p.qqq><p.broken>");
+        st.add("p", newPerson("parrt", 42));
+        assertEquals("", st.render());
+        assertEquals(2, errors.errors.size());
+        STNoSuchPropertyException e = (STNoSuchPropertyException)((STRuntimeMessage)errors.errors.get(0)).cause;
+        assertEquals("models.Person.qqq", e.propertyName);
+        e = (STNoSuchPropertyException)((STRuntimeMessage)errors.errors.get(1)).cause;
+        assertEquals("broken", e.getCause().getMessage());
+    }
+}
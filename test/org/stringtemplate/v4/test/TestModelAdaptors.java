@@ -3,12 +3,26 @@ package org.stringtemplate.v4.test;
 import org.junit.*;
 
 import org.stringtemplate.v4.*;
+import org.stringtemplate.v4.misc.ErrorBuffer;
+import org.stringtemplate.v4.misc.ErrorManager;
+import org.stringtemplate.v4.misc.ErrorType;
+import org.stringtemplate.v4.misc.ObjectModelAdaptor;
 import org.stringtemplate.v4.misc.STNoSuchPropertyException;
 import org.stringtemplate.v4.misc.STRuntimeMessage;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class TestModelAdaptors extends BaseTest {
     static class UserAdaptor implements ModelAdaptor<User> {
@@ -33,6 +47,31 @@ public class TestModelAdaptors extends BaseTest {
         }
     }
 
+    static class UserTryAdaptor implements TryModelAdaptor<User> {
+        @Override
+        public Object getProperty(Interpreter interp, ST self, User model, Object property, String propertyName)
+            throws STNoSuchPropertyException
+        {
+            throw new UnsupportedOperationException("should call tryGetProperty");
+        }
+
+        @Override
+        public Object tryGetProperty(Interpreter interp, ST self, User model, Object property, String propertyName) {
+            if ( propertyName.equals("name") ) return model.getName();
+            return NO_SUCH_PROPERTY;
+        }
+    }
+
+    static class NicknameAdaptor extends ObjectModelAdaptor<User> {
+        @Override
+        public Object getProperty(Interpreter interp, ST self, User model, Object property, String propertyName)
+            throws STNoSuchPropertyException
+        {
+            if ( propertyName.equals("nickname") ) return "the "+model.getName();
+            return super.getProperty(interp, self, model, property, propertyName);
+        }
+    }
+
     static class SuperUser extends User {
         int bitmask;
         public SuperUser(int id, String name) {
@@ -158,4 +197,210 @@ public class TestModelAdaptors extends BaseTest {
         String result = st.render();
         assertEquals(expecting, result);
     }
+
+    @Test public void testMapNullValueIsNotMissing() {
+        String templates =
+            "foo(m) ::= \"<m.a>,<m.b>,<m.keys; separator={+}>\"";
+        writeFile(tmpdir, "foo.stg", templates);
+        STGroup group = new STGroupFile(tmpdir+"/foo.stg");
+        ST st = group.getInstanceOf("foo");
+
+        Map<String, String> m = new TreeMap<String, String>();
+        m.put("a", null);
+        m.put("default", "dflt");
+        m.put("keys", "own keys");
+        st.add("m", m);
+        String expecting = ",dflt,own keys";
+        String result = st.render();
+        assertEquals(expecting, result);
+    }
+
+    @Test public void testMapNonStringKeyFoundByName() {
+        String templates =
+            "foo(m, i, j) ::= \"<m.(i)>,<m.(j)>,<m.x>\"";
+        writeFile(tmpdir, "foo.stg", templates);
+        STGroup group = new STGroupFile(tmpdir+"/foo.stg");
+        ST st = group.getInstanceOf("foo");
+
+        Map<Object, String> m = new HashMap<Object, String>();
+        m.put(1, "int");
+        m.put("2", "string");
+        st.add("m", m);
+        st.add("i", 1);
+        st.add("j", 2);
+        String expecting = "int,string,";
+        String result = st.render();
+        assertEquals(expecting, result);
+    }
+
+    @Test public void testPropertySiteSeesManyTypes() throws Exception {
+        String templates =
+                "foo(xs) ::= \"<xs:{x | <x.name>}; separator={,}>\"\n";
+        writeFile(tmpdir, "foo.stg", templates);
+        STGroup group = new STGroupFile(tmpdir+"/foo.stg");
+        ST st = group.getInstanceOf("foo");
+        Map<String, String> m = new HashMap<String, String>();
+        m.put("name", "map");
+        st.add("xs", new User(1, "user"));
+        st.add("xs", new SuperUser(2, "parrt"));
+        st.add("xs", m);
+        st.add("xs", new HashableUser(3, "hash"));
+        st.add("xs", new User(4, "again"));
+        st.add("xs", new SuperUser(5, "ter"));
+        String expecting = "user,super parrt,map,hash,again,super ter";
+        String result = st.render();
+        assertEquals(expecting, result);
+        assertEquals(expecting, st.render()); // now from the cache
+    }
+
+    @Test public void testMegamorphicPropertySite() throws Exception {
+        String templates =
+                "foo(xs) ::= \"<xs:{x | <x.id>}; separator={,}>\"\n";
+        writeFile(tmpdir, "foo.stg", templates);
+        STGroup group = new STGroupFile(tmpdir+"/foo.stg");
+        ST st = group.getInstanceOf("foo");
+        Map<String, Integer> m = new HashMap<String, Integer>();
+        m.put("id", 3);
+        st.add("xs", new User(1, "a"));
+        st.add("xs", new SuperUser(2, "b"));
+        st.add("xs", m);
+        st.add("xs", new HashableUser(4, "c"));
+        st.add("xs", new TreeMap<String, Integer>(m));
+        st.add("xs", new User(5, "d"));
+        st.add("xs", new SuperUser(6, "e"));
+        String expecting = "1,2,3,4,3,5,6";
+        assertEquals(expecting, st.render());
+        assertEquals(expecting, st.render());
+    }
+
+    @Test public void testPropertySiteSeesAdaptorRegisteredAfterRender() throws Exception {
+        String templates =
+                "foo(x) ::= \"<x.id>: <x.name>\"\n";
+        writeFile(tmpdir, "foo.stg", templates);
+        STGroup group = new STGroupFile(tmpdir+"/foo.stg");
+        ST st = group.getInstanceOf("foo");
+        st.add("x", new User(100, "parrt"));
+        assertEquals("100: parrt", st.render());
+
+        group.registerModelAdaptor(User.class, new UserAdaptorConst());
+        String expecting = "const id value: const name value";
+        String result = st.render();
+        assertEquals(expecting, result);
+    }
+
+    @Test public void testPropertySiteReportsMissingPropertyEachTime() throws Exception {
+        ErrorBufferAllErrors errors = new ErrorBufferAllErrors();
+        String templates =
+                "foo(x) ::= \"<x.qqq>\"\n";
+        writeFile(tmpdir, "foo.stg", templates);
+        STGroup group = new STGroupFile(tmpdir+"/foo.stg");
+        group.setListener(errors);
+        ST st = group.getInstanceOf("foo");
+        st.add("x", new User(100, "parrt"));
+        assertEquals("", st.render());
+        assertEquals("", st.render());
+        assertEquals(2, errors.errors.size());
+        STRuntimeMessage msg = (STRuntimeMessage)errors.errors.get(1);
+        STNoSuchPropertyException e = (STNoSuchPropertyException)msg.cause;
+        assertEquals("org.stringtemplate.v4.test.BaseTest$User.qqq", e.propertyName);
+    }
+
+    @Test public void testTryAdaptorMissIsReported() throws Exception {
+        ErrorBufferAllErrors errors = new ErrorBufferAllErrors();
+        String templates =
+                "foo(x) ::= \"<x.name>:<x.qqq>\"\n";
+        writeFile(tmpdir, "foo.stg", templates);
+        STGroup group = new STGroupFile(tmpdir+"/foo.stg");
+        group.setListener(errors);
+        group.registerModelAdaptor(User.class, new UserTryAdaptor());
+        ST st = group.getInstanceOf("foo");
+        st.add("x", new User(100, "parrt"));
+        assertEquals("parrt:", st.render());
+        assertEquals(1, errors.errors.size());
+        STRuntimeMessage msg = (STRuntimeMessage)errors.errors.get(0);
+        STNoSuchPropertyException e = (STNoSuchPropertyException)msg.cause;
+        assertEquals("org.stringtemplate.v4.test.BaseTest$User.qqq", e.propertyName);
+    }
+
+    @Test public void testObjectAdaptorSubclassStillSeesMisses() throws Exception {
+        ErrorBufferAllErrors errors = new ErrorBufferAllErrors();
+        String templates =
+                "foo(x) ::= \"<x.nickname>:<x.name>:<x.qqq>\"\n";
+        writeFile(tmpdir, "foo.stg", templates);
+        STGroup group = new STGroupFile(tmpdir+"/foo.stg");
+        group.setListener(errors);
+        group.registerModelAdaptor(User.class, new NicknameAdaptor());
+        ST st = group.getInstanceOf("foo");
+        st.add("x", new User(100, "parrt"));
+        assertEquals("the parrt:parrt:", st.render());
+        assertEquals(1, errors.errors.size());
+    }
+
+    @Test public void testMissingPropertyNotBuiltForQuietListener() throws Exception {
+        assertTrue(new ErrorManager().ignoresRunTimeError(ErrorType.NO_SUCH_PROPERTY));
+        assertTrue(new ErrorManager(new ErrorBuffer()).ignoresRunTimeError(ErrorType.NO_SUCH_PROPERTY));
+        assertFalse(new ErrorManager(new ErrorBufferAllErrors()).ignoresRunTimeError(ErrorType.NO_SUCH_PROPERTY));
+        assertFalse(new ErrorManager().ignoresRunTimeError(ErrorType.NO_SUCH_ATTRIBUTE));
+    }
+
+    public static class Order {
+        int lookups = 0;
+        public User getCustomer() {
+            lookups++;
+            return new User(1, "parrt");
+        }
+    }
+
+    @Test public void testMemoizedPropertiesReadOncePerRender() throws Exception {
+        String templates =
+            "t(order, p) ::= \"<order.customer.name>, <order.(p).name>, <u()>\"\n" +
+            "u() ::= \"<order.customer.name>\"\n";
+        STGroup group = new STGroupString(templates);
+        group.memoizeProperties = true;
+        ST st = group.getInstanceOf("t");
+        Order order = new Order();
+        st.add("order", order);
+        st.add("p", "customer");
+        assertEquals("parrt, parrt, parrt", st.render());
+        assertEquals(1, order.lookups);
+        assertEquals(4, group.getPropertyCacheHits());
+        assertEquals(2, group.getPropertyCacheMisses());
+
+        assertEquals("parrt, parrt, parrt", st.render());
+        assertEquals(2, order.lookups);
+        assertEquals(8, group.getPropertyCacheHits());
+        assertEquals(4, group.getPropertyCacheMisses());
+    }
+
+    @Test public void testPropertiesNotMemoizedByDefault() throws Exception {
+        ST st = new ST("<order.customer.name>, <order.customer.name>");
+        Order order = new Order();
+        st.add("order", order);
+        assertEquals("parrt, parrt", st.render());
+        assertEquals(2, order.lookups);
+        assertEquals(0, st.groupThatCreatedThisInstance.getPropertyCacheHits());
+    }
+
+    @Test public void testIndirectPropertiesFromManyThreads() throws Exception {
+        final STGroup group = new STGroup();
+        group.defineTemplate("t", "u", "<u.(\"id\")>:<u.(\"name\")>:<u.(\"qqq\")>");
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+        for (int i = 0; i < 100; i++) {
+            final int id = i;
+            tasks.add(new Callable<String>() {
+                @Override
+                public String call() {
+                    ST st = group.getInstanceOf("t");
+                    st.add("u", new User(id, "parrt"));
+                    return st.render();
+                }
+            });
+        }
+        List<Future<String>> results = pool.invokeAll(tasks);
+        pool.shutdown();
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i+":parrt:", results.get(i).get());
+        }
+    }
 }
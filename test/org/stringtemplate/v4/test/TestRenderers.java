@@ -43,8 +43,13 @@ import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 
 public class TestRenderers extends BaseTest {
 
@@ -403,4 +408,47 @@ public class TestRenderers extends BaseTest {
         }
         assertEquals(expected, st.render(new Locale("pt")));
     }
+
+    @Test public void testRendererForPrimitiveArrayElements() throws Exception {
+        String templates =
+                "foo(x,y) ::= << <x; format=\"%03d\", separator=\",\"> <y; separator=\"|\"> >>\n";
+        writeFile(tmpdir, "t.stg", templates);
+        STGroup group = new STGroupFile(tmpdir+"/t.stg");
+        group.registerRenderer(Integer.class, new NumberRenderer());
+        ST st = group.getInstanceOf("foo");
+        st.add("x", new int[] {1, 20, 300});
+        st.add("y", new double[] {1.5, -0.25});
+        String expecting = " 001,020,300 1.5|-0.25 ";
+        String result = st.render();
+        assertEquals(expecting, result);
+    }
+
+    @Test public void testFirstRenderersFromManyThreads() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 100; i++) {
+                final STGroup group = new STGroup();
+                List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+                tasks.add(Executors.callable(new Runnable() {
+                    @Override
+                    public void run() {
+                        group.registerRenderer(String.class, new StringRenderer());
+                    }
+                }));
+                tasks.add(Executors.callable(new Runnable() {
+                    @Override
+                    public void run() {
+                        group.registerRenderer(Number.class, new NumberRenderer());
+                    }
+                }));
+                for (Future<Object> f : pool.invokeAll(tasks)) f.get();
+                // neither thread may replace the registry the other one made
+                assertNotNull(group.getAttributeRenderer(String.class));
+                assertNotNull(group.getAttributeRenderer(Integer.class));
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
 }
@@ -6,6 +6,9 @@ import org.stringtemplate.v4.misc.*;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class TestScopes extends BaseTest {
     @Test public void testSeesEnclosingAttr() throws Exception {
         String templates =
@@ -98,4 +101,49 @@ public class TestScopes extends BaseTest {
         group.setListener(ErrorManager.DEFAULT_ERROR_LISTENER);
     }
 
+    @Test public void testAttrFoundAtDifferentDepths() throws Exception {
+        String templates =
+            "t(x) ::= <<<u()>,<v(\"v\")>,<w(\"w\")> >>\n" +
+            "u() ::= \"<show()>\"\n" +
+            "v(x) ::= \"<show()>\"\n" +
+            "w(y) ::= \"<show()>\"\n" +
+            "show() ::= \"<x>\"";
+        writeFile(tmpdir, "t.stg", templates);
+        STGroup group = new STGroupFile(tmpdir+"/"+"t.stg");
+        ST st = group.getInstanceOf("t");
+        st.add("x", "t");
+        String expected = "t,v,t ";
+        assertEquals(expected, st.render());
+        assertEquals(expected, st.render());
+    }
+
+    @Test public void testAttrAddedAfterRenderHidesDictionary() throws Exception {
+        String templates =
+            "d ::= [\"k\":\"dict\"]\n" +
+            "u() ::= \"<d.k>\"";
+        writeFile(tmpdir, "t.stg", templates);
+        STGroup group = new STGroupFile(tmpdir+"/"+"t.stg");
+        ST st = new ST(group, "<u()>");
+        assertEquals("dict", st.render());
+
+        Map<String, String> d = new HashMap<String, String>();
+        d.put("k", "arg");
+        st.add("d", d);
+        assertEquals("arg", st.render());
+    }
+
+    @Test public void testRedefinedDictionaryIsSeen() throws Exception {
+        String templates =
+            "d ::= [\"k\":\"old\"]\n" +
+            "t() ::= \"<d.k>\"";
+        writeFile(tmpdir, "t.stg", templates);
+        STGroup group = new STGroupFile(tmpdir+"/"+"t.stg");
+        ST st = group.getInstanceOf("t");
+        assertEquals("old", st.render());
+
+        Map<String, Object> d = new HashMap<String, Object>();
+        d.put("k", "new");
+        group.defineDictionary("d", d);
+        assertEquals("new", group.getInstanceOf("t").render());
+    }
 }
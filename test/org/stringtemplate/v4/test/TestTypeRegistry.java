@@ -1,6 +1,7 @@
 package org.stringtemplate.v4.test;
 
 import org.junit.Test;
+import org.stringtemplate.v4.misc.AmbiguousMatchException;
 import org.stringtemplate.v4.misc.TypeRegistry;
 
 import static org.junit.Assert.assertEquals;
@@ -13,6 +14,12 @@ public class TestTypeRegistry {
 
     static class B extends A {}
 
+    interface I {}
+
+    interface J {}
+
+    static class C implements I, J {}
+
     @Test
     public void registryWithObject() {
         TypeRegistry<String> registry = new TypeRegistry<String>();
@@ -80,4 +87,25 @@ public class TestTypeRegistry {
         assertEquals("A", registry.get(A.class));
         assertEquals("B", registry.get(B.class));
     }
+
+    @Test
+    public void registryReresolvesOnlyAffectedTypes() {
+        TypeRegistry<String> registry = new TypeRegistry<String>();
+        registry.put(Object.class, "Object");
+        assertEquals("Object", registry.get(B.class));
+        assertEquals("Object", registry.get(String.class));
+        registry.put(A.class, "A");
+        assertEquals("A", registry.get(B.class));
+        assertEquals("Object", registry.get(String.class));
+        registry.remove(A.class);
+        assertEquals("Object", registry.get(B.class));
+    }
+
+    @Test(expected = AmbiguousMatchException.class)
+    public void registryWithAmbiguousMatch() {
+        TypeRegistry<String> registry = new TypeRegistry<String>();
+        registry.put(I.class, "I");
+        registry.put(J.class, "J");
+        registry.get(C.class);
+    }
 }